@@ -0,0 +1,28 @@
+package com.mschwartz.teslacharging.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the gc profiler so that the allocation rate is
+ * reported next to the execution time.
+ * 
+ * <pre>
+ * java -jar target/benchmarks.jar [jmh options] [regex of the benchmarks to run]
+ * </pre>
+ * 
+ * @author Mike
+ *
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+
+}
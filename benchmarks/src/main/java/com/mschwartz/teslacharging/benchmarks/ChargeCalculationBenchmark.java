@@ -0,0 +1,105 @@
+package com.mschwartz.teslacharging.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mschwartz.teslacharging.ChargeCalculation;
+import com.mschwartz.teslacharging.PiChargeController;
+import com.mschwartz.teslacharging.tesla.TeslaCharge;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.ChargeState;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.VehicleData;
+import com.mschwartz.teslacharging.web.RestRequest;
+
+/**
+ * One charge calculation with the charge state of the vehicle_data response.
+ * The commands are answered by a stub instead of the tesla servers.
+ * 
+ * <ul>
+ * <li>steadySurplus: the surplus does not change, no command is sent</li>
+ * <li>changingSurplus: the surplus changes with each calculation, most
+ * calculations send a command</li>
+ * <li>piController: the changing surplus with the pi controller</li>
+ * </ul>
+ * 
+ * @author Mike
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChargeCalculationBenchmark {
+
+	// watts, the car charges with 16 amps on 3 phases
+	private static final int[] SURPLUS = { 0, 1500, -800, 2400, 300, -2000, 900, 3100 };
+
+	private ChargeState chargeState;
+
+	private ChargeCalculation simpleCalculation;
+
+	private ChargeCalculation piCalculation;
+
+	private int next;
+
+	@Setup
+	public void setup() {
+		VehicleData vehicleData = RestRequest.getGson().fromJson(Payloads.load("vehicle_data.json"), VehicleData.class);
+		chargeState = vehicleData.getResponse().getCharge_state();
+		simpleCalculation = new ChargeCalculation(new StubTeslaCharge());
+		TeslaCharge teslaCharge = new StubTeslaCharge();
+		piCalculation = new ChargeCalculation(teslaCharge);
+		PiChargeController controller = new PiChargeController(teslaCharge, null);
+		// no dwell time so that the controller keeps switching
+		controller.setMinOnSeconds(0);
+		controller.setMinOffSeconds(0);
+		piCalculation.setController(controller);
+	}
+
+	@Benchmark
+	public int steadySurplus() throws Exception {
+		return simpleCalculation.adaptCharging(chargeState, 0);
+	}
+
+	@Benchmark
+	public int changingSurplus() throws Exception {
+		return simpleCalculation.adaptCharging(chargeState, nextSurplus());
+	}
+
+	@Benchmark
+	public int piController() throws Exception {
+		return piCalculation.adaptCharging(chargeState, nextSurplus());
+	}
+
+	private int nextSurplus() {
+		next = (next + 1) % SURPLUS.length;
+		return SURPLUS[next];
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	static class StubTeslaCharge extends TeslaCharge {
+
+		StubTeslaCharge() {
+			super(null, null, null);
+		}
+
+		@Override
+		protected String sendCommand(String command, Object body, boolean wakeUp) {
+			return null;
+		}
+
+	}
+
+}
@@ -0,0 +1,28 @@
+package com.mschwartz.teslacharging.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Realistic responses of the tesla api and a typical property file used by the
+ * benchmarks.
+ * 
+ * @author Mike
+ *
+ */
+class Payloads {
+
+	private Payloads() {
+	}
+
+	static String load(String resource) {
+		try (InputStream is = Payloads.class.getResourceAsStream("/" + resource)) {
+			return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package com.mschwartz.teslacharging.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mschwartz.teslacharging.tesla.TeslaConfiguration;
+
+/**
+ * Writing refreshed tokens into a typical property file (all settings with
+ * their comments, tokens of the usual length). This rewrites the file through
+ * updateConfiguration, the numbers include the file system.
+ * 
+ * @author Mike
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TeslaConfigurationBenchmark {
+
+	private File propertiesFile;
+
+	private TeslaConfiguration teslaConfiguration;
+
+	private String accessToken, refreshToken;
+
+	private long expiresAt = 1767225600;
+
+	@Setup
+	public void setup() throws IOException {
+		propertiesFile = File.createTempFile("app", ".properties");
+		Files.writeString(propertiesFile.toPath(), Payloads.load("app.properties"), StandardCharsets.UTF_8);
+		teslaConfiguration = new TeslaConfiguration(propertiesFile.getPath());
+		accessToken = teslaConfiguration.readAccessToken();
+		refreshToken = teslaConfiguration.readRefreshToken();
+	}
+
+	@TearDown
+	public void tearDown() {
+		propertiesFile.delete();
+	}
+
+	@Benchmark
+	public void updateTokens() throws IOException {
+		// a different expiry each time so that the file really changes
+		teslaConfiguration.updateTokens(accessToken, refreshToken, ++expiresAt);
+	}
+
+}
@@ -0,0 +1,91 @@
+package com.mschwartz.teslacharging.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.Vehicle;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.VehicleData;
+import com.mschwartz.teslacharging.tesla.VehicleDataDecoder;
+import com.mschwartz.teslacharging.web.RestRequest;
+
+/**
+ * Decoding of a complete vehicle_data response.
+ * 
+ * <ul>
+ * <li>newGsonPerCall: a new reflective Gson instance per call (the original
+ * implementation)</li>
+ * <li>reflectiveGson: a shared reflective Gson instance</li>
+ * <li>typeAdapters: the shared Gson instance with the hand-written adapters</li>
+ * <li>streamingDecoder: only the charge and drive state, read from a
+ * stream</li>
+ * </ul>
+ * 
+ * @author Mike
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VehicleDataDecodeBenchmark {
+
+	private String payload;
+
+	private byte[] payloadBytes;
+
+	private Gson reflectiveGson;
+
+	private Gson adapterGson;
+
+	@Setup
+	public void setup() {
+		payload = Payloads.load("vehicle_data.json");
+		payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+		reflectiveGson = new Gson();
+		adapterGson = RestRequest.getGson();
+	}
+
+	@Benchmark
+	public VehicleData newGsonPerCall() {
+		return new Gson().fromJson(payload, VehicleData.class);
+	}
+
+	@Benchmark
+	public VehicleData reflectiveGson() {
+		return reflectiveGson.fromJson(payload, VehicleData.class);
+	}
+
+	@Benchmark
+	public VehicleData typeAdapters() {
+		return adapterGson.fromJson(payload, VehicleData.class);
+	}
+
+	@Benchmark
+	public Vehicle streamingDecoder() throws IOException {
+		VehicleDataDecoder decoder = new VehicleDataDecoder(VehicleDataDecoder.CHARGE_STATE,
+				VehicleDataDecoder.DRIVE_STATE);
+		try (JsonReader reader = new JsonReader(
+				new InputStreamReader(new ByteArrayInputStream(payloadBytes), StandardCharsets.UTF_8))) {
+			return decoder.decode(reader);
+		}
+	}
+
+}
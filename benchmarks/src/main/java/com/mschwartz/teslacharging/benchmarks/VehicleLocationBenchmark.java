@@ -0,0 +1,59 @@
+package com.mschwartz.teslacharging.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mschwartz.teslacharging.tesla.VehicleLocation;
+
+/**
+ * Distance of the car from home.
+ * 
+ * <ul>
+ * <li>atHome: within the gps variance, no trigonometry needed</li>
+ * <li>awayFromHome: the haversine formula</li>
+ * </ul>
+ * 
+ * @author Mike
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VehicleLocationBenchmark {
+
+	private VehicleLocation home;
+
+	// not final so that the calculation is not folded into a constant
+	private double nearbyLatitude = 48.137354, nearbyLongitude = 11.576424;
+
+	private double awayLatitude = 48.353783, awayLongitude = 11.786086;
+
+	@Setup
+	public void setup() {
+		home = new VehicleLocation(48.137154, 11.576124);
+	}
+
+	@Benchmark
+	public double atHome() {
+		return home.distanceFrom(nearbyLatitude, nearbyLongitude);
+	}
+
+	@Benchmark
+	public double awayFromHome() {
+		return home.distanceFrom(awayLatitude, awayLongitude);
+	}
+
+}
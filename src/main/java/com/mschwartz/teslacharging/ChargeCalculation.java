@@ -1,10 +1,19 @@
 package com.mschwartz.teslacharging;
 
+import java.text.DecimalFormat;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.mschwartz.teslacharging.tesla.CommandedState;
 import com.mschwartz.teslacharging.tesla.TeslaCharge;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle;
 import com.mschwartz.teslacharging.tesla.TeslaVehicle.ChargeState;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.DriveState;
+import com.mschwartz.teslacharging.tesla.VehicleDataDecoder;
+
+import lombok.Getter;
+import lombok.Setter;
 
 /**
  * Changes the charging speed/status of the car depending on the currently
@@ -32,14 +41,62 @@ public class ChargeCalculation {
 
 	static final Logger logger = LogManager.getLogger(ChargeCalculation.class);
 	
-	final int minAmps = 1;
+	// the minimum amps to charge with
+	@Setter
+	private int minAmps = 1;
+
+	// maximum distance in miles the car may be away from home to be charged
+	static final double MAX_DISTANCE_FROM_HOME = 3;
 
 	private TeslaCharge teslaCharge;
 
+	// if set the amps are calculated by the controller
+	@Setter
+	private PiChargeController controller;
+
 	public ChargeCalculation(TeslaCharge teslaCharge) {
 		this.teslaCharge = teslaCharge;
 	}
 
+	/**
+	 * Fetches the charge and drive state of the car and changes the charging if
+	 * the car is at home and connected. Used by the daemon and by the command
+	 * line, each reports the result its own way.
+	 * 
+	 * @param powerSurplus positive values indicate that we are producing more
+	 *                     power than needed
+	 * @throws Exception
+	 */
+	public Result calculate(TeslaVehicle teslaVehicle, int powerSurplus) throws Exception {
+		Result result = new Result();
+		// recorded together with the charge state fetched next
+		if (teslaVehicle.getRecorder() != null)
+			teslaVehicle.getRecorder().setSurplus(powerSurplus);
+		// fetch both sections with one request, the following calls use the cache
+		teslaVehicle.getVehicleData(VehicleDataDecoder.CHARGE_STATE, VehicleDataDecoder.DRIVE_STATE);
+		Double distance = distanceFromHome(teslaVehicle);
+		if (distance == null) {
+			result.warning = "getting drive state failed, cannot determine the position of the car";
+		} else if (distance > MAX_DISTANCE_FROM_HOME) {
+			DecimalFormat df = new DecimalFormat("#,###.#");
+			result.reason = "Car is " + df.format(distance) + " miles away from home.";
+			return result;
+		}
+
+		ChargeState chargeState = teslaVehicle.getVehicleChargeState();
+		if (chargeState == null) {
+			result.reason = "getting charge state failed";
+			result.failed = true;
+			return result;
+		}
+		if (chargeState.getCharging_state().equals("Disconnected")) {
+			result.reason = "Car is disconnected.";
+			return result;
+		}
+		result.watts = adaptCharging(chargeState, powerSurplus);
+		return result;
+	}
+
 	/**
 	 * Changes the charging speed/status of the car depending on the currently
 	 * consumed power of the house. If this value is positive we are currently
@@ -50,24 +107,27 @@ public class ChargeCalculation {
 	 * @throws Exception
 	 */
 	public int adaptCharging(ChargeState chargeState, int powerSurplus) throws Exception {
+		CommandedState commandedState = teslaCharge.reconcile(chargeState);
 		// calculate the power surplus if the car is NOT charging
 		int powerOfCar = calculateCurrentPowerToCar(chargeState);
 		int powerSurplusWoCar = powerSurplus + powerOfCar;
 		int power1Amp = calculate1AmpPower(chargeState);
-		logger.info("The car consumes currently " + powerOfCar + " watts. We have a surplus of " + powerSurplusWoCar
-				+ " watts (w/o car).");
-		logger.debug("w/o car: " + powerSurplusWoCar + ", 1amp: " + power1Amp);
+		if (controller != null)
+			return controller.adaptCharging(chargeState, commandedState, powerSurplus, power1Amp, minAmps);
+		logger.info("The car consumes currently {} watts. We have a surplus of {} watts (w/o car).", powerOfCar,
+				powerSurplusWoCar);
+		logger.debug("w/o car: {}, 1amp: {}", powerSurplusWoCar, power1Amp);
 		if (powerSurplusWoCar <= 0) {
 			// if negative we should stop charging
 			logger.info("Producing too less power to charge the car");
-			stopCharging(chargeState);
+			stopCharging(commandedState);
 			return 0;
 		}
 		if (powerSurplusWoCar - (minAmps - 0.5) * power1Amp <= 0) {
 			// if we are negative when charging with at least 1 amp we should also stop
 			// (allow little margin)
-			logger.info("Producing too less power to charge the car with at least " + minAmps + " amps");
-			stopCharging(chargeState);
+			logger.info("Producing too less power to charge the car with at least {} amps", minAmps);
+			stopCharging(commandedState);
 			return 0;
 		}
 		int amps = (int) Math.round((double) powerSurplusWoCar / power1Amp);
@@ -75,15 +135,21 @@ public class ChargeCalculation {
 			logger.info("Too much power available, tesla can only handle 32 amps in api, restrict to 32");
 			amps = 32;
 		}
-		if (amps != chargeState.getCharger_actual_current() || !chargeState.getCharging_state().equals("Charging")) {
-			logger.info("Charging with " + amps + " amps");
-			String reason = teslaCharge.setChargingAmps(amps);
-			if (reason != null) {
-				System.out.println("Set charging amps to " + amps + " amps failed. Reason: " + reason);
-				return 0;
+		// the actual current lags behind the requested amps, compare with the amps
+		// requested last instead so that the same command is not sent again
+		boolean start = chargeState.getCharging_state().equals("Stopped")
+				&& !Boolean.TRUE.equals(commandedState.isCharging());
+		if (!commandedState.isChargingAmps(amps) || start) {
+			logger.info("Charging with {} amps", amps);
+			if (!commandedState.isChargingAmps(amps)) {
+				String reason = teslaCharge.setChargingAmps(amps);
+				if (reason != null) {
+					System.out.println("Set charging amps to " + amps + " amps failed. Reason: " + reason);
+					return 0;
+				}
 			}
-			if (chargeState.getCharging_state().equals("Stopped")) {
-				reason = teslaCharge.startCharging();
+			if (start) {
+				String reason = teslaCharge.startCharging();
 				if (reason != null) {
 					System.out.println("Start charging failed. Reason: " + reason);
 					return 0;
@@ -96,8 +162,26 @@ public class ChargeCalculation {
 		}
 	}
 
-	public void stopCharging(ChargeState chargeState) throws Exception {
-		if (chargeState.getCharging_state().equals("Charging")) {
+	/**
+	 * Determines the distance of the car from the configured home position.
+	 * 
+	 * @param teslaVehicle
+	 * @return the distance in miles or <code>null</code> if the position of the car
+	 *         is unknown
+	 * @throws Exception
+	 */
+	public static Double distanceFromHome(TeslaVehicle teslaVehicle) throws Exception {
+		DriveState driveState = teslaVehicle.getVehicleDriveState();
+		if (driveState == null || driveState.getLatitude() == null || driveState.getLongitude() == null)
+			return null;
+		return teslaVehicle.getHomePosition().distanceFrom(driveState.getLatitude(), driveState.getLongitude());
+	}
+
+	/**
+	 * Stops charging unless it has been stopped already
+	 */
+	public void stopCharging(CommandedState commandedState) throws Exception {
+		if (!Boolean.FALSE.equals(commandedState.isCharging())) {
 			String reason = teslaCharge.stopCharging();
 			if (reason != null) {
 				System.out.println("stop charging failed. Reason: " + reason);
@@ -132,4 +216,24 @@ public class ChargeCalculation {
 		int power = calculate1AmpPower(chargeState) * chargeState.getCharger_actual_current();
 		return power;
 	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	@Getter
+	public static class Result {
+
+		// the charging power in watts, null if the charging has not been adapted
+		private Integer watts;
+
+		// why the charging has not been adapted
+		private String reason;
+
+		// true if the reason is an error and not the state of the car
+		private boolean failed;
+
+		// a problem which did not prevent the calculation, may be null
+		private String warning;
+
+	}
+
 }
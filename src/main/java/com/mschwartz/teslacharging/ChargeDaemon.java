@@ -0,0 +1,177 @@
+package com.mschwartz.teslacharging;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.mschwartz.teslacharging.surplus.SurplusSource;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle;
+import com.mschwartz.teslacharging.tesla.VehicleDataDecoder;
+
+/**
+ * Keeps the tesla objects alive and runs the charge calculation periodically.
+ * This avoids starting a new JVM (and re-reading the configuration, creating a
+ * new connection to the tesla servers etc.) for each calculation so the
+ * charging speed can be adapted every 30-60 seconds even on small devices like
+ * a Raspberry Pi.
+ *
+ * The power surplus is read from a {@link SurplusSource} at the beginning of
+ * each cycle. If the source does not provide a value the cycle is skipped.
+ * Without a source no periodic calculation takes place, the calculation is
+ * then only triggered from outside.
+ *
+ * @author Mike
+ *
+ */
+public class ChargeDaemon {
+
+	static final Logger logger = LogManager.getLogger(ChargeDaemon.class);
+
+	private TeslaVehicle teslaVehicle;
+
+	private ChargeCalculation chargeCalculation;
+
+	private SurplusSource surplusSource;
+
+	private int pollIntervalSeconds;
+
+	private ScheduledExecutorService scheduler;
+
+	// compacts the charge history apart from the calculation
+	private ScheduledExecutorService historyScheduler;
+
+	public ChargeDaemon(TeslaVehicle teslaVehicle, ChargeCalculation chargeCalculation, SurplusSource surplusSource,
+			int pollIntervalSeconds) {
+		this.teslaVehicle = teslaVehicle;
+		this.chargeCalculation = chargeCalculation;
+		this.surplusSource = surplusSource;
+		this.pollIntervalSeconds = pollIntervalSeconds;
+	}
+
+	/**
+	 * Starts the periodic charge calculation. The first calculation is executed
+	 * immediately.
+	 */
+	public synchronized void start() {
+		if (scheduler != null)
+			return;
+		logger.info("Starting daemon, calculating every " + pollIntervalSeconds + " seconds");
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "ChargeDaemon");
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (surplusSource != null)
+			scheduler.scheduleWithFixedDelay(this::runCycleSafely, 0, pollIntervalSeconds, TimeUnit.SECONDS);
+		if (teslaVehicle.getRecorder() != null) {
+			historyScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "ChargeHistory");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			});
+			// does nothing unless a segment has been started
+			historyScheduler.scheduleWithFixedDelay(this::compactHistorySafely, pollIntervalSeconds,
+					pollIntervalSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Stops the periodic charge calculation. A calculation currently running will
+	 * be finished.
+	 */
+	public synchronized void stop() {
+		if (scheduler == null)
+			return;
+		logger.info("Stopping daemon");
+		scheduler.shutdown();
+		if (historyScheduler != null)
+			historyScheduler.shutdown();
+	}
+
+	/**
+	 * Blocks until the daemon has been stopped.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void join() throws InterruptedException {
+		ScheduledExecutorService s;
+		synchronized (this) {
+			s = scheduler;
+		}
+		if (s != null)
+			s.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	private void runCycleSafely() {
+		try {
+			runCycle();
+		} catch (Exception e) {
+			// never let an exception kill the scheduler
+			logger.error("Charge calculation failed", e);
+		}
+	}
+
+	private void compactHistorySafely() {
+		try {
+			teslaVehicle.getRecorder().compact();
+		} catch (RuntimeException e) {
+			logger.error("Compacting the charge history failed", e);
+		}
+	}
+
+	/**
+	 * Executes one charge calculation with the current power surplus.
+	 *
+	 * @return the charging power in watts or <code>null</code> if the charging has
+	 *         not been adapted
+	 * @throws Exception
+	 */
+	public Integer runCycle() throws Exception {
+		if (surplusSource == null)
+			return null;
+		Integer power = surplusSource.getSurplus();
+		if (power == null) {
+			logger.info("No power surplus available, skipping calculation");
+			return null;
+		}
+		return runCycle(power);
+	}
+
+	/**
+	 * Executes one charge calculation with the given power surplus. Calculations
+	 * are serialized on the {@link ChargeCalculation} so that a value pushed by the
+	 * smart home does not interfere with the periodic calculation.
+	 *
+	 * @param power the power surplus in watts
+	 * @return the charging power in watts or <code>null</code> if the charging has
+	 *         not been adapted
+	 * @throws Exception
+	 */
+	public Integer runCycle(int power) throws Exception {
+		synchronized (chargeCalculation) {
+			return calculate(power);
+		}
+	}
+
+	private Integer calculate(int power) throws Exception {
+		ChargeCalculation.Result result = chargeCalculation.calculate(teslaVehicle, power);
+		if (result.getWarning() != null)
+			logger.warn(result.getWarning());
+		if (result.getWatts() == null) {
+			if (result.isFailed())
+				logger.warn(result.getReason());
+			else
+				logger.info(result.getReason());
+			return null;
+		}
+		logger.info("Charge state is " + teslaVehicle.getDataAgeMillis(VehicleDataDecoder.CHARGE_STATE) / 1000
+				+ " seconds old");
+		logger.info("Charging power (watts): " + result.getWatts());
+		return result.getWatts();
+	}
+
+}
@@ -0,0 +1,143 @@
+package com.mschwartz.teslacharging;
+
+import java.io.PrintStream;
+
+import com.mschwartz.teslacharging.tesla.TeslaCharge;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.ChargeState;
+import com.mschwartz.teslacharging.tesla.WakeStatistics;
+
+import net.sourceforge.argparse4j.inf.Namespace;
+
+/**
+ * Executes the commands given at the commandline. Used directly by
+ * {@link TeslaCharging} or by a resident daemon for commands forwarded from a
+ * thin commandline client.
+ *
+ * @author Mike
+ *
+ */
+public class CommandExecutor {
+
+	private TeslaVehicle teslaVehicle;
+
+	private TeslaCharge teslaCharge;
+
+	private ChargeCalculation chargeCalculation;
+
+	public CommandExecutor(TeslaVehicle teslaVehicle, TeslaCharge teslaCharge, ChargeCalculation chargeCalculation) {
+		this.teslaVehicle = teslaVehicle;
+		this.teslaCharge = teslaCharge;
+		this.chargeCalculation = chargeCalculation;
+	}
+
+	/**
+	 * Checks if the given arguments contain a command which can be executed by
+	 * this class.
+	 */
+	public static boolean isCommand(Namespace ns) {
+		return ns.getString("charge") != null || ns.getString("chargeport") != null
+				|| ns.getString("chargelimit") != null || ns.getString("chargingamps") != null
+				|| ns.getString("info") != null || ns.getString("chargecalculation") != null
+				|| ns.getString("wakeup") != null;
+	}
+
+	/**
+	 * Executes the command given in the arguments
+	 *
+	 * @param ns  the parsed commandline arguments
+	 * @param out receives the messages for the user
+	 * @return the exit code, 0 if the command was successful
+	 * @throws Exception
+	 */
+	public int execute(Namespace ns, PrintStream out) throws Exception {
+		if (ns.getString("charge") != null && ns.getString("charge").equalsIgnoreCase("start")) {
+			String result = teslaCharge.startCharging();
+			if (result != null) {
+				out.println("Start charging failed. Reason: " + result);
+				return 1;
+			} else {
+				out.println("Start charging successful");
+			}
+		} else if (ns.getString("charge") != null && ns.getString("charge").equalsIgnoreCase("stop")) {
+			String result = teslaCharge.stopCharging();
+			if (result != null) {
+				out.println("Stop charging failed. Reason: " + result);
+				return 1;
+			} else {
+				out.println("Stop charging successful");
+			}
+		} else if (ns.getString("chargeport") != null && ns.getString("chargeport").equalsIgnoreCase("open")) {
+			String result = teslaCharge.chargePortOpen();
+			if (result != null) {
+				out.println("Charge port door open failed. Reason: " + result);
+				return 1;
+			} else {
+				out.println("Charge port door open successful");
+			}
+		} else if (ns.getString("chargeport") != null && ns.getString("chargeport").equalsIgnoreCase("close")) {
+			String result = teslaCharge.chargePortClose();
+			if (result != null) {
+				out.println("Charge port door close failed. Reason: " + result);
+				return 1;
+			} else {
+				out.println("Charge port door close successful");
+			}
+		} else if (ns.getString("chargelimit") != null) {
+			String result = teslaCharge.setChargeLimit(ns.getInt("chargelimit"));
+			if (result != null) {
+				out.println("Setting charge limit to " + ns.getInt("chargelimit") + " failed. Reason: " + result);
+				return 1;
+			} else {
+				out.println("Setting charge limit successful");
+			}
+		} else if (ns.getString("chargingamps") != null) {
+			String result = teslaCharge.setChargingAmps(ns.getInt("chargingamps"));
+			if (result != null) {
+				out.println("Setting charging amps to " + ns.getInt("chargingamps") + " failed. Reason: " + result);
+				return 1;
+			} else {
+				out.println("Setting charging amps successful");
+			}
+		} else if (ns.getString("info") != null && ns.getString("info").equalsIgnoreCase("charge")) {
+			ChargeState result = teslaVehicle.getVehicleChargeState();
+			if (result != null) {
+				out.println(result);
+			} else {
+				out.println("getting charge state failed");
+				return 1;
+			}
+		} else if (ns.getString("info") != null && ns.getString("info").equalsIgnoreCase("stats")) {
+			WakeStatistics wakeStatistics = teslaVehicle.getWakeStatistics();
+			out.println("Wake-ups: " + wakeStatistics.getWakeUps() + ", awake minutes: "
+					+ wakeStatistics.getAwakeMinutes() + ", observed minutes: " + wakeStatistics.getObservedMinutes());
+			out.println("Remaining request budget: " + teslaVehicle.getRemainingRequestBudget());
+		} else if (ns.getString("chargecalculation") != null) {
+			// do not interfere with the calculation of a running daemon
+			synchronized (chargeCalculation) {
+				return chargeCalculation(ns.getInt("chargecalculation"), out);
+			}
+		} else if (ns.getString("wakeup") != null) {
+			boolean ok = teslaVehicle.wakeUpVehicle();
+			if (ok) {
+				out.println("Tesla is now awake");
+			} else {
+				out.println("Tesla is still sleeping");
+			}
+		}
+		return 0;
+	}
+
+	private int chargeCalculation(int power, PrintStream out) throws Exception {
+		ChargeCalculation.Result result = chargeCalculation.calculate(teslaVehicle, power);
+		if (result.getWarning() != null)
+			out.println(result.getWarning());
+		if (result.getWatts() == null) {
+			out.println(result.getReason());
+			return 1;
+		}
+		out.println("Charging power (watts): " + result.getWatts());
+		return 0;
+	}
+
+}
@@ -0,0 +1,288 @@
+package com.mschwartz.teslacharging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Clock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.mschwartz.teslacharging.tesla.CommandedState;
+import com.mschwartz.teslacharging.tesla.TeslaCharge;
+import com.mschwartz.teslacharging.tesla.TeslaConfiguration;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.ChargeState;
+import com.mschwartz.teslacharging.web.RestRequest;
+
+import lombok.Setter;
+
+/**
+ * Stateful alternative to the direct mapping of the surplus to amps in
+ * {@link ChargeCalculation}. A passing cloud should not lead to a command.
+ *
+ * <ul>
+ * <li>The power surplus is smoothed with an exponentially weighted moving
+ * average (time constant <code>smoothingSeconds</code>).</li>
+ * <li>A proportional-integral controller (velocity form) moves the charging amps
+ * so that the smoothed surplus becomes zero.</li>
+ * <li>The amps are only changed if they differ by at least
+ * <code>deadBandAmps</code> from the amps requested last. The controller keeps
+ * integrating in between so that a lasting difference still leads to a
+ * change.</li>
+ * <li>Charging is started or stopped only after it has been stopped or started
+ * for <code>minOffSeconds</code> respectively <code>minOnSeconds</code>.</li>
+ * <li>If the smoothed grid import exceeds <code>maxGridImportWatts</code> the
+ * amps are reduced (or charging stopped) at once, ignoring the dead-band and the
+ * dwell time.</li>
+ * </ul>
+ *
+ * The state is kept in a small json file next to the property file so that
+ * invocations from cron continue where the previous one stopped.
+ *
+ * @author Mike
+ *
+ */
+public class PiChargeController {
+
+	static final Logger logger = LogManager.getLogger(PiChargeController.class);
+
+	// state older than this is discarded, the surplus may have changed completely
+	static final long RESET_MILLIS = 30 * 60 * 1000;
+
+	private static final Gson gson = RestRequest.getGson();
+
+	private TeslaCharge teslaCharge;
+
+	// may be null, then the state is only kept in memory
+	private File stateFile;
+
+	private State state;
+
+	@Setter
+	private int smoothingSeconds = 300;
+
+	@Setter
+	private int gainPercent = 50;
+
+	@Setter
+	private int integralSeconds = 300;
+
+	@Setter
+	private int deadBandAmps = 2;
+
+	@Setter
+	private int minOnSeconds = 600, minOffSeconds = 600;
+
+	@Setter
+	private int maxGridImportWatts = 500;
+
+	// the simulation replaces the clock
+	@Setter
+	private Clock clock = Clock.systemUTC();
+
+	public PiChargeController(TeslaCharge teslaCharge, File stateFile) {
+		this.teslaCharge = teslaCharge;
+		this.stateFile = stateFile;
+		state = load(stateFile);
+	}
+
+	/**
+	 * Changes the charging amps/status of the car if the smoothed power surplus
+	 * requires it.
+	 *
+	 * @param commandedState the state commanded last, already reconciled with the
+	 *                       charge state
+	 * @param powerSurplus   positive values indicate that we are producing more
+	 *                       power than needed (including the car)
+	 * @param power1Amp      the power in watts consumed by one amp
+	 * @param minAmps        the minimum amps to charge with
+	 * @return the charging power in watts
+	 * @throws Exception
+	 */
+	public synchronized int adaptCharging(ChargeState chargeState, CommandedState commandedState, int powerSurplus,
+			int power1Amp, int minAmps) throws Exception {
+		long now = clock.millis();
+		boolean charging = Boolean.TRUE.equals(commandedState.isCharging());
+		int requested = commandedState.getChargingAmps() != null ? commandedState.getChargingAmps()
+				: chargeState.getCharge_current_request();
+		int maxAmps = chargeState.getCharge_current_request_max() > 0
+				? Math.min(32, chargeState.getCharge_current_request_max())
+				: 32;
+		// surplus in amps, positive: we could charge with more amps
+		double error = (double) powerSurplus / power1Amp;
+
+		if (state.updated == 0 || now - state.updated > RESET_MILLIS || state.charging != charging) {
+			if (state.updated != 0 && state.charging != charging) {
+				logger.info("Charging has been " + (charging ? "started" : "stopped") + " from outside");
+				state.lastSwitch = now;
+			}
+			state.filtered = error;
+			state.output = charging ? requested : error;
+			state.charging = charging;
+		} else {
+			double dt = (now - state.updated) / 1000.0;
+			double previous = state.filtered;
+			state.filtered += (1 - Math.exp(-dt / smoothingSeconds)) * (error - state.filtered);
+			if (charging) {
+				double gain = gainPercent / 100.0;
+				state.output += gain * (state.filtered - previous) + gain * dt / integralSeconds * state.filtered;
+			} else {
+				// the car does not consume anything, the surplus are the amps available
+				state.output = state.filtered;
+			}
+		}
+		state.output = Math.max(0, Math.min(maxAmps, state.output));
+		state.updated = now;
+		boolean importing = state.filtered * power1Amp < -maxGridImportWatts;
+		logger.info("Smoothed surplus {} watts, controller output {} amps", Math.round(state.filtered * power1Amp),
+				Math.round(state.output * 10) / 10.0);
+
+		try {
+			if (charging)
+				return whileCharging(requested, importing, now, power1Amp, minAmps);
+			return whileStopped(chargeState, requested, importing, now, power1Amp, minAmps);
+		} finally {
+			save();
+		}
+	}
+
+	private int whileCharging(int requested, boolean importing, long now, int power1Amp, int minAmps)
+			throws Exception {
+		boolean dwelled = now - state.lastSwitch >= minOnSeconds * 1000L;
+		if (state.output < minAmps - 0.5) {
+			if (dwelled || importing) {
+				logger.info("Producing too less power to charge the car with at least {} amps", minAmps);
+				String reason = teslaCharge.stopCharging();
+				if (reason != null) {
+					System.out.println("stop charging failed. Reason: " + reason);
+					return requested * power1Amp;
+				}
+				switched(false, requested);
+				return 0;
+			}
+			logger.info("Keep charging for at least {} seconds", minOnSeconds);
+			return setAmps(minAmps, requested, true, power1Amp);
+		}
+		int amps = (int) Math.round(state.output);
+		if (importing) {
+			// reduce at once so that the import gets within the bound again
+			int excess = (int) Math.ceil((-state.filtered * power1Amp - maxGridImportWatts) / power1Amp);
+			amps = Math.max(minAmps, Math.min(amps, requested - excess));
+			state.output = Math.min(state.output, amps);
+			return setAmps(amps, requested, amps < requested, power1Amp);
+		}
+		return setAmps(amps, requested, false, power1Amp);
+	}
+
+	private int whileStopped(ChargeState chargeState, int requested, boolean importing, long now, int power1Amp,
+			int minAmps) throws Exception {
+		boolean dwelled = now - state.lastSwitch >= minOffSeconds * 1000L;
+		// start only with a little margin so that it does not stop again at once
+		if (state.output < minAmps + 0.5 || importing)
+			return 0;
+		if ("Complete".equals(chargeState.getCharging_state())) {
+			// the car would refuse to start
+			logger.info("Charge limit reached");
+			return 0;
+		}
+		if (!dwelled) {
+			logger.info("Enough power to charge but charging has been stopped less than {} seconds ago", minOffSeconds);
+			return 0;
+		}
+		int amps = (int) Math.round(state.output);
+		logger.info("Start charging with {} amps", amps);
+		if (amps != requested) {
+			String reason = teslaCharge.setChargingAmps(amps);
+			if (reason != null) {
+				System.out.println("Set charging amps to " + amps + " amps failed. Reason: " + reason);
+				return 0;
+			}
+		}
+		String reason = teslaCharge.startCharging();
+		if (reason != null) {
+			System.out.println("Start charging failed. Reason: " + reason);
+			return 0;
+		}
+		switched(true, amps);
+		return amps * power1Amp;
+	}
+
+	/**
+	 *
+	 * @param force <code>true</code> to ignore the dead-band
+	 * @return the charging power in watts
+	 */
+	private int setAmps(int amps, int requested, boolean force, int power1Amp) throws Exception {
+		if (amps == requested || (!force && Math.abs(amps - requested) < deadBandAmps)) {
+			logger.info("No change needed");
+			return requested * power1Amp;
+		}
+		logger.info("Charging with {} amps", amps);
+		String reason = teslaCharge.setChargingAmps(amps);
+		if (reason != null) {
+			System.out.println("Set charging amps to " + amps + " amps failed. Reason: " + reason);
+			return requested * power1Amp;
+		}
+		return amps * power1Amp;
+	}
+
+	/**
+	 * Adapts the state to the changed consumption of the car so that the switch
+	 * itself does not look like a change of the surplus (bumpless transfer).
+	 *
+	 * @param amps the amps the car consumes when charging
+	 */
+	private void switched(boolean charging, int amps) {
+		state.charging = charging;
+		state.lastSwitch = clock.millis();
+		state.filtered += charging ? -amps : amps;
+		state.output = charging ? amps : state.filtered;
+	}
+
+	private static State load(File file) {
+		if (file != null && file.exists()) {
+			try {
+				State state = gson.fromJson(Files.readString(file.toPath(), StandardCharsets.UTF_8), State.class);
+				if (state != null)
+					return state;
+			} catch (IOException | JsonParseException e) {
+				logger.warn("Ignoring invalid controller state " + file, e);
+			}
+		}
+		return new State();
+	}
+
+	private void save() {
+		if (stateFile == null)
+			return;
+		try {
+			TeslaConfiguration.replaceFile(stateFile, gson.toJson(state).getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			logger.warn("Cannot save the controller state to " + stateFile, e);
+		}
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	static class State {
+
+		// smoothed surplus in amps
+		double filtered;
+
+		// the amps the car should charge with
+		double output;
+
+		// time of the last calculation in millis
+		long updated;
+
+		boolean charging;
+
+		// time charging has been started or stopped last in millis
+		long lastSwitch;
+
+	}
+
+}
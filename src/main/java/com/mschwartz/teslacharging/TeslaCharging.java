@@ -16,7 +16,10 @@
 
 package com.mschwartz.teslacharging;
 
-import java.text.DecimalFormat;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -24,18 +27,36 @@ import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 
+import com.mschwartz.teslacharging.history.ChargeHistory;
+import com.mschwartz.teslacharging.history.ChargeRecorder;
+import com.mschwartz.teslacharging.history.ChargeReport;
+import com.mschwartz.teslacharging.history.ChargeRollups;
+import com.mschwartz.teslacharging.server.CommandClient;
+import com.mschwartz.teslacharging.server.CommandServer;
+import com.mschwartz.teslacharging.server.ControlServer;
+import com.mschwartz.teslacharging.simulation.ParameterSweep;
+import com.mschwartz.teslacharging.simulation.Simulation;
+import com.mschwartz.teslacharging.simulation.SimulationParameters;
+import com.mschwartz.teslacharging.simulation.SurplusCurve;
+import com.mschwartz.teslacharging.surplus.FileSurplusSource;
+import com.mschwartz.teslacharging.surplus.ModbusSurplusStream;
+import com.mschwartz.teslacharging.surplus.PushSurplusSource;
+import com.mschwartz.teslacharging.surplus.SurplusSource;
+import com.mschwartz.teslacharging.surplus.SurplusStream;
+import com.mschwartz.teslacharging.surplus.WindowedSurplusSource;
 import com.mschwartz.teslacharging.tesla.TeslaAuth;
 import com.mschwartz.teslacharging.tesla.TeslaCharge;
 import com.mschwartz.teslacharging.tesla.TeslaConfiguration;
 import com.mschwartz.teslacharging.tesla.TeslaCreateAuth;
 import com.mschwartz.teslacharging.tesla.TeslaCreateAuth.TokenResponse;
 import com.mschwartz.teslacharging.tesla.TeslaVehicle;
-import com.mschwartz.teslacharging.tesla.TeslaVehicle.ChargeState;
-import com.mschwartz.teslacharging.tesla.TeslaVehicle.DriveState;
 import com.mschwartz.teslacharging.web.AuthRestRequest;
+import com.mschwartz.teslacharging.web.CircuitBreaker;
 import com.mschwartz.teslacharging.web.RestRequest;
+import com.mschwartz.teslacharging.web.RetryPolicy;
 
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.impl.choice.RangeArgumentChoice;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
@@ -48,6 +69,9 @@ public class TeslaCharging {
 
 	static final Logger logger = LogManager.getLogger(TeslaCharging.class);
 
+	// the simulation works with the surplus of every minute
+	static final long SIMULATION_STEP_MILLIS = 60 * 1000;
+
 	public static void main(String[] args) throws Exception {
 		// System.exit is common for Batch applications since the exit code can be used
 		// to
@@ -71,12 +95,27 @@ public class TeslaCharging {
 				.help("Sets the charging limit");
 		parser.addArgument("-m", "--chargingamps").type(Integer.class).choices(new RangeArgumentChoice<Integer>(3, 32))
 				.help("Sets the charging amps");
-		parser.addArgument("-i", "--info").choices("charge").type(String.class).help("Gets the charge state");
+		parser.addArgument("-i", "--info").choices("charge", "stats").type(String.class)
+				.help("Gets the charge state or the number of wake-ups caused by this program");
 		parser.addArgument("-g", "--chargecalculation").type(Integer.class).help(
 				"Calculates the charging amps based on the given power surplus in watts. Do not call it more often than every 5-15 minutes");
 		parser.addArgument("-f", "--propertyfile").type(String.class)
 				.help("name and location of the propertyfile. Default is app.properties");
 		parser.addArgument("-w", "--wakeup").type(String.class).help("Wakeup a sleeping tesla");
+		parser.addArgument("-d", "--daemon").action(Arguments.storeTrue()).help(
+				"Keeps running and calculates the charging amps every POLL_INTERVAL_SECONDS based on the power surplus read from --surplusfile. Other invocations forward their commands to this process");
+		parser.addArgument("-s", "--surplusfile").type(String.class)
+				.help("File containing the current power surplus in watts. Default is SURPLUS_FILE from the propertyfile");
+		parser.addArgument("-u", "--surplusstream").type(String.class).help(
+				"Continuous stream of power surplus samples used with --daemon: stdin, udp:[address:]port, tail:file or modbus:host[:port]. Default is SURPLUS_STREAM from the propertyfile");
+		parser.addArgument("-t", "--httpport").type(Integer.class).help(
+				"Port of the local http control server started with --daemon. Default is HTTP_PORT from the propertyfile");
+		parser.addArgument("--report").choices(ChargeReport.PERIODS).type(String.class)
+				.help("Prints the energy charged and the part covered by the surplus from the recorded history");
+		parser.addArgument("--simulate").choices("synthetic", "history").type(String.class).help(
+				"Replays a synthetic year or the recorded history with every combination of --sweep and prints the grid import, solar share and commands of each");
+		parser.addArgument("--sweep").type(String.class).setDefault(ParameterSweep.DEFAULT_SWEEP).help(
+				"Settings varied by --simulate as name=value[,value...] separated by blanks: controller, minamps, interval, smoothing, deadband, maximport, minon, minoff");
 
 		Namespace ns = null;
 		try {
@@ -86,9 +125,57 @@ public class TeslaCharging {
 			System.exit(1);
 		}
 
+		String propertiesFile = ns.getString("propertyfile") != null ? ns.getString("propertyfile") : "app.properties";
+		if (CommandExecutor.isCommand(ns)) {
+			// let the resident process execute the command if there is one
+			Integer exitCode = new CommandClient(CommandServer.portFile(propertiesFile)).forward(ns, System.out);
+			if (exitCode != null) {
+				if (exitCode != 0)
+					System.exit(exitCode);
+				return;
+			}
+		}
+
 		RestRequest restRequest = new RestRequest();
-		TeslaConfiguration teslaConfiguration = new TeslaConfiguration(
-				ns.getString("propertyfile") != null ? ns.getString("propertyfile") : "app.properties");
+		TeslaConfiguration teslaConfiguration = new TeslaConfiguration(propertiesFile);
+
+		if (ns.getString("report") != null) {
+			ChargeRollups rollups = new ChargeRollups(teslaConfiguration.getHistoryDir());
+			try {
+				new ChargeReport(rollups, ZoneId.systemDefault()).print(ns.getString("report"), System.out);
+			} finally {
+				rollups.close();
+			}
+			return;
+		}
+
+		if (ns.getString("simulate") != null) {
+			SurplusCurve curve;
+			if (ns.getString("simulate").equals("history")) {
+				curve = SurplusCurve.fromHistory(new ChargeHistory(teslaConfiguration.getHistoryDir()), 0,
+						Long.MAX_VALUE, SIMULATION_STEP_MILLIS);
+				if (curve == null) {
+					System.out.println("The history does not contain a power surplus");
+					System.exit(1);
+				}
+			} else {
+				long start = LocalDate.now(ZoneOffset.UTC).withDayOfYear(1).atStartOfDay().toInstant(ZoneOffset.UTC)
+						.toEpochMilli();
+				curve = SurplusCurve.synthetic(start, 365, SIMULATION_STEP_MILLIS, 8000, 1);
+			}
+			List<SimulationParameters> parameters;
+			try {
+				parameters = SimulationParameters.sweep(ns.getString("sweep"));
+			} catch (IllegalArgumentException e) {
+				System.out.println(e.getMessage());
+				System.exit(1);
+				return;
+			}
+			System.out.println("Simulating " + parameters.size() + " combinations over " + curve.size()
+					+ " minutes of surplus");
+			ParameterSweep.print(new ParameterSweep(new Simulation(curve), parameters).run(), System.out);
+			return;
+		}
 
 		try {
 			TeslaAuth teslaAuth = new TeslaAuth(restRequest, teslaConfiguration);
@@ -114,7 +201,8 @@ public class TeslaCharging {
 			TeslaCreateAuth teslaCreateAuth = new TeslaCreateAuth(restRequest);
 			teslaCreateAuth.setCodeVerifier(ns.getString("verifier"));
 			TokenResponse response = teslaCreateAuth.retrieveTokens(ns.getString("code"));
-			teslaConfiguration.updateTokens(response.access_token, response.refresh_token);
+			teslaConfiguration.updateTokens(response.access_token, response.refresh_token,
+					TeslaAuth.toExpiresAt(response.expires_in) / 1000);
 			System.out.println("Congratulations. The tokens are now stored for future use");
 			return;
 //		} else if (ns.getString("auth") != null && ns.getString("auth").equalsIgnoreCase("all")) {
@@ -132,109 +220,127 @@ public class TeslaCharging {
 		}
 
 		TeslaAuth teslaAuth = new TeslaAuth(restRequest, teslaConfiguration);
-		teslaAuth = new TeslaAuth(restRequest, teslaConfiguration);
 		AuthRestRequest authRestRequest = new AuthRestRequest(restRequest, teslaAuth);
+		authRestRequest.setRateLimits(teslaConfiguration.readAccountRequestsPerMinute(),
+				teslaConfiguration.readVehicleRequestsPerMinute());
+		long retryIntervalMillis = teslaConfiguration.readRetryIntervalSeconds() * 1000L;
+		authRestRequest.setReadRetryPolicy(
+				new RetryPolicy(teslaConfiguration.readMaxRetries(), 500, retryIntervalMillis, true));
+		authRestRequest.setCommandRetryPolicy(
+				new RetryPolicy(teslaConfiguration.readCommandMaxRetries(), 500, retryIntervalMillis, false));
+		authRestRequest.setCircuitBreaker(new CircuitBreaker("owner-api",
+				teslaConfiguration.readCircuitFailureThreshold(), teslaConfiguration.readCircuitOpenSeconds() * 1000L));
 
 		TeslaVehicle teslaVehicle = new TeslaVehicle(authRestRequest, teslaConfiguration);
 		TeslaCharge teslaCharge = new TeslaCharge(authRestRequest, teslaVehicle, teslaConfiguration);
+		ChargeRecorder recorder = null;
+		if (teslaConfiguration.readRecordHistory()) {
+			recorder = new ChargeRecorder(teslaConfiguration.getHistoryDir());
+			recorder.setCommandedState(teslaCharge.getCommandedState());
+			recorder.setArchiveAfterDays(teslaConfiguration.readArchiveAfterDays());
+			teslaVehicle.setRecorder(recorder);
+			teslaCharge.setRecorder(recorder);
+		}
 
-		if (ns.getString("charge") != null && ns.getString("charge").equalsIgnoreCase("start")) {
-			String result = teslaCharge.startCharging();
-			if (result != null) {
-				System.out.println("Start charging failed. Reason: " + result);
-				System.exit(1);
-			} else {
-				System.out.println("Start charging successful");
-			}
-		} else if (ns.getString("charge") != null && ns.getString("charge").equalsIgnoreCase("stop")) {
-			String result = teslaCharge.stopCharging();
-			if (result != null) {
-				System.out.println("Stop charging failed. Reason: " + result);
-				System.exit(1);
-			} else {
-				System.out.println("Stop charging successful");
-			}
-		} else if (ns.getString("chargeport") != null && ns.getString("chargeport").equalsIgnoreCase("open")) {
-			String result = teslaCharge.chargePortOpen();
-			if (result != null) {
-				System.out.println("Charge port door open failed. Reason: " + result);
-				System.exit(1);
-			} else {
-				System.out.println("Charge port door open successful");
-			}
-		} else if (ns.getString("chargeport") != null && ns.getString("chargeport").equalsIgnoreCase("close")) {
-			String result = teslaCharge.chargePortClose();
-			if (result != null) {
-				System.out.println("Charge port door close failed. Reason: " + result);
-				System.exit(1);
-			} else {
-				System.out.println("Charge port door close successful");
-			}
-		} else if (ns.getString("chargelimit") != null) {
-			String result = teslaCharge.setChargeLimit(ns.getInt("chargelimit"));
-			if (result != null) {
-				System.out
-						.println("Setting charge limit to " + ns.getInt("chargelimit") + " failed. Reason: " + result);
-				System.exit(1);
-			} else {
-				System.out.println("Setting charge limit successful");
-			}
-		} else if (ns.getString("chargingamps") != null) {
-			String result = teslaCharge.setChargingAmps(ns.getInt("chargingamps"));
-			if (result != null) {
-				System.out.println(
-						"Setting charging amps to " + ns.getInt("chargingamps") + " failed. Reason: " + result);
-				System.exit(1);
-			} else {
-				System.out.println("Setting charging amps successful");
-			}
-		} else if (ns.getString("info") != null && ns.getString("info").equalsIgnoreCase("charge")) {
-			ChargeState result = teslaVehicle.getVehicleChargeState();
-			if (result != null) {
-				System.out.println(result);
+		ChargeCalculation chargeCalculation = new ChargeCalculation(teslaCharge);
+		if ("pi".equalsIgnoreCase(teslaConfiguration.readChargeController())) {
+			PiChargeController controller = new PiChargeController(teslaCharge,
+					teslaConfiguration.getControllerStateFile());
+			controller.setSmoothingSeconds(teslaConfiguration.readSurplusSmoothingSeconds());
+			controller.setGainPercent(teslaConfiguration.readControllerGainPercent());
+			controller.setIntegralSeconds(teslaConfiguration.readControllerIntegralSeconds());
+			controller.setDeadBandAmps(teslaConfiguration.readDeadBandAmps());
+			controller.setMinOnSeconds(teslaConfiguration.readMinOnSeconds());
+			controller.setMinOffSeconds(teslaConfiguration.readMinOffSeconds());
+			controller.setMaxGridImportWatts(teslaConfiguration.readMaxGridImportWatts());
+			chargeCalculation.setController(controller);
+		}
+		if (ns.getBoolean("daemon")) {
+			String surplusFile = ns.getString("surplusfile") != null ? ns.getString("surplusfile")
+					: teslaConfiguration.readSurplusFile();
+			String surplusStreamSpec = ns.getString("surplusstream") != null ? ns.getString("surplusstream")
+					: teslaConfiguration.readSurplusStream();
+			int httpPort = ns.getInt("httpport") != null ? ns.getInt("httpport") : teslaConfiguration.readHttpPort();
+			int pollIntervalSeconds = teslaConfiguration.readPollIntervalSeconds();
+			WindowedSurplusSource windowedSurplusSource = surplusStreamSpec == null ? null
+					: new WindowedSurplusSource(teslaConfiguration.readSurplusWindowSeconds(),
+							teslaConfiguration.readSurplusAggregate());
+			SurplusStream surplusStream = surplusStreamSpec == null ? null
+					: createSurplusStream(surplusStreamSpec, windowedSurplusSource, teslaConfiguration);
+			// values older than two cycles are outdated
+			SurplusSource surplusSource = null;
+			PushSurplusSource pushSurplusSource = null;
+			if (surplusStream != null) {
+				surplusSource = windowedSurplusSource;
+			} else if (surplusFile != null) {
+				surplusSource = new FileSurplusSource(surplusFile, 2 * pollIntervalSeconds);
+			} else if (httpPort != 0) {
+				pushSurplusSource = new PushSurplusSource(2 * pollIntervalSeconds);
+				surplusSource = pushSurplusSource;
 			} else {
-				System.out.println("getting charge state failed");
-				System.exit(1);
+				System.out.println("No surplus source given, only forwarded commands will be executed");
 			}
-		} else if (ns.getString("chargecalculation") != null) {
-
-			DriveState driveState = teslaVehicle.getVehicleDriveState();
-			if (driveState != null && driveState.getLatitude() != null && driveState.getLongitude() != null) {
-				double distance = teslaVehicle.getHomePosition().distanceFrom(driveState.getLatitude(),
-						driveState.getLongitude());
-				if (distance > 3) {
-					DecimalFormat df = new DecimalFormat("#,###.#");
-					System.out.println("Car is " + df.format(distance) + " miles away from home.");
-					System.exit(1);
-				}
-			} else {
-				System.out.println("getting drive state failed, cannot determine the position of the car");
-				//System.exit(1);
+			ChargeDaemon daemon = new ChargeDaemon(teslaVehicle, chargeCalculation, surplusSource, pollIntervalSeconds);
+			String httpToken = teslaConfiguration.readHttpToken();
+			if (httpPort != 0 && httpToken == null) {
+				httpToken = ControlServer.createToken();
+				teslaConfiguration.updateHttpToken(httpToken);
+				System.out.println("Created HTTP_TOKEN in " + propertiesFile
+						+ ", send it with each request as header Authorization: Bearer <token>");
 			}
-
-			ChargeState chargeState = teslaVehicle.getVehicleChargeState();
-			if (chargeState != null) {
-				if (chargeState.getCharging_state().equals("Disconnected")) {
-					System.out.println("Car is disconnected.");
-					System.exit(1);
-				}
-				int power = ns.getInt("chargecalculation");
-				ChargeCalculation calculation = new ChargeCalculation(teslaCharge);
-				int watts = calculation.adaptCharging(chargeState, power);
-				System.out.println("Charging power (watts): " + watts);
-			} else {
-				System.out.println("getting charge state failed");
-				System.exit(1);
+			ControlServer controlServer = new ControlServer(teslaVehicle, teslaCharge, daemon, pushSurplusSource,
+					httpToken);
+			CommandServer commandServer = new CommandServer(
+					new CommandExecutor(teslaVehicle, teslaCharge, chargeCalculation),
+					CommandServer.portFile(propertiesFile));
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				teslaAuth.stopBackgroundRefresh();
+				if (surplusStream != null)
+					surplusStream.stop();
+				commandServer.stop();
+				controlServer.stop();
+				daemon.stop();
+				if (teslaVehicle.getRecorder() != null)
+					teslaVehicle.getRecorder().close();
+			}));
+			teslaAuth.startBackgroundRefresh();
+			if (surplusStream != null)
+				surplusStream.start();
+			commandServer.start();
+			if (httpPort != 0) {
+				controlServer.start(httpPort);
 			}
-		} else if (ns.getString("wakeup") != null) {
-			boolean ok = teslaVehicle.wakeUpVehicle();
-			if (ok) {
-				System.out.println("Tesla is now awake");
-			} else {
-				System.out.println("Tesla is still sleeping");
+			daemon.start();
+			daemon.join();
+		} else {
+			// the process exits before a refresh in the background would complete
+			teslaVehicle.setMaxStalenessMillis(0);
+			int exitCode = new CommandExecutor(teslaVehicle, teslaCharge, chargeCalculation).execute(ns, System.out);
+			if (recorder != null) {
+				// the command has been executed, the car does not wait for this
+				recorder.compact();
+				recorder.close();
 			}
+			if (exitCode != 0)
+				System.exit(exitCode);
 		}
 
 	}
 
+	/**
+	 * 
+	 * @param spec stdin, udp:[address:]port, tail:file or modbus:host[:port]
+	 * @throws IllegalArgumentException if the spec or the modbus settings are
+	 *                                  invalid
+	 */
+	private static SurplusStream createSurplusStream(String spec, WindowedSurplusSource target,
+			TeslaConfiguration teslaConfiguration) {
+		if (spec.startsWith("modbus:"))
+			return ModbusSurplusStream.create(spec.substring("modbus:".length()),
+					teslaConfiguration.readModbusRegisters(), teslaConfiguration.readModbusWordsSwapped(),
+					teslaConfiguration.readModbusUnitId(), teslaConfiguration.readModbusFunction(),
+					teslaConfiguration.readModbusPollMillis(), target);
+		return SurplusStream.create(spec, target);
+	}
+
 }
@@ -0,0 +1,59 @@
+package com.mschwartz.teslacharging.history;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the values written by {@link BitWriter}
+ *
+ * @author Mike
+ *
+ */
+class BitReader {
+
+	private ByteBuffer buffer;
+
+	private int position, end;
+
+	// bits read from the buffer but not yet returned, left aligned
+	private long pending;
+
+	private int pendingBits;
+
+	/**
+	 * Reads from the buffer starting at offset
+	 */
+	void reset(ByteBuffer buffer, int offset, int length) {
+		this.buffer = buffer;
+		position = offset;
+		end = offset + length;
+		pending = 0;
+		pendingBits = 0;
+	}
+
+	boolean readBit() {
+		return readBits(1) != 0;
+	}
+
+	/**
+	 *
+	 * @param bits 0 - 64
+	 */
+	long readBits(int bits) {
+		long value = 0;
+		while (bits > 0) {
+			if (pendingBits == 0) {
+				if (position >= end)
+					throw new IllegalStateException("Column ends unexpectedly");
+				pending = (long) buffer.get(position++) << 56;
+				pendingBits = 8;
+			}
+			int n = Math.min(pendingBits, bits);
+			value = (value << n) | (pending >>> (64 - n));
+			pending <<= n;
+			pendingBits -= n;
+			bits -= n;
+		}
+		return value;
+	}
+
+}
@@ -0,0 +1,83 @@
+package com.mschwartz.teslacharging.history;
+
+import java.util.Arrays;
+
+/**
+ * Writes values bit by bit, most significant bit first. Used for the columns of
+ * the {@link ChargeArchive}.
+ *
+ * @author Mike
+ *
+ */
+class BitWriter {
+
+	private byte[] bytes = new byte[256];
+
+	private int length;
+
+	// bits not yet written to bytes, left aligned
+	private long pending;
+
+	private int pendingBits;
+
+	void reset() {
+		length = 0;
+		pending = 0;
+		pendingBits = 0;
+	}
+
+	void writeBit(boolean bit) {
+		writeBits(bit ? 1 : 0, 1);
+	}
+
+	/**
+	 * Writes the lowest bits of the value
+	 *
+	 * @param bits 0 - 64
+	 */
+	void writeBits(long value, int bits) {
+		while (bits > 0) {
+			int free = 64 - pendingBits;
+			int n = Math.min(free, bits);
+			long chunk = (value >>> (bits - n)) & (n == 64 ? -1L : (1L << n) - 1);
+			pending |= chunk << (free - n);
+			pendingBits += n;
+			bits -= n;
+			while (pendingBits >= 8) {
+				put((byte) (pending >>> 56));
+				pending <<= 8;
+				pendingBits -= 8;
+			}
+		}
+	}
+
+	private void put(byte b) {
+		if (length == bytes.length)
+			bytes = Arrays.copyOf(bytes, bytes.length * 2);
+		bytes[length++] = b;
+	}
+
+	/**
+	 * Pads the last byte with zeros
+	 */
+	void flush() {
+		if (pendingBits > 0) {
+			put((byte) (pending >>> 56));
+			pending = 0;
+			pendingBits = 0;
+		}
+	}
+
+	byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 *
+	 * @return the number of bytes written, call {@link #flush()} first
+	 */
+	int getLength() {
+		return length;
+	}
+
+}
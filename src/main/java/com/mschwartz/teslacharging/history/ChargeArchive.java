@@ -0,0 +1,535 @@
+package com.mschwartz.teslacharging.history;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32C;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.mschwartz.teslacharging.tesla.TeslaConfiguration;
+
+import lombok.Getter;
+
+/**
+ * Compressed long-term storage of the charging history. Old segments are
+ * compacted into an archive file each. An archive consists of blocks of up to
+ * {@link #BLOCK_SIZE} records. Within a block each field is stored as a column
+ * of its own:
+ *
+ * <ul>
+ * <li>the timestamps as delta of the deltas, a sample taken every minute needs
+ * a few bits</li>
+ * <li>position and range as XOR with the previous value (Gorilla), an unchanged
+ * value needs one bit</li>
+ * <li>all other fields as delta to the previous value, an unchanged value needs
+ * one bit</li>
+ * </ul>
+ *
+ * Each block starts with the minimum and maximum of every column so that a scan
+ * skips the blocks outside the time range or not matching a filter without
+ * decoding them.
+ *
+ * <pre>
+ * file:  magic int, version int, blocks
+ * block: length int (of the rest of the block), crc32c int (of the rest of the block), count int,
+ *        min and max of each column as doubles, length of each column int, columns
+ * </pre>
+ *
+ * @author Mike
+ *
+ */
+public class ChargeArchive {
+
+	private static final Logger logger = LogManager.getLogger(ChargeArchive.class);
+
+	static final int MAGIC = 0x54434131, VERSION = 1;
+
+	static final int BLOCK_SIZE = 1024;
+
+	static final String PREFIX = "archive-", SUFFIX = ".arc";
+
+	// the columns
+	public static final int TIMESTAMP = 0, LATITUDE = 1, LONGITUDE = 2, BATTERY_RANGE = 3, SURPLUS = 4,
+			BATTERY_LEVEL = 5, CHARGER_PHASES = 6, CHARGING_STATE = 7, COMMANDS = 8, CHARGER_ACTUAL_CURRENT = 9,
+			CHARGER_VOLTAGE = 10, CHARGER_POWER = 11, COMMANDED_AMPS = 12, COLUMNS = 13;
+
+	private static final int BLOCK_HEADER_SIZE = 4 + COLUMNS * 16 + COLUMNS * 4;
+
+	private ChargeArchive() {
+	}
+
+	static File file(File directory, long start) {
+		return new File(directory, PREFIX + String.format("%013d", start) + SUFFIX);
+	}
+
+	/**
+	 *
+	 * @return the archives in the directory, oldest first
+	 */
+	static File[] list(File directory) {
+		File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+		if (files == null)
+			return new File[0];
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 *
+	 * @return the time of the first record of the archive
+	 */
+	static long start(File archive) {
+		String name = archive.getName();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+
+	/**
+	 * Compacts all segments whose records are older than the given time into
+	 * archives. The segment being written is never compacted.
+	 *
+	 * @param before millis
+	 * @return the number of segments compacted
+	 * @throws IOException
+	 */
+	public static int compact(File directory, long before) throws IOException {
+		File[] segments = ChargeSegment.list(directory);
+		int compacted = 0;
+		// the records of a segment are older than the start of the next one
+		for (int i = 0; i + 1 < segments.length && ChargeSegment.start(segments[i + 1]) <= before; ++i) {
+			File archive = file(directory, ChargeSegment.start(segments[i]));
+			long size = write(segments[i], archive);
+			logger.info("Compacted " + segments[i] + " into " + archive + " (" + size + " bytes)");
+			Files.delete(segments[i].toPath());
+			++compacted;
+		}
+		return compacted;
+	}
+
+	/**
+	 * Writes the valid records of the segment into the archive. The archive is
+	 * written to a temporary file first and replaces an existing archive.
+	 *
+	 * @return the size of the archive
+	 */
+	static long write(File segment, File archive) throws IOException {
+		File tmpFile = new File(archive.getPath() + ".tmp");
+		// left over if writing was interrupted, possibly with other permissions
+		Files.deleteIfExists(tmpFile.toPath());
+		TeslaConfiguration.createPrivateFile(tmpFile);
+		Block block = new Block();
+		BlockEncoder encoder = new BlockEncoder();
+		try (FileOutputStream fos = new FileOutputStream(tmpFile);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			ByteBuffer buffer;
+			try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+				buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			}
+			if (!ChargeSegment.hasValidHeader(buffer))
+				throw new IOException("Invalid segment " + segment);
+			ByteBuffer view = buffer.duplicate();
+			CRC32C crc = new CRC32C();
+			ChargeRecord record = new ChargeRecord();
+			for (int position = ChargeSegment.HEADER_SIZE; ChargeSegment.isValid(buffer, view, position,
+					crc); position += ChargeRecord.SIZE) {
+				record.read(buffer, position);
+				block.add(record);
+				if (block.count == BLOCK_SIZE) {
+					encoder.write(block, out);
+					block.count = 0;
+				}
+			}
+			if (block.count > 0)
+				encoder.write(block, out);
+			out.flush();
+			fos.getFD().sync();
+		}
+		try {
+			Files.move(tmpFile.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmpFile.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		return archive.length();
+	}
+
+	/**
+	 * Passes the records of the archive to the consumer. Blocks which end before
+	 * from or which the filter rejects are skipped, the reading stops with the
+	 * first block starting at or after to.
+	 *
+	 * @param filter may be <code>null</code>
+	 * @return <code>false</code> if a block starting at or after to has been found
+	 * @throws IOException
+	 */
+	static boolean read(File archive, long from, long to, Predicate<BlockStatistics> filter,
+			Consumer<ChargeRecord> consumer) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+			buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer.capacity() < 8 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			throw new IOException("Invalid archive " + archive);
+		BlockStatistics statistics = new BlockStatistics();
+		Block block = new Block();
+		BlockDecoder decoder = new BlockDecoder();
+		ChargeRecord record = new ChargeRecord();
+		CRC32C crc = new CRC32C();
+		int position = 8;
+		while (position + 8 <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			int start = position + 8;
+			if (length < BLOCK_HEADER_SIZE || start + length > buffer.capacity()) {
+				logger.warn("Invalid block at " + position + " of " + archive);
+				return true;
+			}
+			position = start + length;
+			statistics.read(buffer, start);
+			if (statistics.getMax(TIMESTAMP) < from || (filter != null && !filter.test(statistics)))
+				continue;
+			if (statistics.getMin(TIMESTAMP) >= to)
+				return false;
+			ByteBuffer view = buffer.duplicate();
+			view.limit(start + length).position(start);
+			crc.reset();
+			crc.update(view);
+			if ((int) crc.getValue() != buffer.getInt(start - 4)) {
+				logger.warn("Invalid checksum of the block at " + (start - 8) + " of " + archive);
+				continue;
+			}
+			decoder.read(buffer, start, block);
+			for (int i = 0; i < block.count; ++i) {
+				block.get(i, record);
+				consumer.accept(record);
+			}
+		}
+		return true;
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Minimum and maximum of each column of a block. NaN values (an unknown
+	 * position) and unknown surplus values are ignored.
+	 */
+	public static class BlockStatistics {
+
+		@Getter
+		private int count;
+
+		private double[] min = new double[COLUMNS], max = new double[COLUMNS];
+
+		public double getMin(int column) {
+			return min[column];
+		}
+
+		public double getMax(int column) {
+			return max[column];
+		}
+
+		void read(ByteBuffer buffer, int position) {
+			count = buffer.getInt(position);
+			for (int column = 0; column < COLUMNS; ++column) {
+				min[column] = buffer.getDouble(position + 4 + column * 16);
+				max[column] = buffer.getDouble(position + 12 + column * 16);
+			}
+		}
+
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * The records of a block, column by column
+	 */
+	static class Block {
+
+		int count;
+
+		long[] timestamps = new long[BLOCK_SIZE];
+
+		// latitude, longitude, range
+		double[][] doubles = new double[3][BLOCK_SIZE];
+
+		// surplus ... commanded amps
+		int[][] ints = new int[COLUMNS - 4][BLOCK_SIZE];
+
+		void add(ChargeRecord record) {
+			int i = count++;
+			timestamps[i] = record.timestamp;
+			doubles[0][i] = record.latitude;
+			doubles[1][i] = record.longitude;
+			doubles[2][i] = record.batteryRange;
+			ints[0][i] = record.surplus;
+			ints[1][i] = record.batteryLevel;
+			ints[2][i] = record.chargerPhases;
+			ints[3][i] = record.chargingState;
+			ints[4][i] = record.commands;
+			ints[5][i] = record.chargerActualCurrent;
+			ints[6][i] = record.chargerVoltage;
+			ints[7][i] = record.chargerPower;
+			ints[8][i] = record.commandedAmps;
+		}
+
+		void get(int i, ChargeRecord record) {
+			record.timestamp = timestamps[i];
+			record.latitude = doubles[0][i];
+			record.longitude = doubles[1][i];
+			record.batteryRange = (float) doubles[2][i];
+			record.surplus = ints[0][i];
+			record.batteryLevel = ints[1][i];
+			record.chargerPhases = ints[2][i];
+			record.chargingState = ints[3][i];
+			record.commands = ints[4][i];
+			record.chargerActualCurrent = ints[5][i];
+			record.chargerVoltage = ints[6][i];
+			record.chargerPower = ints[7][i];
+			record.commandedAmps = ints[8][i];
+		}
+
+		double value(int column, int i) {
+			if (column == TIMESTAMP)
+				return timestamps[i];
+			if (column < SURPLUS)
+				return doubles[column - 1][i];
+			int value = ints[column - SURPLUS][i];
+			return column == SURPLUS && value == ChargeRecord.UNKNOWN_SURPLUS ? Double.NaN : value;
+		}
+
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Encodes integers by their distance to the previous value. Small values need
+	 * few bits:
+	 *
+	 * <pre>
+	 * 0                0
+	 * 10    + 6 bits   -32 - 31
+	 * 110   + 10 bits  -512 - 511
+	 * 1110  + 14 bits  -8192 - 8191
+	 * 11110 + 24 bits
+	 * 11111 + 64 bits
+	 * </pre>
+	 */
+	static void writeSigned(BitWriter writer, long value) {
+		long zigzag = (value << 1) ^ (value >> 63);
+		if (zigzag == 0) {
+			writer.writeBits(0, 1);
+		} else if (zigzag < 1L << 6) {
+			writer.writeBits(0b10 << 6 | zigzag, 8);
+		} else if (zigzag < 1L << 10) {
+			writer.writeBits(0b110 << 10 | zigzag, 13);
+		} else if (zigzag < 1L << 14) {
+			writer.writeBits(0b1110 << 14 | zigzag, 18);
+		} else if (zigzag < 1L << 24) {
+			writer.writeBits(0b11110L << 24 | zigzag, 29);
+		} else {
+			writer.writeBits(0b11111, 5);
+			writer.writeBits(zigzag, 64);
+		}
+	}
+
+	static long readSigned(BitReader reader) {
+		long zigzag;
+		if (!reader.readBit())
+			return 0;
+		else if (!reader.readBit())
+			zigzag = reader.readBits(6);
+		else if (!reader.readBit())
+			zigzag = reader.readBits(10);
+		else if (!reader.readBit())
+			zigzag = reader.readBits(14);
+		else if (!reader.readBit())
+			zigzag = reader.readBits(24);
+		else
+			zigzag = reader.readBits(64);
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	static class BlockEncoder {
+
+		private BitWriter[] writers = new BitWriter[COLUMNS];
+
+		private CRC32C crc = new CRC32C();
+
+		BlockEncoder() {
+			for (int column = 0; column < COLUMNS; ++column)
+				writers[column] = new BitWriter();
+		}
+
+		void write(Block block, DataOutputStream out) throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+			header.putInt(block.count);
+			for (int column = 0; column < COLUMNS; ++column) {
+				double min = Double.NaN, max = Double.NaN;
+				for (int i = 0; i < block.count; ++i) {
+					double value = block.value(column, i);
+					if (!Double.isNaN(value)) {
+						min = Double.isNaN(min) ? value : Math.min(min, value);
+						max = Double.isNaN(max) ? value : Math.max(max, value);
+					}
+				}
+				header.putDouble(min);
+				header.putDouble(max);
+			}
+			encodeTimestamps(block, writers[TIMESTAMP]);
+			for (int column = LATITUDE; column < SURPLUS; ++column)
+				encodeDoubles(block.doubles[column - 1], block.count, writers[column]);
+			for (int column = SURPLUS; column < COLUMNS; ++column)
+				encodeInts(block.ints[column - SURPLUS], block.count, writers[column]);
+			int length = BLOCK_HEADER_SIZE;
+			for (BitWriter writer : writers) {
+				writer.flush();
+				header.putInt(writer.getLength());
+				length += writer.getLength();
+			}
+			crc.reset();
+			crc.update(header.array(), 0, BLOCK_HEADER_SIZE);
+			for (BitWriter writer : writers)
+				crc.update(writer.getBytes(), 0, writer.getLength());
+			out.writeInt(length);
+			out.writeInt((int) crc.getValue());
+			out.write(header.array());
+			for (BitWriter writer : writers)
+				out.write(writer.getBytes(), 0, writer.getLength());
+		}
+
+		private static void encodeTimestamps(Block block, BitWriter writer) {
+			writer.reset();
+			long previous = 0, previousDelta = 0;
+			for (int i = 0; i < block.count; ++i) {
+				long delta = block.timestamps[i] - previous;
+				writeSigned(writer, delta - previousDelta);
+				previous = block.timestamps[i];
+				previousDelta = delta;
+			}
+		}
+
+		private static void encodeInts(int[] values, int count, BitWriter writer) {
+			writer.reset();
+			long previous = 0;
+			for (int i = 0; i < count; ++i) {
+				writeSigned(writer, values[i] - previous);
+				previous = values[i];
+			}
+		}
+
+		/**
+		 * Gorilla: 0 if the value is unchanged, 10 + the meaningful bits if the
+		 * changed bits fit into those of the previous value, otherwise 11 + the
+		 * number of leading zeros (6 bits) + the number of meaningful bits (6 bits)
+		 * + the meaningful bits
+		 */
+		private static void encodeDoubles(double[] values, int count, BitWriter writer) {
+			writer.reset();
+			long previous = 0;
+			int previousLeading = -1, previousTrailing = 0;
+			for (int i = 0; i < count; ++i) {
+				long bits = Double.doubleToRawLongBits(values[i]);
+				long xor = bits ^ previous;
+				previous = bits;
+				if (xor == 0) {
+					writer.writeBits(0, 1);
+					continue;
+				}
+				int leading = Math.min(63, Long.numberOfLeadingZeros(xor));
+				int trailing = Long.numberOfTrailingZeros(xor);
+				if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+					writer.writeBits(0b10, 2);
+					writer.writeBits(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+				} else {
+					int meaningful = 64 - leading - trailing;
+					writer.writeBits(0b11, 2);
+					writer.writeBits(leading, 6);
+					// 1 - 64 stored as 0 - 63
+					writer.writeBits(meaningful - 1, 6);
+					writer.writeBits(xor >>> trailing, meaningful);
+					previousLeading = leading;
+					previousTrailing = trailing;
+				}
+			}
+		}
+
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	static class BlockDecoder {
+
+		private BitReader reader = new BitReader();
+
+		/**
+		 * Decodes the block starting at position (after length and checksum)
+		 */
+		void read(ByteBuffer buffer, int position, Block block) {
+			block.count = buffer.getInt(position);
+			int offset = position + BLOCK_HEADER_SIZE;
+			for (int column = 0; column < COLUMNS; ++column) {
+				int length = buffer.getInt(position + 4 + COLUMNS * 16 + column * 4);
+				reader.reset(buffer, offset, length);
+				if (column == TIMESTAMP)
+					decodeTimestamps(block);
+				else if (column < SURPLUS)
+					decodeDoubles(block.doubles[column - 1], block.count);
+				else
+					decodeInts(block.ints[column - SURPLUS], block.count);
+				offset += length;
+			}
+		}
+
+		private void decodeTimestamps(Block block) {
+			long previous = 0, previousDelta = 0;
+			for (int i = 0; i < block.count; ++i) {
+				long delta = previousDelta + readSigned(reader);
+				previous += delta;
+				block.timestamps[i] = previous;
+				previousDelta = delta;
+			}
+		}
+
+		private void decodeInts(int[] values, int count) {
+			long previous = 0;
+			for (int i = 0; i < count; ++i) {
+				previous += readSigned(reader);
+				values[i] = (int) previous;
+			}
+		}
+
+		private void decodeDoubles(double[] values, int count) {
+			long previous = 0;
+			int leading = 0, trailing = 0;
+			for (int i = 0; i < count; ++i) {
+				if (reader.readBit()) {
+					if (reader.readBit()) {
+						leading = (int) reader.readBits(6);
+						int meaningful = (int) reader.readBits(6) + 1;
+						trailing = 64 - leading - meaningful;
+					}
+					previous ^= reader.readBits(64 - leading - trailing) << trailing;
+				}
+				values[i] = Double.longBitsToDouble(previous);
+			}
+		}
+
+	}
+
+}
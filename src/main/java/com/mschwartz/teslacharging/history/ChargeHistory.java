@@ -0,0 +1,188 @@
+package com.mschwartz.teslacharging.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads the charge states recorded by {@link ChargeRecorder}. Records are
+ * passed to the consumer one at a time in the order they were recorded. The
+ * same {@link ChargeRecord} instance is passed for every record, copy it if it
+ * is needed later.
+ *
+ * The start of a range is found with a binary search, first over the segments
+ * (their names contain the time of their first record) and then over the fixed
+ * size records of the segment. Segments compacted into a {@link ChargeArchive}
+ * are read from the archive.
+ *
+ * Reading while the recorder is appending is fine, the records appended after
+ * the segment was opened may be missing.
+ *
+ * @author Mike
+ *
+ */
+public class ChargeHistory {
+
+	private static final Logger logger = LogManager.getLogger(ChargeHistory.class);
+
+	private File directory;
+
+	public ChargeHistory(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Passes all records with from &lt;= timestamp &lt; to to the consumer
+	 *
+	 * @param from millis
+	 * @param to   millis
+	 * @return the number of records passed
+	 * @throws IOException
+	 */
+	public long read(long from, long to, Consumer<ChargeRecord> consumer) throws IOException {
+		return read(from, to, false, consumer);
+	}
+
+	/**
+	 * Passes all records to the consumer
+	 *
+	 * @return the number of records passed
+	 * @throws IOException
+	 */
+	public long read(Consumer<ChargeRecord> consumer) throws IOException {
+		return read(0, Long.MAX_VALUE, consumer);
+	}
+
+	/**
+	 *
+	 * @param next <code>true</code> to pass the first record at or after to as
+	 *             well
+	 */
+	long read(long from, long to, boolean next, Consumer<ChargeRecord> consumer) throws IOException {
+		Reader reader = new Reader(from, to, next, consumer);
+		File[] archives = ChargeArchive.list(directory);
+		File[] segments = ChargeSegment.list(directory);
+		// archives are older than the segments
+		long firstSegment = segments.length > 0 ? ChargeSegment.start(segments[0]) : Long.MAX_VALUE;
+		if (from < firstSegment) {
+			for (int i = Math.max(0, lastStartingAtOrBefore(archives, from, true)); i < archives.length
+					&& !reader.done; ++i) {
+				long start = ChargeArchive.start(archives[i]);
+				// a segment and its archive exist if the compaction has been interrupted
+				if (start >= firstSegment || (start >= to && !next))
+					break;
+				ChargeArchive.read(archives[i], from, next ? Long.MAX_VALUE : to, null, reader);
+			}
+		}
+		CRC32C crc = new CRC32C();
+		ChargeRecord record = new ChargeRecord();
+		for (int i = Math.max(0, lastStartingAtOrBefore(segments, from, false)); i < segments.length
+				&& !reader.done; ++i) {
+			if (ChargeSegment.start(segments[i]) >= to && !next)
+				break;
+			ByteBuffer buffer = map(segments[i]);
+			if (!ChargeSegment.hasValidHeader(buffer)) {
+				logger.warn("Ignoring invalid segment " + segments[i]);
+				continue;
+			}
+			ByteBuffer view = buffer.duplicate();
+			for (int position = seek(buffer, from); !reader.done
+					&& ChargeSegment.isValid(buffer, view, position, crc); position += ChargeRecord.SIZE) {
+				record.read(buffer, position);
+				reader.accept(record);
+			}
+		}
+		return reader.count;
+	}
+
+	/**
+	 *
+	 * @return the index of the last file starting at or before the time, -1 if
+	 *         there is none
+	 */
+	private static int lastStartingAtOrBefore(File[] files, long time, boolean archives) {
+		int low = 0, high = files.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			long start = archives ? ChargeArchive.start(files[middle]) : ChargeSegment.start(files[middle]);
+			if (start <= time)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low - 1;
+	}
+
+	/**
+	 *
+	 * @return the position of the first record at or after the time
+	 */
+	static int seek(ByteBuffer buffer, long time) {
+		// records are appended without gaps, the unused part is zero
+		int low = 0, high = (buffer.capacity() - ChargeSegment.HEADER_SIZE) / ChargeRecord.SIZE;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			long timestamp = buffer.getLong(ChargeSegment.HEADER_SIZE + middle * ChargeRecord.SIZE);
+			if (timestamp != 0 && timestamp < time)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return ChargeSegment.HEADER_SIZE + low * ChargeRecord.SIZE;
+	}
+
+	private static ByteBuffer map(File segment) throws IOException {
+		try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+			return channel.map(MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Passes the records of the range to the consumer
+	 */
+	private static class Reader implements Consumer<ChargeRecord> {
+
+		private long from, to;
+
+		private boolean next;
+
+		private Consumer<ChargeRecord> consumer;
+
+		long count;
+
+		// true if the end of the range has been reached
+		boolean done;
+
+		Reader(long from, long to, boolean next, Consumer<ChargeRecord> consumer) {
+			this.from = from;
+			this.to = to;
+			this.next = next;
+			this.consumer = consumer;
+		}
+
+		@Override
+		public void accept(ChargeRecord record) {
+			if (done || record.timestamp < from)
+				return;
+			if (record.timestamp >= to) {
+				done = true;
+				if (!next)
+					return;
+			}
+			consumer.accept(record);
+			++count;
+		}
+
+	}
+
+}
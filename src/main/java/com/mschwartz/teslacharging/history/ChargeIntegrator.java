@@ -0,0 +1,55 @@
+package com.mschwartz.teslacharging.history;
+
+import java.util.function.Consumer;
+
+/**
+ * Turns the stream of samples into intervals during which the power of a sample
+ * lasts. Only the parts of the intervals between from and to are passed on,
+ * the samples before from are only needed for the interval reaching into the
+ * range.
+ *
+ * @author Mike
+ *
+ */
+abstract class ChargeIntegrator implements Consumer<ChargeRecord> {
+
+	private ChargeRecord previous = new ChargeRecord();
+
+	private boolean hasPrevious;
+
+	private long from, to;
+
+	ChargeIntegrator(long from, long to) {
+		this.from = from;
+		this.to = to;
+	}
+
+	@Override
+	public void accept(ChargeRecord record) {
+		// e.g. the clock has been set back
+		if (hasPrevious && record.timestamp < previous.timestamp)
+			return;
+		if (hasPrevious) {
+			long start = Math.max(previous.timestamp, from);
+			long end = Math.min(Math.min(record.timestamp, previous.timestamp + ChargeSummary.MAX_INTERVAL_MILLIS),
+					to);
+			if (start < end)
+				interval(previous, start, end);
+		}
+		if (record.commands > 0 && record.timestamp >= from && record.timestamp < to)
+			commands(record.timestamp, record.commands);
+		previous.copyFrom(record);
+		hasPrevious = true;
+	}
+
+	/**
+	 * The power of the record lasted from start to end
+	 */
+	abstract void interval(ChargeRecord record, long start, long end);
+
+	/**
+	 * Commands have been sent before the sample taken at timestamp
+	 */
+	abstract void commands(long timestamp, int commands);
+
+}
@@ -0,0 +1,150 @@
+package com.mschwartz.teslacharging.history;
+
+import java.nio.ByteBuffer;
+
+import lombok.Getter;
+
+/**
+ * One sample of the charging history. The same instance is reused for each
+ * record read or written so that no garbage is created per sample.
+ *
+ * The binary layout of a record (big endian):
+ *
+ * <pre>
+ * 0  timestamp              long, millis
+ * 8  latitude               double, NaN if unknown
+ * 16 longitude              double, NaN if unknown
+ * 24 surplus                int, watts, Integer.MIN_VALUE if unknown
+ * 28 battery_range          float, miles
+ * 32 battery_level          byte, percent
+ * 33 charger_phases         byte
+ * 34 charging_state         byte, see {@link #STATES}
+ * 35 commands               byte, commands sent since the previous record
+ * 36 charger_actual_current short, amps
+ * 38 charger_voltage        short, volts
+ * 40 charger_power          short, kW
+ * 42 commanded_amps         short, -1 if unknown
+ * 44 checksum               int, crc32c of bytes 0-43
+ * </pre>
+ *
+ * @author Mike
+ *
+ */
+@Getter
+public class ChargeRecord {
+
+	public static final int SIZE = 48;
+
+	static final int CHECKSUM_OFFSET = 44;
+
+	public static final int UNKNOWN_SURPLUS = Integer.MIN_VALUE;
+
+	// index = code of the charging state, 0 for unknown states
+	public static final String[] STATES = { "Unknown", "Disconnected", "Stopped", "Starting", "Charging", "Complete",
+			"NoPower" };
+
+	long timestamp;
+
+	double latitude = Double.NaN, longitude = Double.NaN;
+
+	int surplus = UNKNOWN_SURPLUS;
+
+	float batteryRange;
+
+	int batteryLevel, chargerPhases, chargingState, commands;
+
+	int chargerActualCurrent, chargerVoltage, chargerPower;
+
+	int commandedAmps = -1;
+
+	/**
+	 *
+	 * @return the code of the charging state, 0 if unknown
+	 */
+	public static int stateCode(String chargingState) {
+		if (chargingState != null) {
+			for (int i = 1; i < STATES.length; ++i) {
+				if (STATES[i].equals(chargingState))
+					return i;
+			}
+		}
+		return 0;
+	}
+
+	public boolean isCharging() {
+		return chargingState == 4;
+	}
+
+	/**
+	 *
+	 * @return the power the car is charging with according to the sample
+	 */
+	public int getChargingWatts() {
+		if (!isCharging())
+			return 0;
+		int watts = chargerActualCurrent * chargerVoltage * Math.max(1, chargerPhases);
+		return watts > 0 ? watts : chargerPower * 1000;
+	}
+
+	/**
+	 * Writes the record without the checksum at the given position
+	 */
+	void write(ByteBuffer buffer, int position) {
+		buffer.putLong(position, timestamp);
+		buffer.putDouble(position + 8, latitude);
+		buffer.putDouble(position + 16, longitude);
+		buffer.putInt(position + 24, surplus);
+		buffer.putFloat(position + 28, batteryRange);
+		buffer.put(position + 32, (byte) batteryLevel);
+		buffer.put(position + 33, (byte) chargerPhases);
+		buffer.put(position + 34, (byte) chargingState);
+		buffer.put(position + 35, (byte) Math.min(commands, 255));
+		buffer.putShort(position + 36, (short) chargerActualCurrent);
+		buffer.putShort(position + 38, (short) chargerVoltage);
+		buffer.putShort(position + 40, (short) chargerPower);
+		buffer.putShort(position + 42, (short) commandedAmps);
+	}
+
+	void read(ByteBuffer buffer, int position) {
+		timestamp = buffer.getLong(position);
+		latitude = buffer.getDouble(position + 8);
+		longitude = buffer.getDouble(position + 16);
+		surplus = buffer.getInt(position + 24);
+		batteryRange = buffer.getFloat(position + 28);
+		batteryLevel = buffer.get(position + 32) & 0xff;
+		chargerPhases = buffer.get(position + 33) & 0xff;
+		chargingState = buffer.get(position + 34) & 0xff;
+		commands = buffer.get(position + 35) & 0xff;
+		chargerActualCurrent = buffer.getShort(position + 36);
+		chargerVoltage = buffer.getShort(position + 38);
+		chargerPower = buffer.getShort(position + 40);
+		commandedAmps = buffer.getShort(position + 42);
+	}
+
+	public void copyFrom(ChargeRecord other) {
+		timestamp = other.timestamp;
+		latitude = other.latitude;
+		longitude = other.longitude;
+		surplus = other.surplus;
+		batteryRange = other.batteryRange;
+		batteryLevel = other.batteryLevel;
+		chargerPhases = other.chargerPhases;
+		chargingState = other.chargingState;
+		commands = other.commands;
+		chargerActualCurrent = other.chargerActualCurrent;
+		chargerVoltage = other.chargerVoltage;
+		chargerPower = other.chargerPower;
+		commandedAmps = other.commandedAmps;
+	}
+
+	@Override
+	public String toString() {
+		return "ChargeRecord [timestamp=" + timestamp + ", batteryLevel=" + batteryLevel + ", chargingState="
+				+ STATES[chargingState < STATES.length ? chargingState : 0] + ", chargerActualCurrent="
+				+ chargerActualCurrent + ", chargerVoltage=" + chargerVoltage + ", chargerPhases=" + chargerPhases
+				+ ", chargerPower=" + chargerPower + ", commandedAmps=" + commandedAmps + ", commands=" + commands
+				+ ", surplus=" + surplus + ", batteryRange=" + batteryRange + ", latitude=" + latitude
+				+ ", longitude=" + longitude + "]";
+	}
+
+}
@@ -0,0 +1,278 @@
+package com.mschwartz.teslacharging.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.mschwartz.teslacharging.tesla.CommandedState;
+import com.mschwartz.teslacharging.tesla.TeslaConfiguration;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.ChargeState;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.DriveState;
+
+/**
+ * Appends a {@link ChargeRecord} for each charge state retrieved from the tesla
+ * servers to memory-mapped segment files. A new segment is started when the
+ * current one is full. Recording a sample only writes into the mapped memory,
+ * it neither allocates nor waits for the disk.
+ *
+ * Each record carries a checksum. A record which was only partially written
+ * when the process died is detected and overwritten after the restart.
+ *
+ * Only one process records into a directory at a time, other processes skip
+ * the recording.
+ *
+ * The samples are added to the {@link ChargeRollups} as well. Aged segments
+ * are compacted by {@link #compact()}, never while recording.
+ *
+ * @author Mike
+ *
+ */
+public class ChargeRecorder {
+
+	private static final Logger logger = LogManager.getLogger(ChargeRecorder.class);
+
+	private File directory;
+
+	private RandomAccessFile lockFile;
+
+	private FileLock lock;
+
+	// true if the directory could not be opened or is used by another process
+	private boolean disabled;
+
+	private MappedByteBuffer buffer;
+
+	// used for the checksum so that the position of the buffer is never changed
+	private ByteBuffer view;
+
+	private CRC32C crc = new CRC32C();
+
+	private int position;
+
+	// totals per minute/hour/day, null if they cannot be written
+	private ChargeRollups rollups;
+
+	private ChargeRecord record = new ChargeRecord();
+
+	private volatile int surplus = ChargeRecord.UNKNOWN_SURPLUS;
+
+	private AtomicInteger commands = new AtomicInteger();
+
+	private volatile CommandedState commandedState;
+
+	// segments older than this are compacted into archives, 0 to keep them
+	private volatile long archiveAfterMillis;
+
+	// set when the directory has been opened or a new segment started
+	private volatile boolean compactionDue;
+
+	// held while compacting, recording does not wait for it
+	private final Object compactionLock = new Object();
+
+	public ChargeRecorder(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * @param surplus the power surplus in watts last used for the charge
+	 *                calculation
+	 */
+	public void setSurplus(int surplus) {
+		this.surplus = surplus;
+	}
+
+	public void setCommandedState(CommandedState commandedState) {
+		this.commandedState = commandedState;
+	}
+
+	/**
+	 * @param days segments whose records are older are compacted into a
+	 *             {@link ChargeArchive}, 0 to never compact
+	 */
+	public void setArchiveAfterDays(int days) {
+		archiveAfterMillis = days * 24L * 60 * 60 * 1000;
+	}
+
+	/**
+	 * Called for each command sent to the car
+	 */
+	public void commandSent() {
+		commands.incrementAndGet();
+	}
+
+	/**
+	 * Appends a record for the charge state
+	 *
+	 * @param driveState may be <code>null</code>
+	 */
+	public synchronized void record(ChargeState chargeState, DriveState driveState) {
+		if (chargeState == null || disabled)
+			return;
+		try {
+			if (buffer == null)
+				open();
+			else if (position + ChargeRecord.SIZE > buffer.capacity())
+				rollover();
+			if (buffer == null)
+				return;
+			fill(chargeState, driveState);
+			record.write(buffer, position);
+			// the checksum last, a record without a valid checksum is ignored
+			buffer.putInt(position + ChargeRecord.CHECKSUM_OFFSET, ChargeSegment.checksum(view, position, crc));
+			position += ChargeRecord.SIZE;
+		} catch (IOException e) {
+			logger.warn("Recording the charge state failed, recording disabled", e);
+			disabled = true;
+			return;
+		}
+		if (rollups != null) {
+			try {
+				rollups.append(record);
+			} catch (IOException e) {
+				logger.warn("Updating the rollups failed, the rollups are calculated again with the next start", e);
+				rollups.close();
+				rollups = null;
+			}
+		}
+	}
+
+	private void fill(ChargeState chargeState, DriveState driveState) {
+		record.timestamp = System.currentTimeMillis();
+		record.latitude = driveState != null && driveState.getLatitude() != null ? driveState.getLatitude()
+				: Double.NaN;
+		record.longitude = driveState != null && driveState.getLongitude() != null ? driveState.getLongitude()
+				: Double.NaN;
+		record.surplus = surplus;
+		record.batteryRange = (float) chargeState.getBattery_range();
+		record.batteryLevel = chargeState.getBattery_level();
+		record.chargerPhases = chargeState.getCharger_phases() == null ? 0 : chargeState.getCharger_phases();
+		record.chargingState = ChargeRecord.stateCode(chargeState.getCharging_state());
+		record.commands = commands.getAndSet(0);
+		record.chargerActualCurrent = chargeState.getCharger_actual_current();
+		record.chargerVoltage = chargeState.getCharger_voltage();
+		record.chargerPower = chargeState.getCharger_power();
+		CommandedState commanded = commandedState;
+		Integer amps = commanded == null ? null : commanded.getChargingAmps();
+		record.commandedAmps = amps == null ? -1 : amps;
+	}
+
+	private void open() throws IOException {
+		// the drive state contains the location of the car
+		TeslaConfiguration.createPrivateDirectories(directory);
+		File lockPath = new File(directory, "lock");
+		TeslaConfiguration.createPrivateFile(lockPath);
+		lockFile = new RandomAccessFile(lockPath, "rw");
+		try {
+			lock = lockFile.getChannel().tryLock();
+		} catch (OverlappingFileLockException e) {
+			// locked by another recorder of this process
+		}
+		if (lock == null) {
+			logger.info("Charge history " + directory + " is recorded by another process");
+			lockFile.close();
+			disabled = true;
+			return;
+		}
+		File[] segments = ChargeSegment.list(directory);
+		if (segments.length > 0) {
+			map(segments[segments.length - 1]);
+			if (ChargeSegment.hasValidHeader(buffer))
+				position = ChargeSegment.end(buffer, view, crc);
+			else
+				logger.warn("Ignoring invalid segment " + segments[segments.length - 1]);
+		}
+		if (position == 0 || position + ChargeRecord.SIZE > buffer.capacity())
+			rollover();
+		else
+			compactionDue = true;
+		try {
+			rollups = ChargeRollups.append(directory, ZoneId.systemDefault());
+		} catch (IOException e) {
+			logger.warn("Cannot open the rollups of " + directory, e);
+		}
+	}
+
+	private void rollover() throws IOException {
+		if (buffer != null)
+			buffer.force();
+		File segment = ChargeSegment.file(directory, System.currentTimeMillis());
+		logger.info("Starting charge history segment " + segment);
+		map(segment);
+		ChargeSegment.writeHeader(buffer);
+		position = ChargeSegment.HEADER_SIZE;
+		compactionDue = true;
+	}
+
+	/**
+	 * Compacts the segments older than the archive age into archives if the
+	 * directory has been opened or a new segment started since the last call.
+	 * Encoding and syncing whole segments takes a while, so call it from a
+	 * background thread or after the charge calculation, never while fetching.
+	 */
+	public void compact() {
+		if (!compactionDue)
+			return;
+		synchronized (compactionLock) {
+			// cleared by close, the directory may be used by another process now
+			if (!compactionDue)
+				return;
+			compactionDue = false;
+			if (archiveAfterMillis <= 0)
+				return;
+			try {
+				ChargeArchive.compact(directory, System.currentTimeMillis() - archiveAfterMillis);
+			} catch (IOException e) {
+				logger.warn("Compacting the charge history failed", e);
+			}
+		}
+	}
+
+	private void map(File segment) throws IOException {
+		TeslaConfiguration.createPrivateFile(segment);
+		try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			buffer = channel.map(MapMode.READ_WRITE, 0, ChargeSegment.SIZE);
+		}
+		view = buffer.duplicate();
+	}
+
+	/**
+	 * Writes the pending records to the disk and releases the directory
+	 */
+	public synchronized void close() {
+		// waits for a running compaction before the directory is released
+		synchronized (compactionLock) {
+			compactionDue = false;
+		}
+		if (rollups != null)
+			rollups.close();
+		rollups = null;
+		try {
+			if (buffer != null)
+				buffer.force();
+			if (lock != null) {
+				lock.release();
+				lockFile.close();
+			}
+		} catch (IOException e) {
+			logger.warn("Closing the charge history failed", e);
+		}
+		buffer = null;
+		lock = null;
+		disabled = true;
+	}
+
+}
@@ -0,0 +1,84 @@
+package com.mschwartz.teslacharging.history;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Prints the energy charged, the part covered by the surplus, the average amps
+ * and the number of commands for today (per hour), the last seven days, this
+ * month (per day) or this year (per month).
+ *
+ * @author Mike
+ *
+ */
+public class ChargeReport {
+
+	public static final String[] PERIODS = { "today", "week", "month", "year" };
+
+	private ChargeRollups rollups;
+
+	private ZoneId zone;
+
+	public ChargeReport(ChargeRollups rollups, ZoneId zone) {
+		this.rollups = rollups;
+		this.zone = zone;
+	}
+
+	/**
+	 *
+	 * @param period today, week, month or year
+	 * @throws IOException
+	 */
+	public void print(String period, PrintStream out) throws IOException {
+		ZonedDateTime now = ZonedDateTime.now(zone);
+		ZonedDateTime today = now.truncatedTo(ChronoUnit.DAYS);
+		ZonedDateTime from;
+		ChronoUnit unit;
+		DateTimeFormatter format;
+		switch (period) {
+		case "today":
+			from = today;
+			unit = ChronoUnit.HOURS;
+			format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+			break;
+		case "week":
+			from = today.minusDays(6);
+			unit = ChronoUnit.DAYS;
+			format = DateTimeFormatter.ISO_LOCAL_DATE;
+			break;
+		case "month":
+			from = LocalDate.from(now).withDayOfMonth(1).atStartOfDay(zone);
+			unit = ChronoUnit.DAYS;
+			format = DateTimeFormatter.ISO_LOCAL_DATE;
+			break;
+		case "year":
+			from = LocalDate.from(now).withDayOfYear(1).atStartOfDay(zone);
+			unit = ChronoUnit.MONTHS;
+			format = DateTimeFormatter.ofPattern("yyyy-MM");
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown report period " + period);
+		}
+		out.println(String.format("%-16s %9s %9s %7s %8s %8s", "", "kWh", "solar kWh", "solar %", "avg amps",
+				"commands"));
+		for (ZonedDateTime start = from; start.isBefore(now); start = start.plus(1, unit)) {
+			ZonedDateTime end = start.plus(1, unit);
+			ChargeSummary summary = rollups.query(start.toInstant().toEpochMilli(),
+					Math.min(end.toInstant().toEpochMilli(), now.toInstant().toEpochMilli()));
+			print(format.format(start), summary, out);
+		}
+		print("Total", rollups.query(from.toInstant().toEpochMilli(), now.toInstant().toEpochMilli()), out);
+	}
+
+	private static void print(String label, ChargeSummary summary, PrintStream out) {
+		out.println(String.format("%-16s %9.1f %9.1f %7.0f %8.1f %8d", label, summary.getEnergyKWh(),
+				summary.getSolarEnergyKWh(), summary.getSolarShare() * 100, summary.getAverageAmps(),
+				summary.getCommands()));
+	}
+
+}
@@ -0,0 +1,197 @@
+package com.mschwartz.teslacharging.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.ZoneId;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Totals of the recorded charging per minute, quarter of an hour, hour and day,
+ * kept up to date while samples are appended. A query for a range takes the
+ * days fully inside the range, the hours fully inside the rest and so on. Only
+ * less than a minute at both ends is calculated from the samples, so asking for
+ * a whole month reads about a hundred buckets instead of tens of thousands of
+ * samples.
+ *
+ * The rollups are kept in files next to the segments. When the recorder opens
+ * the history the last day is calculated again from the samples, which also
+ * creates the rollups of a history recorded before.
+ *
+ * @author Mike
+ *
+ */
+public class ChargeRollups {
+
+	private static final Logger logger = LogManager.getLogger(ChargeRollups.class);
+
+	// from fine to coarse
+	static final long[] RESOLUTIONS = { 60 * 1000, 15 * 60 * 1000, 60 * 60 * 1000, RollupFile.DAY };
+
+	static final String[] NAMES = { "1m", "15m", "1h", "1d" };
+
+	private ChargeHistory history;
+
+	private RollupFile[] files = new RollupFile[RESOLUTIONS.length];
+
+	// only used when appending
+	private ChargeIntegrator integrator;
+
+	/**
+	 * Opens the rollups for reading
+	 *
+	 * @param directory the directory of the history
+	 * @throws IOException
+	 */
+	public ChargeRollups(File directory) throws IOException {
+		this(directory, ZoneId.systemDefault(), false);
+	}
+
+	ChargeRollups(File directory, ZoneId zone, boolean writable) throws IOException {
+		history = new ChargeHistory(directory);
+		for (int i = 0; i < files.length; ++i)
+			files[i] = new RollupFile(new File(directory, "rollup-" + NAMES[i] + ".dat"), RESOLUTIONS[i], zone,
+					writable);
+	}
+
+	/**
+	 * Opens the rollups for appending. The last day is calculated again from the
+	 * samples, it may not be complete if the process died.
+	 *
+	 * @param directory the directory of the history
+	 * @throws IOException
+	 */
+	static ChargeRollups append(File directory, ZoneId zone) throws IOException {
+		ChargeRollups rollups = new ChargeRollups(directory, zone, true);
+		RollupFile days = rollups.files[rollups.files.length - 1];
+		long resume = days.lastStart() != null ? days.lastStart() : 0;
+		for (RollupFile file : rollups.files)
+			file.truncate(resume);
+		rollups.integrator = rollups.new Appender(resume);
+		long count;
+		try {
+			count = rollups.history.read(Math.max(0, resume - ChargeSummary.MAX_INTERVAL_MILLIS), Long.MAX_VALUE,
+					rollups.integrator);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		logger.debug("Rolled up " + count + " samples since " + resume);
+		return rollups;
+	}
+
+	/**
+	 * Adds the sample appended to the history
+	 */
+	synchronized void append(ChargeRecord record) throws IOException {
+		try {
+			integrator.accept(record);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 *
+	 * @param from millis, inclusive
+	 * @param to   millis, exclusive
+	 * @return the totals of the charging during the range
+	 * @throws IOException
+	 */
+	public synchronized ChargeSummary query(long from, long to) throws IOException {
+		ChargeSummary total = new ChargeSummary(from, to);
+		sum(from, to, files.length - 1, total);
+		return total;
+	}
+
+	private void sum(long from, long to, int level, ChargeSummary total) throws IOException {
+		if (from >= to)
+			return;
+		if (level < 0) {
+			// the sample following the range ends the last interval
+			history.read(from - ChargeSummary.MAX_INTERVAL_MILLIS, to, true, new Summer(from, to, total));
+			return;
+		}
+		RollupFile file = files[level];
+		long first = file.ceil(from), last = file.bucketStart(to);
+		if (first >= last) {
+			sum(from, to, level - 1, total);
+			return;
+		}
+		sum(from, first, level - 1, total);
+		file.sum(first, last, total);
+		sum(last, to, level - 1, total);
+	}
+
+	public synchronized void close() {
+		for (RollupFile file : files) {
+			try {
+				file.force();
+				file.close();
+			} catch (IOException e) {
+				logger.warn("Closing " + file.getFile() + " failed", e);
+			}
+		}
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Adds the samples to the rollups
+	 */
+	private class Appender extends ChargeIntegrator {
+
+		Appender(long from) {
+			super(from, Long.MAX_VALUE);
+		}
+
+		@Override
+		void interval(ChargeRecord record, long start, long end) {
+			try {
+				for (RollupFile file : files)
+					file.add(record, start, end);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		void commands(long timestamp, int commands) {
+			try {
+				for (RollupFile file : files)
+					file.addCommands(timestamp, commands);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Adds the samples to a total
+	 */
+	private static class Summer extends ChargeIntegrator {
+
+		private ChargeSummary total;
+
+		Summer(long from, long to, ChargeSummary total) {
+			super(from, to);
+			this.total = total;
+		}
+
+		@Override
+		void interval(ChargeRecord record, long start, long end) {
+			total.add(record, start, end);
+		}
+
+		@Override
+		void commands(long timestamp, int commands) {
+			total.commands += commands;
+		}
+
+	}
+
+}
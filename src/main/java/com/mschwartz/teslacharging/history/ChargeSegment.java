@@ -0,0 +1,107 @@
+package com.mschwartz.teslacharging.history;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Layout of a segment file of the charging history. A segment starts with a
+ * header followed by fixed size {@link ChargeRecord}s. The first record with an
+ * invalid checksum (never written or written partially before a crash) marks
+ * the end of the segment.
+ *
+ * <pre>
+ * 0  magic       int
+ * 4  version     int
+ * 8  record size int
+ * 12 reserved
+ * 64 records
+ * </pre>
+ *
+ * The name of a segment contains the time of its first record so that the
+ * segments sort by time.
+ *
+ * @author Mike
+ *
+ */
+class ChargeSegment {
+
+	static final int MAGIC = 0x54434831, VERSION = 1, HEADER_SIZE = 64;
+
+	static final int SIZE = 1 << 20;
+
+	// number of records of a full segment
+	static final int CAPACITY = (SIZE - HEADER_SIZE) / ChargeRecord.SIZE;
+
+	static final String PREFIX = "charge-", SUFFIX = ".seg";
+
+	private ChargeSegment() {
+	}
+
+	static File file(File directory, long start) {
+		return new File(directory, PREFIX + String.format("%013d", start) + SUFFIX);
+	}
+
+	/**
+	 *
+	 * @return the segments in the directory, oldest first
+	 */
+	static File[] list(File directory) {
+		File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+		if (files == null)
+			return new File[0];
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 *
+	 * @return the time of the first record of the segment
+	 */
+	static long start(File segment) {
+		String name = segment.getName();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+
+	static void writeHeader(ByteBuffer buffer) {
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(8, ChargeRecord.SIZE);
+	}
+
+	static boolean hasValidHeader(ByteBuffer buffer) {
+		return buffer.capacity() >= HEADER_SIZE && buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION
+				&& buffer.getInt(8) == ChargeRecord.SIZE;
+	}
+
+	/**
+	 *
+	 * @param view a duplicate of the buffer used for calculating the checksum
+	 * @return the checksum of the record at the given position
+	 */
+	static int checksum(ByteBuffer view, int position, CRC32C crc) {
+		view.limit(position + ChargeRecord.CHECKSUM_OFFSET).position(position);
+		crc.reset();
+		crc.update(view);
+		return (int) crc.getValue();
+	}
+
+	static boolean isValid(ByteBuffer buffer, ByteBuffer view, int position, CRC32C crc) {
+		if (position + ChargeRecord.SIZE > buffer.capacity() || buffer.getLong(position) == 0)
+			return false;
+		return buffer.getInt(position + ChargeRecord.CHECKSUM_OFFSET) == checksum(view, position, crc);
+	}
+
+	/**
+	 *
+	 * @return the position after the last valid record
+	 */
+	static int end(ByteBuffer buffer, ByteBuffer view, CRC32C crc) {
+		int position = HEADER_SIZE;
+		while (isValid(buffer, view, position, crc))
+			position += ChargeRecord.SIZE;
+		return position;
+	}
+
+}
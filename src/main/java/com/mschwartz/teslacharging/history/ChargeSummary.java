@@ -0,0 +1,97 @@
+package com.mschwartz.teslacharging.history;
+
+import lombok.Getter;
+
+/**
+ * Totals of the charging between two points in time. The power reported by a
+ * sample is assumed to last until the next sample but at most
+ * {@link #MAX_INTERVAL_MILLIS}, longer gaps (e.g. while the program was not
+ * running) do not count.
+ *
+ * The part of the energy covered by the power surplus is the solar energy. A
+ * sample without a known surplus counts as energy from the grid.
+ *
+ * @author Mike
+ *
+ */
+@Getter
+public class ChargeSummary {
+
+	// maximum time the power of a sample is assumed to last
+	public static final long MAX_INTERVAL_MILLIS = 15 * 60 * 1000;
+
+	long from, to;
+
+	double energyWh, solarEnergyWh;
+
+	// amps integrated over the time charging and the time charging
+	double ampSeconds, chargingSeconds;
+
+	int commands;
+
+	public ChargeSummary(long from, long to) {
+		this.from = from;
+		this.to = to;
+	}
+
+	public double getEnergyKWh() {
+		return energyWh / 1000;
+	}
+
+	public double getSolarEnergyKWh() {
+		return solarEnergyWh / 1000;
+	}
+
+	/**
+	 *
+	 * @return the part of the energy covered by the surplus, 0 - 1
+	 */
+	public double getSolarShare() {
+		return energyWh > 0 ? solarEnergyWh / energyWh : 0;
+	}
+
+	public double getAverageAmps() {
+		return chargingSeconds > 0 ? ampSeconds / chargingSeconds : 0;
+	}
+
+	/**
+	 * Adds the charging of the sample from start to end
+	 */
+	void add(ChargeRecord record, long start, long end) {
+		int watts = record.getChargingWatts();
+		if (watts == 0)
+			return;
+		double seconds = (end - start) / 1000.0;
+		energyWh += watts * seconds / 3600;
+		if (record.surplus != ChargeRecord.UNKNOWN_SURPLUS) {
+			// the surplus already contains the consumption of the car
+			int solarWatts = Math.max(0, Math.min(watts, watts + record.surplus));
+			solarEnergyWh += solarWatts * seconds / 3600;
+		}
+		ampSeconds += record.chargerActualCurrent * seconds;
+		chargingSeconds += seconds;
+	}
+
+	void add(ChargeSummary other) {
+		energyWh += other.energyWh;
+		solarEnergyWh += other.solarEnergyWh;
+		ampSeconds += other.ampSeconds;
+		chargingSeconds += other.chargingSeconds;
+		commands += other.commands;
+	}
+
+	void clear(long from, long to) {
+		this.from = from;
+		this.to = to;
+		energyWh = solarEnergyWh = ampSeconds = chargingSeconds = 0;
+		commands = 0;
+	}
+
+	@Override
+	public String toString() {
+		return "ChargeSummary [from=" + from + ", to=" + to + ", energyWh=" + Math.round(energyWh)
+				+ ", solarEnergyWh=" + Math.round(solarEnergyWh) + ", averageAmps="
+				+ String.format("%.1f", getAverageAmps()) + ", commands=" + commands + "]";
+	}
+
+}
@@ -0,0 +1,274 @@
+package com.mschwartz.teslacharging.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+import com.mschwartz.teslacharging.tesla.TeslaConfiguration;
+
+/**
+ * The totals of the charging per bucket of one resolution (e.g. one hour). A
+ * bucket is only stored if something was recorded during it. The buckets are
+ * stored in ascending order with a fixed size so that the bucket of a point in
+ * time is found with a binary search.
+ *
+ * <pre>
+ * 0  start            long, millis
+ * 8  energy           double, Wh
+ * 16 solar energy     double, Wh
+ * 24 amp seconds      double
+ * 32 charging seconds double
+ * 40 commands         int
+ * 44 reserved
+ * </pre>
+ *
+ * Buckets are aligned to the local time, a day starts at midnight.
+ *
+ * @author Mike
+ *
+ */
+class RollupFile {
+
+	static final int BUCKET_SIZE = 48;
+
+	// resolution of the buckets spanning a day
+	static final long DAY = 24 * 60 * 60 * 1000;
+
+	private File file;
+
+	private long resolution;
+
+	private ZoneId zone;
+
+	private FileChannel channel;
+
+	private ByteBuffer io = ByteBuffer.allocate(BUCKET_SIZE);
+
+	private long count;
+
+	// the last bucket, null if there is none
+	private ChargeSummary last;
+
+	// the day calculated last
+	private long dayStart = Long.MAX_VALUE, dayEnd = Long.MIN_VALUE;
+
+	/**
+	 *
+	 * @param resolution the length of a bucket in millis, {@link #DAY} for days
+	 * @param writable   <code>false</code> to only read the file, a missing file
+	 *                   has no buckets
+	 */
+	RollupFile(File file, long resolution, ZoneId zone, boolean writable) throws IOException {
+		this.file = file;
+		this.resolution = resolution;
+		this.zone = zone;
+		if (writable) {
+			TeslaConfiguration.createPrivateFile(file);
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} else if (file.exists())
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		if (channel == null)
+			return;
+		// a bucket written partially is dropped
+		count = channel.size() / BUCKET_SIZE;
+		if (count > 0) {
+			last = new ChargeSummary(0, 0);
+			read(count - 1, last);
+		}
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 *
+	 * @return the start of the bucket containing the time
+	 */
+	long bucketStart(long time) {
+		if (resolution == DAY) {
+			if (time < dayStart || time >= dayEnd) {
+				ZonedDateTime start = Instant.ofEpochMilli(time).atZone(zone).toLocalDate().atStartOfDay(zone);
+				dayStart = start.toInstant().toEpochMilli();
+				dayEnd = start.plusDays(1).toInstant().toEpochMilli();
+			}
+			return dayStart;
+		}
+		long offset = zone.getRules().getOffset(Instant.ofEpochMilli(time)).getTotalSeconds() * 1000L;
+		return Math.floorDiv(time + offset, resolution) * resolution - offset;
+	}
+
+	/**
+	 *
+	 * @return the start of the bucket following the bucket starting at start
+	 */
+	long bucketEnd(long start) {
+		if (resolution == DAY) {
+			bucketStart(start);
+			return dayEnd;
+		}
+		return start + resolution;
+	}
+
+	/**
+	 *
+	 * @return the first bucket boundary at or after the time
+	 */
+	long ceil(long time) {
+		long start = bucketStart(time);
+		return start == time ? start : bucketEnd(start);
+	}
+
+	/**
+	 *
+	 * @return the start of the last bucket or <code>null</code> if there is none
+	 */
+	Long lastStart() {
+		return last == null ? null : last.from;
+	}
+
+	/**
+	 * Adds the charging of the sample from start to end, split at the bucket
+	 * boundaries
+	 */
+	void add(ChargeRecord record, long start, long end) throws IOException {
+		while (start < end) {
+			long bucket = bucketStart(start);
+			long bucketEnd = Math.min(end, bucketEnd(bucket));
+			bucket(bucket).add(record, start, bucketEnd);
+			write();
+			start = bucketEnd;
+		}
+	}
+
+	void addCommands(long time, int commands) throws IOException {
+		bucket(bucketStart(time)).commands += commands;
+		write();
+	}
+
+	/**
+	 *
+	 * @return the last bucket which is created if it does not start at start
+	 */
+	private ChargeSummary bucket(long start) throws IOException {
+		if (last != null && last.from == start)
+			return last;
+		if (last != null && last.from > start)
+			throw new IOException("Rollup " + file + " already contains " + last.from + ", cannot add " + start);
+		if (last == null)
+			last = new ChargeSummary(0, 0);
+		last.clear(start, bucketEnd(start));
+		++count;
+		return last;
+	}
+
+	private void write() throws IOException {
+		io.clear();
+		io.putLong(last.from);
+		io.putDouble(last.energyWh);
+		io.putDouble(last.solarEnergyWh);
+		io.putDouble(last.ampSeconds);
+		io.putDouble(last.chargingSeconds);
+		io.putInt(last.commands);
+		io.putInt(0);
+		io.flip();
+		long position = (count - 1) * BUCKET_SIZE;
+		while (io.hasRemaining())
+			position += channel.write(io, position);
+	}
+
+	private void read(long index, ChargeSummary bucket) throws IOException {
+		io.clear();
+		long position = index * BUCKET_SIZE;
+		while (io.hasRemaining()) {
+			int read = channel.read(io, position);
+			if (read < 0)
+				throw new IOException("Unexpected end of " + file);
+			position += read;
+		}
+		io.flip();
+		long start = io.getLong();
+		bucket.clear(start, bucketEnd(start));
+		bucket.energyWh = io.getDouble();
+		bucket.solarEnergyWh = io.getDouble();
+		bucket.ampSeconds = io.getDouble();
+		bucket.chargingSeconds = io.getDouble();
+		bucket.commands = io.getInt();
+	}
+
+	private long readStart(long index) throws IOException {
+		io.clear().limit(8);
+		long position = index * BUCKET_SIZE;
+		while (io.hasRemaining()) {
+			int read = channel.read(io, position);
+			if (read < 0)
+				throw new IOException("Unexpected end of " + file);
+			position += read;
+		}
+		return io.getLong(0);
+	}
+
+	/**
+	 *
+	 * @return the index of the first bucket starting at or after the time
+	 */
+	private long find(long time) throws IOException {
+		long low = 0, high = count;
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			if (readStart(middle) < time)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * Adds the buckets starting between from (inclusive) and to (exclusive) to
+	 * the total. from and to should be bucket boundaries.
+	 */
+	void sum(long from, long to, ChargeSummary total) throws IOException {
+		if (count == 0)
+			return;
+		ChargeSummary bucket = new ChargeSummary(0, 0);
+		for (long index = find(from); index < count; ++index) {
+			read(index, bucket);
+			if (bucket.from >= to)
+				break;
+			total.add(bucket);
+		}
+	}
+
+	/**
+	 * Removes all buckets starting at or after the time
+	 */
+	void truncate(long time) throws IOException {
+		long index = find(time);
+		if (index == count)
+			return;
+		channel.truncate(index * BUCKET_SIZE);
+		count = index;
+		if (count == 0) {
+			last = null;
+		} else {
+			read(count - 1, last);
+		}
+	}
+
+	void force() throws IOException {
+		if (channel != null)
+			channel.force(false);
+	}
+
+	void close() throws IOException {
+		if (channel != null)
+			channel.close();
+	}
+
+}
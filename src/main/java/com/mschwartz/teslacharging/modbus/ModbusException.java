@@ -0,0 +1,26 @@
+package com.mschwartz.teslacharging.modbus;
+
+import java.io.IOException;
+
+import lombok.Getter;
+
+/**
+ * The modbus device responded with an exception, e.g. 2 for an illegal data
+ * address.
+ *
+ * @author Mike
+ *
+ */
+public class ModbusException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	@Getter
+	private int exceptionCode;
+
+	public ModbusException(int function, int exceptionCode) {
+		super("Modbus exception " + exceptionCode + " for function " + function);
+		this.exceptionCode = exceptionCode;
+	}
+
+}
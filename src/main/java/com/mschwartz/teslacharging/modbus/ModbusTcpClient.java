@@ -0,0 +1,135 @@
+package com.mschwartz.teslacharging.modbus;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Minimal Modbus TCP client reading holding (function 3) or input registers
+ * (function 4). It keeps one connection open and reconnects with the next
+ * request after an error. Not thread safe, one client per poller.
+ *
+ * @author Mike
+ *
+ */
+public class ModbusTcpClient {
+
+	private static final Logger logger = LogManager.getLogger(ModbusTcpClient.class);
+
+	public static final int READ_HOLDING_REGISTERS = 3, READ_INPUT_REGISTERS = 4;
+
+	// maximum number of registers of one request
+	public static final int MAX_REGISTERS = 125;
+
+	private InetSocketAddress address;
+
+	private int unitId;
+
+	private int timeoutMillis;
+
+	// volatile so that close() can be called from another thread to unblock a read
+	private volatile Socket socket;
+
+	private DataInputStream in;
+
+	private OutputStream out;
+
+	private int transactionId;
+
+	public ModbusTcpClient(String host, int port, int unitId, int timeoutMillis) {
+		this.address = new InetSocketAddress(host, port);
+		this.unitId = unitId;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 *
+	 * @param function READ_HOLDING_REGISTERS or READ_INPUT_REGISTERS
+	 * @param start    the address of the first register, 0-based
+	 * @param count    number of registers, at most MAX_REGISTERS
+	 * @return the registers as unsigned 16 bit values
+	 * @throws ModbusException if the device responds with an exception
+	 * @throws IOException     if the connection fails, the connection is closed
+	 */
+	public int[] readRegisters(int function, int start, int count) throws IOException {
+		if (count < 1 || count > MAX_REGISTERS)
+			throw new IllegalArgumentException("count must be between 1 and " + MAX_REGISTERS + ": " + count);
+		try {
+			connect();
+			int id = transactionId = (transactionId + 1) & 0xffff;
+			ByteBuffer request = ByteBuffer.allocate(12);
+			request.putShort((short) id).putShort((short) 0).putShort((short) 6).put((byte) unitId)
+					.put((byte) function).putShort((short) start).putShort((short) count);
+			out.write(request.array());
+			out.flush();
+
+			int responseId = in.readUnsignedShort();
+			int protocol = in.readUnsignedShort();
+			int length = in.readUnsignedShort();
+			if (responseId != id || protocol != 0 || length < 3 || length > 256)
+				throw new IOException("Invalid modbus response header: transaction " + responseId + ", protocol "
+						+ protocol + ", length " + length);
+			byte[] pdu = new byte[length - 1];
+			in.readUnsignedByte(); // unit id
+			in.readFully(pdu);
+			if ((pdu[0] & 0xff) == (function | 0x80))
+				throw new ModbusException(function, pdu[1] & 0xff);
+			int byteCount = pdu[1] & 0xff;
+			if ((pdu[0] & 0xff) != function || byteCount != 2 * count || pdu.length < 2 + byteCount)
+				throw new IOException("Invalid modbus response for function " + function + " with " + byteCount
+						+ " bytes");
+			int[] registers = new int[count];
+			for (int i = 0; i < count; ++i)
+				registers[i] = ((pdu[2 + 2 * i] & 0xff) << 8) | (pdu[3 + 2 * i] & 0xff);
+			return registers;
+		} catch (ModbusException e) {
+			// the connection is fine
+			throw e;
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private void connect() throws IOException {
+		if (socket != null)
+			return;
+		logger.debug("Connecting to modbus device " + address);
+		Socket s = new Socket();
+		try {
+			s.setTcpNoDelay(true);
+			s.setSoTimeout(timeoutMillis);
+			s.connect(address, timeoutMillis);
+			in = new DataInputStream(s.getInputStream());
+			out = s.getOutputStream();
+			socket = s;
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+	}
+
+	public void close() {
+		Socket s = socket;
+		if (s == null)
+			return;
+		socket = null;
+		try {
+			s.close();
+		} catch (IOException e) {
+			logger.debug("Closing the modbus connection failed", e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "modbus " + address + " unit " + unitId;
+	}
+
+}
@@ -0,0 +1,159 @@
+package com.mschwartz.teslacharging.modbus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The registers of a meter or inverter which make up the power surplus. The map
+ * is given as a comma separated list of <code>address:type[*factor]</code>, e.g.
+ * <code>40087:int16*-1</code> or <code>40097:int16,40098:int16,40099:int16</code>
+ * for the power of three phases. Addresses are 0-based, the types are int16,
+ * uint16, int32, uint32 and float32. The surplus is the sum of all values
+ * multiplied by their factor. A register of type sunssf is a SunSpec scale
+ * factor, the sum is multiplied by ten to the power of its value.
+ *
+ * All registers are read with as few requests as possible.
+ *
+ * @author Mike
+ *
+ */
+public class RegisterMap {
+
+	private List<Register> registers = new ArrayList<Register>();
+
+	private boolean wordsSwapped;
+
+	// first register and number of registers of each request
+	private List<int[]> batches = new ArrayList<int[]>();
+
+	/**
+	 *
+	 * @param map          address:type[*factor],...
+	 * @param wordsSwapped <code>true</code> if 32 bit values start with the low
+	 *                     word
+	 * @throws IllegalArgumentException if the map is invalid
+	 */
+	public RegisterMap(String map, boolean wordsSwapped) {
+		this.wordsSwapped = wordsSwapped;
+		for (String entry : map.split(",")) {
+			entry = entry.trim();
+			String[] parts = entry.split("[:*]");
+			if (parts.length < 2 || parts.length > 3)
+				throw new IllegalArgumentException("Invalid register " + entry + ", use address:type[*factor]");
+			try {
+				Register register = new Register();
+				register.address = Integer.parseInt(parts[0].trim());
+				register.type = parts[1].trim().toLowerCase();
+				register.factor = parts.length == 3 ? Double.parseDouble(parts[2].trim()) : 1;
+				register.words = words(register.type);
+				if (register.address < 0 || register.address + register.words > 0x10000)
+					throw new IllegalArgumentException("Invalid register address " + entry);
+				registers.add(register);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid register " + entry, e);
+			}
+		}
+		createBatches();
+	}
+
+	private static int words(String type) {
+		switch (type) {
+		case "int16":
+		case "uint16":
+		case "sunssf":
+			return 1;
+		case "int32":
+		case "uint32":
+		case "float32":
+			return 2;
+		default:
+			throw new IllegalArgumentException("Unknown register type " + type);
+		}
+	}
+
+	private void createBatches() {
+		List<Register> sorted = new ArrayList<Register>(registers);
+		sorted.sort(Comparator.comparingInt(r -> r.address));
+		int[] batch = null;
+		for (Register register : sorted) {
+			int end = register.address + register.words;
+			if (batch != null && end - batch[0] <= ModbusTcpClient.MAX_REGISTERS) {
+				batch[1] = Math.max(batch[1], end - batch[0]);
+			} else {
+				batch = new int[] { register.address, register.words };
+				batches.add(batch);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of requests needed to read all registers
+	 */
+	public int getRequestCount() {
+		return batches.size();
+	}
+
+	/**
+	 * Reads all registers and calculates the power
+	 *
+	 * @param function READ_HOLDING_REGISTERS or READ_INPUT_REGISTERS
+	 * @return the power in watts
+	 * @throws IOException
+	 */
+	public double read(ModbusTcpClient client, int function) throws IOException {
+		List<int[]> values = new ArrayList<int[]>(batches.size());
+		for (int[] batch : batches)
+			values.add(client.readRegisters(function, batch[0], batch[1]));
+		double sum = 0, scale = 1;
+		for (Register register : registers) {
+			for (int i = 0; i < batches.size(); ++i) {
+				int[] batch = batches.get(i);
+				if (register.address >= batch[0] && register.address + register.words <= batch[0] + batch[1]) {
+					double value = decode(register.type, values.get(i), register.address - batch[0]);
+					if (register.type.equals("sunssf"))
+						scale *= Math.pow(10, value);
+					else
+						sum += value * register.factor;
+					break;
+				}
+			}
+		}
+		return sum * scale;
+	}
+
+	private double decode(String type, int[] words, int offset) {
+		switch (type) {
+		case "uint16":
+			return words[offset];
+		case "int16":
+		case "sunssf":
+			return (short) words[offset];
+		default:
+			int high = wordsSwapped ? words[offset + 1] : words[offset];
+			int low = wordsSwapped ? words[offset] : words[offset + 1];
+			int bits = (high << 16) | low;
+			if (type.equals("int32"))
+				return bits;
+			if (type.equals("uint32"))
+				return bits & 0xffffffffL;
+			return Float.intBitsToFloat(bits);
+		}
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	static class Register {
+
+		int address;
+
+		String type;
+
+		double factor;
+
+		int words;
+
+	}
+
+}
@@ -0,0 +1,98 @@
+package com.mschwartz.teslacharging.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.mschwartz.teslacharging.server.CommandServer.CommandRequest;
+import com.mschwartz.teslacharging.server.CommandServer.CommandResponse;
+
+import net.sourceforge.argparse4j.inf.Namespace;
+
+/**
+ * Forwards a command to a resident process started with --daemon. This way the
+ * commandline does not need to authenticate or to find the car again and only
+ * the resident process refreshes the tokens.
+ *
+ * @author Mike
+ *
+ */
+public class CommandClient {
+
+	static final Logger logger = LogManager.getLogger(CommandClient.class);
+
+	private File portFile;
+
+	private Gson gson = new Gson();
+
+	public CommandClient(File portFile) {
+		this.portFile = portFile;
+	}
+
+	/**
+	 * Forwards the command to the resident process and prints its messages.
+	 *
+	 * @param ns  the parsed commandline arguments
+	 * @param out receives the messages of the resident process
+	 * @return the exit code of the command or <code>null</code> if no resident
+	 *         process is running
+	 */
+	public Integer forward(Namespace ns, PrintStream out) {
+		if (!portFile.exists())
+			return null;
+		String[] parts;
+		try {
+			parts = new String(Files.readAllBytes(portFile.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+		} catch (IOException e) {
+			logger.warn("Cannot read " + portFile, e);
+			return null;
+		}
+		if (parts.length != 2)
+			return null;
+
+		CommandRequest request = new CommandRequest();
+		request.secret = parts[1];
+		request.attrs = ns.getAttrs();
+		try (Socket socket = new Socket()) {
+			try {
+				socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(parts[0])),
+						1000);
+			} catch (IOException | NumberFormatException e) {
+				// stale file, the resident process is gone
+				logger.debug("No resident process found at " + portFile, e);
+				return null;
+			}
+			// from now on do not fall back to local execution, the command may already
+			// have been sent to the car
+			Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+			writer.write(gson.toJson(request) + "\n");
+			writer.flush();
+			BufferedReader reader = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			CommandResponse response = gson.fromJson(reader.readLine(), CommandResponse.class);
+			if (response == null) {
+				out.println("No response from the resident process");
+				return 1;
+			}
+			out.print(response.output);
+			return response.exitCode;
+		} catch (IOException e) {
+			out.println("Communication with the resident process failed: " + e.getMessage());
+			return 1;
+		}
+	}
+
+}
@@ -0,0 +1,187 @@
+package com.mschwartz.teslacharging.server;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.mschwartz.teslacharging.CommandExecutor;
+import com.mschwartz.teslacharging.tesla.TeslaConfiguration;
+
+import net.sourceforge.argparse4j.inf.Namespace;
+
+/**
+ * Accepts commands forwarded by {@link CommandClient} and executes them in the
+ * resident process. The server listens on an ephemeral port of the loopback
+ * interface. Port and a random secret are written to a file next to the
+ * propertyfile which is only readable by the owner so that the commandline
+ * client can find the resident process.
+ *
+ * Each connection carries exactly one request line and one response line, both
+ * json encoded.
+ *
+ * @author Mike
+ *
+ */
+public class CommandServer {
+
+	static final Logger logger = LogManager.getLogger(CommandServer.class);
+
+	private CommandExecutor commandExecutor;
+
+	private File portFile;
+
+	private String secret;
+
+	private Gson gson = new Gson();
+
+	private ServerSocket serverSocket;
+
+	private ExecutorService executor;
+
+	public CommandServer(CommandExecutor commandExecutor, File portFile) {
+		this.commandExecutor = commandExecutor;
+		this.portFile = portFile;
+	}
+
+	/**
+	 * @return the file containing port and secret of the resident process for the
+	 *         given propertyfile
+	 */
+	public static File portFile(String propertiesFile) {
+		return new File(propertiesFile + ".port");
+	}
+
+	public synchronized void start() throws IOException {
+		if (serverSocket != null)
+			return;
+		byte[] random = new byte[16];
+		new SecureRandom().nextBytes(random);
+		secret = UUID.nameUUIDFromBytes(random).toString();
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		writePortFile(serverSocket.getLocalPort());
+		// commands are executed one after another, the tesla objects are shared
+		executor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "CommandServer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		Thread acceptThread = new Thread(this::acceptConnections, "CommandServer-accept");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+		logger.info("Command server listening on " + serverSocket.getLocalSocketAddress());
+	}
+
+	public synchronized void stop() {
+		if (serverSocket == null)
+			return;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+		}
+		executor.shutdown();
+		portFile.delete();
+		serverSocket = null;
+	}
+
+	private void writePortFile(int port) throws IOException {
+		TeslaConfiguration.replaceFile(portFile, (port + " " + secret).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void acceptConnections() {
+		ServerSocket socket = serverSocket;
+		while (!socket.isClosed()) {
+			try {
+				Socket connection = socket.accept();
+				executor.execute(() -> handle(connection));
+			} catch (IOException e) {
+				if (!socket.isClosed())
+					logger.error("Accepting connection failed", e);
+			}
+		}
+	}
+
+	private void handle(Socket connection) {
+		try (Socket s = connection) {
+			s.setSoTimeout(10000);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+			CommandRequest request = gson.fromJson(reader.readLine(), CommandRequest.class);
+			CommandResponse response = new CommandResponse();
+			if (request == null || !secret.equals(request.secret)) {
+				response.exitCode = 1;
+				response.output = "Access denied\n";
+			} else {
+				// the client waits for the result of the command
+				s.setSoTimeout(0);
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				PrintStream out = new PrintStream(bytes, true, "UTF-8");
+				try {
+					response.exitCode = commandExecutor.execute(new Namespace(toAttrs(request.attrs)), out);
+				} catch (Exception e) {
+					logger.error("Command failed", e);
+					out.println("Command failed: " + e);
+					response.exitCode = 1;
+				}
+				response.output = bytes.toString("UTF-8");
+			}
+			Writer writer = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+			writer.write(gson.toJson(response) + "\n");
+			writer.flush();
+		} catch (Exception e) {
+			logger.error("Handling command failed", e);
+		}
+	}
+
+	/**
+	 * Json numbers are parsed as doubles but all numeric arguments are integers.
+	 */
+	private Map<String, Object> toAttrs(Map<String, Object> attrs) {
+		Map<String, Object> result = new HashMap<String, Object>();
+		for (Map.Entry<String, Object> entry : attrs.entrySet()) {
+			Object value = entry.getValue();
+			if (value instanceof Double && ((Double) value) == Math.rint((Double) value))
+				value = ((Double) value).intValue();
+			result.put(entry.getKey(), value);
+		}
+		return result;
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	static class CommandRequest {
+
+		String secret;
+
+		Map<String, Object> attrs;
+
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	static class CommandResponse {
+
+		int exitCode;
+
+		String output;
+
+	}
+
+}
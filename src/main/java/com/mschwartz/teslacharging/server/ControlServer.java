@@ -0,0 +1,287 @@
+package com.mschwartz.teslacharging.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.mschwartz.teslacharging.ChargeDaemon;
+import com.mschwartz.teslacharging.surplus.PushSurplusSource;
+import com.mschwartz.teslacharging.tesla.TeslaCharge;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.ChargeState;
+import com.mschwartz.teslacharging.tesla.VehicleDataDecoder;
+import com.mschwartz.teslacharging.tesla.WakeStatistics;
+import com.mschwartz.teslacharging.web.RestRequest;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Small http server listening on the loopback interface only. It allows the
+ * smart home to control the car and to push the power surplus without starting
+ * a new java process for each request. All responses are json objects.
+ *
+ * Every request must carry the token in an <code>Authorization: Bearer</code>
+ * header, otherwise any local user could control the car. Requests with an
+ * <code>Origin</code> header or a <code>Host</code> other than the loopback
+ * interface come from a browser (e.g. a page sending a simple cross-origin
+ * request) and are refused.
+ *
+ * <pre>
+ * GET  /chargestate       the charge state of the car (cached for a few seconds)
+ * GET  /stats             the wake-ups caused by this program and the remaining request budget
+ * POST /charge/start      start charging
+ * POST /charge/stop       stop charging
+ * POST /chargeport/open   open the charge port door
+ * POST /chargeport/close  close the charge port door
+ * POST /chargelimit       set the charge limit, the body contains the percent
+ * POST /chargingamps      set the charging amps, the body contains the amps
+ * POST /wakeup            wake up the car
+ * POST /surplus           calculate the charging amps, the body contains the power surplus in watts
+ * </pre>
+ *
+ * @author Mike
+ *
+ */
+public class ControlServer {
+
+	static final Logger logger = LogManager.getLogger(ControlServer.class);
+
+	private TeslaVehicle teslaVehicle;
+
+	private TeslaCharge teslaCharge;
+
+	private ChargeDaemon chargeDaemon;
+
+	private PushSurplusSource pushSurplusSource;
+
+	// expected in the Authorization header
+	private byte[] token;
+
+	private Gson gson = RestRequest.getGson();
+
+	private HttpServer httpServer;
+
+	private ExecutorService executor;
+
+	/**
+	 *
+	 * @param pushSurplusSource receives the values posted to /surplus, may be
+	 *                          <code>null</code> if the daemon uses a different
+	 *                          source
+	 * @param token             the bearer token clients have to send
+	 */
+	public ControlServer(TeslaVehicle teslaVehicle, TeslaCharge teslaCharge, ChargeDaemon chargeDaemon,
+			PushSurplusSource pushSurplusSource, String token) {
+		this.teslaVehicle = teslaVehicle;
+		this.teslaCharge = teslaCharge;
+		this.chargeDaemon = chargeDaemon;
+		this.pushSurplusSource = pushSurplusSource;
+		this.token = ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return a random token for HTTP_TOKEN
+	 */
+	public static String createToken() {
+		byte[] random = new byte[24];
+		new SecureRandom().nextBytes(random);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+	}
+
+	public synchronized void start(int port) throws IOException {
+		if (httpServer != null)
+			return;
+		httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		httpServer.createContext("/chargestate", exchange -> handle(exchange, "GET", this::chargeState));
+		httpServer.createContext("/stats", exchange -> handle(exchange, "GET", this::stats));
+		httpServer.createContext("/charge/start",
+				exchange -> handle(exchange, "POST", body -> command(teslaCharge.startCharging())));
+		httpServer.createContext("/charge/stop",
+				exchange -> handle(exchange, "POST", body -> command(teslaCharge.stopCharging())));
+		httpServer.createContext("/chargeport/open",
+				exchange -> handle(exchange, "POST", body -> command(teslaCharge.chargePortOpen())));
+		httpServer.createContext("/chargeport/close",
+				exchange -> handle(exchange, "POST", body -> command(teslaCharge.chargePortClose())));
+		httpServer.createContext("/chargelimit", exchange -> handle(exchange, "POST",
+				body -> command(teslaCharge.setChargeLimit(parseInt(body, 30, 100)))));
+		httpServer.createContext("/chargingamps", exchange -> handle(exchange, "POST",
+				body -> command(teslaCharge.setChargingAmps(parseInt(body, 3, 32)))));
+		httpServer.createContext("/wakeup", exchange -> handle(exchange, "POST", this::wakeUp));
+		httpServer.createContext("/surplus", exchange -> handle(exchange, "POST", this::surplus));
+		// a few threads so that cached reads are not blocked by a slow command
+		executor = Executors.newFixedThreadPool(4, runnable -> {
+			Thread thread = new Thread(runnable, "ControlServer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		httpServer.setExecutor(executor);
+		httpServer.start();
+		logger.info("Control server listening on " + httpServer.getAddress());
+	}
+
+	public synchronized void stop() {
+		if (httpServer == null)
+			return;
+		httpServer.stop(1);
+		executor.shutdown();
+		httpServer = null;
+	}
+
+	private Map<String, Object> chargeState(String body) throws Exception {
+		ChargeState chargeState = teslaVehicle.getVehicleChargeState();
+		if (chargeState == null)
+			return failure("getting charge state failed");
+		Map<String, Object> result = success();
+		result.put("charge_state", chargeState);
+		result.put("age_seconds", teslaVehicle.getDataAgeMillis(VehicleDataDecoder.CHARGE_STATE) / 1000);
+		return result;
+	}
+
+	private Map<String, Object> stats(String body) {
+		WakeStatistics wakeStatistics = teslaVehicle.getWakeStatistics();
+		Map<String, Object> result = success();
+		result.put("wake_ups", wakeStatistics.getWakeUps());
+		result.put("awake_minutes", wakeStatistics.getAwakeMinutes());
+		result.put("observed_minutes", wakeStatistics.getObservedMinutes());
+		result.put("remaining_request_budget", teslaVehicle.getRemainingRequestBudget());
+		return result;
+	}
+
+	private Map<String, Object> wakeUp(String body) throws Exception {
+		if (teslaVehicle.wakeUpVehicle())
+			return success();
+		return failure("Tesla is still sleeping");
+	}
+
+	private Map<String, Object> surplus(String body) throws Exception {
+		int power = parseInt(body, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		if (pushSurplusSource != null)
+			pushSurplusSource.setSurplus(power);
+		Integer watts = chargeDaemon.runCycle(power);
+		if (watts == null)
+			return failure("charging not adapted");
+		Map<String, Object> result = success();
+		result.put("watts", watts);
+		return result;
+	}
+
+	/**
+	 *
+	 * @param reason the result of a {@link TeslaCharge} command
+	 */
+	private Map<String, Object> command(String reason) {
+		return reason == null ? success() : failure(reason);
+	}
+
+	private Map<String, Object> success() {
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("result", true);
+		return result;
+	}
+
+	private Map<String, Object> failure(String reason) {
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("result", false);
+		result.put("reason", reason);
+		return result;
+	}
+
+	private int parseInt(String body, int min, int max) {
+		int value;
+		try {
+			value = Integer.parseInt(body.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("body must contain a number: " + body);
+		}
+		if (value < min || value > max)
+			throw new IllegalArgumentException("value must be between " + min + " and " + max + ": " + value);
+		return value;
+	}
+
+	private void handle(HttpExchange exchange, String method, Handler handler) throws IOException {
+		try {
+			if (exchange.getRequestHeaders().containsKey("Origin")
+					|| !isLoopback(exchange.getRequestHeaders().getFirst("Host"))) {
+				send(exchange, 403, failure("requests from browsers are not allowed"));
+				return;
+			}
+			if (!isAuthorized(exchange.getRequestHeaders().getFirst("Authorization"))) {
+				exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+				send(exchange, 401, failure("missing or invalid token"));
+				return;
+			}
+			if (!exchange.getRequestMethod().equalsIgnoreCase(method)) {
+				send(exchange, 405, failure("method " + exchange.getRequestMethod() + " not allowed"));
+				return;
+			}
+			String body;
+			try (InputStream is = exchange.getRequestBody()) {
+				body = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+			}
+			logger.debug(method + " " + exchange.getRequestURI() + " " + body);
+			send(exchange, 200, handler.handle(body));
+		} catch (IllegalArgumentException e) {
+			send(exchange, 400, failure(e.getMessage()));
+		} catch (Exception e) {
+			logger.error("Request " + exchange.getRequestURI() + " failed", e);
+			send(exchange, 500, failure(e.toString()));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private boolean isAuthorized(String authorization) {
+		// constant time so that the token cannot be guessed byte by byte
+		return authorization != null
+				&& MessageDigest.isEqual(token, authorization.trim().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 *
+	 * @param host the Host header, e.g. 127.0.0.1:8085, may be <code>null</code>
+	 *             for http/1.0 clients
+	 */
+	static boolean isLoopback(String host) {
+		if (host == null)
+			return true;
+		host = host.trim().toLowerCase();
+		if (host.startsWith("["))
+			return host.startsWith("[::1]");
+		int colon = host.indexOf(':');
+		if (colon >= 0)
+			host = host.substring(0, colon);
+		return host.equals("localhost") || host.matches("127\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}");
+	}
+
+	private void send(HttpExchange exchange, int status, Map<String, Object> result) throws IOException {
+		byte[] response = gson.toJson(result).getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, response.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(response);
+		}
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	private interface Handler {
+
+		Map<String, Object> handle(String body) throws Exception;
+
+	}
+
+}
@@ -0,0 +1,74 @@
+package com.mschwartz.teslacharging.simulation;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Runs a simulation for each combination of parameters on all cores. The list
+ * of combinations is split in halves until a single run is left, the fork-join
+ * pool balances the runs over the cores.
+ *
+ * @author Mike
+ *
+ */
+public class ParameterSweep extends RecursiveTask<List<SimulationResult>> {
+
+	private static final long serialVersionUID = 1L;
+
+	// the settings varied if no sweep is given
+	public static final String DEFAULT_SWEEP = "controller=simple,pi minamps=1,3,5 smoothing=60,300,900 deadband=1,2,3 maximport=250,500,1000";
+
+	private transient Simulation simulation;
+
+	private transient List<SimulationParameters> parameters;
+
+	public ParameterSweep(Simulation simulation, List<SimulationParameters> parameters) {
+		this.simulation = simulation;
+		this.parameters = parameters;
+	}
+
+	/**
+	 * Runs all combinations
+	 *
+	 * @return the results in the order of the parameters
+	 */
+	public List<SimulationResult> run() {
+		return ForkJoinPool.commonPool().invoke(this);
+	}
+
+	@Override
+	protected List<SimulationResult> compute() {
+		if (parameters.size() == 1) {
+			List<SimulationResult> results = new ArrayList<SimulationResult>(1);
+			try {
+				results.add(simulation.run(parameters.get(0)));
+			} catch (Exception e) {
+				throw new IllegalStateException("Simulation " + parameters.get(0) + " failed", e);
+			}
+			return results;
+		}
+		int half = parameters.size() / 2;
+		ParameterSweep second = new ParameterSweep(simulation, parameters.subList(half, parameters.size()));
+		second.fork();
+		List<SimulationResult> results = new ParameterSweep(simulation, parameters.subList(0, half)).compute();
+		results.addAll(second.join());
+		return results;
+	}
+
+	/**
+	 * Prints the results, least grid import first
+	 */
+	public static void print(List<SimulationResult> results, PrintStream out) {
+		List<SimulationResult> sorted = new ArrayList<SimulationResult>(results);
+		sorted.sort(Comparator.comparingDouble(SimulationResult::getGridImportWh)
+				.thenComparingInt(SimulationResult::getCommands));
+		out.println(SimulationResult.header());
+		for (SimulationResult result : sorted)
+			out.println(result);
+	}
+
+}
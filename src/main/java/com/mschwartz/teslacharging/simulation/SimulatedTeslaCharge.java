@@ -0,0 +1,41 @@
+package com.mschwartz.teslacharging.simulation;
+
+import java.time.Clock;
+
+import com.mschwartz.teslacharging.tesla.TeslaCharge;
+
+import lombok.Getter;
+
+/**
+ * Sends the commands to a {@link SimulatedVehicle} instead of the tesla
+ * servers. Everything else, e.g. remembering the commanded state, works as
+ * with the real car.
+ *
+ * @author Mike
+ *
+ */
+class SimulatedTeslaCharge extends TeslaCharge {
+
+	private SimulatedVehicle vehicle;
+
+	private Clock clock;
+
+	// commands which reached the car, successful or not
+	@Getter
+	private int commands;
+
+	SimulatedTeslaCharge(SimulatedVehicle vehicle, Clock clock) {
+		super(null, null, null);
+		this.vehicle = vehicle;
+		this.clock = clock;
+		getCommandedState().setClock(clock);
+	}
+
+	@Override
+	protected String sendCommand(String command, Object body, boolean wakeUp) {
+		++commands;
+		int amps = body instanceof ChargingAmpsValue ? ((ChargingAmpsValue) body).getCharging_amps() : 0;
+		return vehicle.command(command, amps, clock.millis());
+	}
+
+}
@@ -0,0 +1,181 @@
+package com.mschwartz.teslacharging.simulation;
+
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.ChargeState;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * A car plugged in at home. It charges with the amps requested last once
+ * charging has been started, after a short start phase. The voltage drops a
+ * little with the current, the battery gets the power minus the losses of the
+ * charger. Charging completes at the charge limit. Every day at midnight the
+ * energy used for driving is taken from the battery.
+ *
+ * @author Mike
+ *
+ */
+public class SimulatedVehicle {
+
+	// time between charge_start and the current flowing
+	static final long STARTING_MILLIS = 30 * 1000;
+
+	static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+	@Setter
+	private int capacityWh = 75000;
+
+	@Setter
+	private int chargeLimitPercent = 80;
+
+	@Setter
+	private int phases = 3;
+
+	@Setter
+	private int nominalVoltage = 230;
+
+	// voltage drop per amp of the line to the wall charger
+	@Setter
+	private double voltageDropPerAmp = 0.25;
+
+	@Setter
+	private int maxAmps = 16;
+
+	@Setter
+	private double efficiency = 0.9;
+
+	@Setter
+	private int dailyDrivingWh = 5000;
+
+	@Getter
+	private double energyWh;
+
+	private int requestedAmps = 16;
+
+	private boolean charging;
+
+	private long startingUntil;
+
+	private long updated;
+
+	private ChargeState chargeState = new ChargeState();
+
+	/**
+	 *
+	 * @param now the start of the simulation
+	 */
+	public SimulatedVehicle(long now) {
+		updated = now;
+		setSocPercent(50);
+	}
+
+	/**
+	 * Sets the state of charge, call it after the capacity
+	 */
+	public void setSocPercent(double percent) {
+		energyWh = capacityWh * percent / 100;
+	}
+
+	public double getSocPercent() {
+		return energyWh * 100 / capacityWh;
+	}
+
+	private boolean isComplete() {
+		return getSocPercent() >= chargeLimitPercent;
+	}
+
+	/**
+	 *
+	 * @return the amps flowing at the given time
+	 */
+	int getActualCurrent(long now) {
+		if (!charging || now < startingUntil)
+			return 0;
+		return Math.min(requestedAmps, maxAmps);
+	}
+
+	int getVoltage(long now) {
+		int amps = getActualCurrent(now);
+		return amps == 0 ? 0 : (int) Math.round(nominalVoltage - voltageDropPerAmp * amps);
+	}
+
+	/**
+	 *
+	 * @return the power in watts taken from the grid at the given time
+	 */
+	public int getPower(long now) {
+		return getActualCurrent(now) * getVoltage(now) * phases;
+	}
+
+	/**
+	 * Charges the battery with the current power until now
+	 */
+	public void advance(long now) {
+		if (now <= updated)
+			return;
+		int power = getPower(updated);
+		if (power > 0) {
+			energyWh += power * efficiency * (now - updated) / 3600000.0;
+			if (isComplete()) {
+				energyWh = capacityWh * chargeLimitPercent / 100.0;
+				charging = false;
+			}
+		}
+		long days = now / DAY_MILLIS - updated / DAY_MILLIS;
+		if (days > 0)
+			energyWh = Math.max(0, energyWh - days * dailyDrivingWh);
+		updated = now;
+	}
+
+	/**
+	 * Executes a command of the owner api
+	 *
+	 * @param amps the amps of set_charging_amps
+	 * @return <code>null</code> if successful or the reason why the command failed
+	 */
+	String command(String command, int amps, long now) {
+		switch (command) {
+		case "charge_start":
+			if (isComplete())
+				return "complete";
+			if (charging)
+				return "is_charging";
+			charging = true;
+			startingUntil = now + STARTING_MILLIS;
+			return null;
+		case "charge_stop":
+			if (!charging)
+				return "not_charging";
+			charging = false;
+			return null;
+		case "set_charging_amps":
+			requestedAmps = Math.max(0, Math.min(32, amps));
+			return null;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 *
+	 * @return the charge state as reported by the tesla servers. The same
+	 *         instance is returned with each call.
+	 */
+	public ChargeState getChargeState(long now) {
+		int amps = getActualCurrent(now);
+		chargeState.setTimestamp(now);
+		chargeState.setCharging_state(charging ? (amps > 0 ? "Charging" : "Starting")
+				: isComplete() ? "Complete" : "Stopped");
+		chargeState.setBattery_level((int) getSocPercent());
+		chargeState.setCharge_limit_soc(chargeLimitPercent);
+		chargeState.setCharge_current_request(requestedAmps);
+		chargeState.setCharge_current_request_max(maxAmps);
+		chargeState.setCharger_actual_current(amps);
+		chargeState.setCharger_voltage(getVoltage(now));
+		chargeState.setCharger_phases(amps > 0 ? phases : null);
+		chargeState.setCharger_power(getPower(now) / 1000);
+		chargeState.setCharge_port_door_open(true);
+		return chargeState;
+	}
+
+}
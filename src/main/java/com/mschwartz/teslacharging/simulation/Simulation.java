@@ -0,0 +1,79 @@
+package com.mschwartz.teslacharging.simulation;
+
+import com.mschwartz.teslacharging.ChargeCalculation;
+import com.mschwartz.teslacharging.PiChargeController;
+
+/**
+ * Replays a surplus curve against a {@link SimulatedVehicle}. The charge
+ * calculation runs every <code>intervalSeconds</code> with the surplus the
+ * meter sees at that time (the surplus of the house minus the consumption of
+ * the car) and its commands change the charging of the simulated car.
+ *
+ * @author Mike
+ *
+ */
+public class Simulation {
+
+	// state of charge at the start of the simulation
+	static final int INITIAL_SOC_PERCENT = 50;
+
+	private SurplusCurve curve;
+
+	public Simulation(SurplusCurve curve) {
+		this.curve = curve;
+	}
+
+	/**
+	 * Runs the simulation over the whole curve
+	 *
+	 * @throws Exception
+	 */
+	public SimulationResult run(SimulationParameters parameters) throws Exception {
+		SimulationClock clock = new SimulationClock();
+		long start = curve.getStart(), stepMillis = curve.getStepMillis();
+		clock.setMillis(start);
+		SimulatedVehicle vehicle = new SimulatedVehicle(start);
+		vehicle.setSocPercent(INITIAL_SOC_PERCENT);
+		SimulatedTeslaCharge teslaCharge = new SimulatedTeslaCharge(vehicle, clock);
+		ChargeCalculation chargeCalculation = new ChargeCalculation(teslaCharge);
+		chargeCalculation.setMinAmps(parameters.getMinAmps());
+		if (parameters.isPi()) {
+			PiChargeController controller = new PiChargeController(teslaCharge, null);
+			controller.setClock(clock);
+			controller.setSmoothingSeconds(parameters.getSmoothingSeconds());
+			controller.setDeadBandAmps(parameters.getDeadBandAmps());
+			controller.setMaxGridImportWatts(parameters.getMaxGridImportWatts());
+			controller.setMinOnSeconds(parameters.getMinOnSeconds());
+			controller.setMinOffSeconds(parameters.getMinOffSeconds());
+			chargeCalculation.setController(controller);
+		}
+
+		SimulationResult result = new SimulationResult(parameters);
+		int[] watts = curve.getWatts();
+		double stepHours = stepMillis / 3600000.0;
+		long intervalMillis = Math.max(stepMillis, parameters.getIntervalSeconds() * 1000L);
+		long nextCalculation = start;
+		for (int i = 0; i < watts.length; ++i) {
+			long now = start + i * stepMillis;
+			clock.setMillis(now);
+			vehicle.advance(now);
+			if (now >= nextCalculation) {
+				chargeCalculation.adaptCharging(vehicle.getChargeState(now), watts[i] - vehicle.getPower(now));
+				nextCalculation += intervalMillis;
+			}
+			int car = vehicle.getPower(now);
+			int surplus = Math.max(0, watts[i]);
+			int solar = Math.min(car, surplus);
+			result.chargedWh += car * stepHours;
+			result.solarWh += solar * stepHours;
+			result.surplusWh += surplus * stepHours;
+			// the import of the house itself does not count
+			result.gridImportWh += (car - solar) * stepHours;
+		}
+		vehicle.advance(start + watts.length * stepMillis);
+		result.commands = teslaCharge.getCommands();
+		result.finalSocPercent = vehicle.getSocPercent();
+		return result;
+	}
+
+}
@@ -0,0 +1,144 @@
+package com.mschwartz.teslacharging.simulation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * The settings of the charge calculation for one run of a simulation
+ *
+ * @author Mike
+ *
+ */
+@Getter
+@Setter
+public class SimulationParameters implements Cloneable {
+
+	// "simple" or "pi", see CHARGE_CONTROLLER
+	private String controller = "simple";
+
+	private int minAmps = 1;
+
+	// seconds between two charge calculations
+	private int intervalSeconds = 60;
+
+	// used by the pi controller only
+	private int smoothingSeconds = 300;
+
+	private int deadBandAmps = 2;
+
+	private int maxGridImportWatts = 500;
+
+	private int minOnSeconds = 600, minOffSeconds = 600;
+
+	/**
+	 * Creates all combinations of the values given in the sweep, e.g.
+	 * <code>controller=simple,pi minamps=1,3,5 smoothing=60,300</code>. The
+	 * settings of the pi controller are only varied for the pi controller.
+	 *
+	 * @param sweep name=value[,value...] separated by blanks, names are
+	 *              controller, minamps, interval, smoothing, deadband, maximport,
+	 *              minon and minoff
+	 * @throws IllegalArgumentException if the sweep is invalid
+	 */
+	public static List<SimulationParameters> sweep(String sweep) {
+		List<SimulationParameters> combinations = new ArrayList<SimulationParameters>();
+		combinations.add(new SimulationParameters());
+		for (String setting : sweep.trim().split("\\s+")) {
+			if (setting.isEmpty())
+				continue;
+			String[] parts = setting.split("=");
+			if (parts.length != 2)
+				throw new IllegalArgumentException("Invalid sweep " + setting + ", use name=value[,value...]");
+			String name = parts[0].toLowerCase();
+			List<SimulationParameters> expanded = new ArrayList<SimulationParameters>();
+			for (SimulationParameters combination : combinations) {
+				for (String value : parts[1].split(",")) {
+					SimulationParameters parameters = combination.copy();
+					parameters.set(name, value.trim());
+					if (!expanded.contains(parameters))
+						expanded.add(parameters);
+				}
+			}
+			combinations = expanded;
+		}
+		return combinations;
+	}
+
+	private void set(String name, String value) {
+		if (name.equals("controller")) {
+			if (!value.equals("simple") && !value.equals("pi"))
+				throw new IllegalArgumentException("Unknown controller " + value + ", use simple or pi");
+			controller = value;
+			return;
+		}
+		int number;
+		try {
+			number = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value " + value + " of " + name);
+		}
+		switch (name) {
+		case "minamps":
+			minAmps = number;
+			break;
+		case "interval":
+			intervalSeconds = number;
+			break;
+		case "smoothing":
+			smoothingSeconds = number;
+			break;
+		case "deadband":
+			deadBandAmps = number;
+			break;
+		case "maximport":
+			maxGridImportWatts = number;
+			break;
+		case "minon":
+			minOnSeconds = number;
+			break;
+		case "minoff":
+			minOffSeconds = number;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown sweep parameter " + name);
+		}
+	}
+
+	public boolean isPi() {
+		return controller.equals("pi");
+	}
+
+	SimulationParameters copy() {
+		try {
+			return (SimulationParameters) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof SimulationParameters && toString().equals(other.toString());
+	}
+
+	@Override
+	public int hashCode() {
+		return toString().hashCode();
+	}
+
+	/**
+	 * Only lists the settings used by the controller
+	 */
+	@Override
+	public String toString() {
+		String text = controller + " minamps=" + minAmps + " interval=" + intervalSeconds;
+		if (isPi())
+			text += " smoothing=" + smoothingSeconds + " deadband=" + deadBandAmps + " maximport=" + maxGridImportWatts
+					+ " minon=" + minOnSeconds + " minoff=" + minOffSeconds;
+		return text;
+	}
+
+}
@@ -0,0 +1,65 @@
+package com.mschwartz.teslacharging.simulation;
+
+import lombok.Getter;
+
+/**
+ * The outcome of one run of a simulation
+ *
+ * @author Mike
+ *
+ */
+@Getter
+public class SimulationResult {
+
+	private SimulationParameters parameters;
+
+	// energy charged into the car
+	double chargedWh;
+
+	// part of the charged energy covered by the surplus
+	double solarWh;
+
+	// surplus available to the car
+	double surplusWh;
+
+	// energy bought from the grid because of the car
+	double gridImportWh;
+
+	// commands sent to the car
+	int commands;
+
+	double finalSocPercent;
+
+	SimulationResult(SimulationParameters parameters) {
+		this.parameters = parameters;
+	}
+
+	/**
+	 *
+	 * @return the part of the charged energy covered by the surplus, 0 - 1
+	 */
+	public double getSolarShare() {
+		return chargedWh > 0 ? solarWh / chargedWh : 0;
+	}
+
+	/**
+	 *
+	 * @return the part of the surplus used by the car instead of being sent to the
+	 *         grid, 0 - 1
+	 */
+	public double getSelfConsumption() {
+		return surplusWh > 0 ? solarWh / surplusWh : 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%8.0f %8.0f %6.0f %6.0f %8d %5.0f  %s", chargedWh / 1000, gridImportWh / 1000,
+				getSolarShare() * 100, getSelfConsumption() * 100, commands, finalSocPercent, parameters);
+	}
+
+	static String header() {
+		return String.format("%8s %8s %6s %6s %8s %5s  %s", "kWh", "grid kWh", "solar%", "self%", "commands", "soc%",
+				"parameters");
+	}
+
+}
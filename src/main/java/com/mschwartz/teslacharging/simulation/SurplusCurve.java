@@ -0,0 +1,124 @@
+package com.mschwartz.teslacharging.simulation;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.mschwartz.teslacharging.history.ChargeHistory;
+import com.mschwartz.teslacharging.history.ChargeRecord;
+import com.mschwartz.teslacharging.history.ChargeSummary;
+
+import lombok.Getter;
+
+/**
+ * The power surplus of the house without the car, one value per step. Positive
+ * values are sent to the grid unless the car uses them. The curve is shared by
+ * all runs of a sweep and never changed.
+ *
+ * @author Mike
+ *
+ */
+@Getter
+public class SurplusCurve {
+
+	private long start;
+
+	private long stepMillis;
+
+	private int[] watts;
+
+	public SurplusCurve(long start, long stepMillis, int[] watts) {
+		this.start = start;
+		this.stepMillis = stepMillis;
+		this.watts = watts;
+	}
+
+	public int size() {
+		return watts.length;
+	}
+
+	/**
+	 * Creates the surplus from the recorded history. The consumption of the car
+	 * recorded with a sample is added back to its surplus. A step without a sample
+	 * keeps the surplus of the step before unless the gap is longer than
+	 * {@link ChargeSummary#MAX_INTERVAL_MILLIS}, then the surplus is 0.
+	 *
+	 * @return <code>null</code> if the history does not contain a surplus
+	 * @throws IOException
+	 */
+	public static SurplusCurve fromHistory(ChargeHistory history, long from, long to, long stepMillis)
+			throws IOException {
+		long[] range = { Long.MAX_VALUE, Long.MIN_VALUE };
+		history.read(from, to, record -> {
+			if (record.getSurplus() != ChargeRecord.UNKNOWN_SURPLUS) {
+				range[0] = Math.min(range[0], record.getTimestamp());
+				range[1] = Math.max(range[1], record.getTimestamp());
+			}
+		});
+		if (range[0] > range[1])
+			return null;
+		long start = range[0] - range[0] % stepMillis;
+		int[] watts = new int[(int) ((range[1] - start) / stepMillis) + 1];
+		long[] last = { Long.MIN_VALUE };
+		int[] filled = { 0 };
+		history.read(start, range[1] + 1, record -> {
+			if (record.getSurplus() == ChargeRecord.UNKNOWN_SURPLUS)
+				return;
+			int index = (int) ((record.getTimestamp() - start) / stepMillis);
+			// steps since the previous sample keep its surplus
+			if (record.getTimestamp() - last[0] <= ChargeSummary.MAX_INTERVAL_MILLIS && filled[0] < index)
+				Arrays.fill(watts, filled[0], index, watts[filled[0] - 1]);
+			watts[index] = record.getSurplus() + record.getChargingWatts();
+			filled[0] = index + 1;
+			last[0] = record.getTimestamp();
+		});
+		return new SurplusCurve(start, stepMillis, watts);
+	}
+
+	/**
+	 * Creates a year like surplus: the production of the panels follows the sun
+	 * (longer and stronger days in summer), clouds pass by and reduce the
+	 * production for some minutes, the house consumes a base load plus some
+	 * appliances now and then.
+	 *
+	 * @param peakWatts the production at noon of a clear summer day
+	 * @param seed      the same seed creates the same curve
+	 */
+	public static SurplusCurve synthetic(long start, int days, long stepMillis, int peakWatts, long seed) {
+		Random random = new Random(seed);
+		int steps = (int) (days * SimulatedVehicle.DAY_MILLIS / stepMillis);
+		int[] watts = new int[steps];
+		boolean cloudy = false;
+		double cloudFactor = 1;
+		int applianceSteps = 0, applianceWatts = 0;
+		double stepMinutes = stepMillis / 60000.0;
+		for (int i = 0; i < steps; ++i) {
+			long time = start + i * stepMillis;
+			double dayOfYear = (time / SimulatedVehicle.DAY_MILLIS) % 365;
+			double season = Math.sin(2 * Math.PI * (dayOfYear - 80) / 365);
+			double hour = (time % SimulatedVehicle.DAY_MILLIS) / 3600000.0;
+			double dayLength = 12 + 4 * season;
+			double sunrise = 12 - dayLength / 2;
+			double production = 0;
+			if (hour > sunrise && hour < sunrise + dayLength)
+				production = peakWatts * (0.65 + 0.35 * season) * Math.sin(Math.PI * (hour - sunrise) / dayLength);
+			// clouds come and go every few minutes
+			if (random.nextDouble() < 0.05 * stepMinutes) {
+				cloudy = !cloudy;
+				cloudFactor = cloudy ? 0.2 + 0.4 * random.nextDouble() : 1;
+			}
+			double consumption = 300 + (hour >= 6 && hour < 8 || hour >= 18 && hour < 22 ? 400 : 0);
+			if (applianceSteps > 0) {
+				--applianceSteps;
+				consumption += applianceWatts;
+			} else if (random.nextDouble() < 0.005 * stepMinutes) {
+				// washing machine, oven, ...
+				applianceSteps = (int) ((20 + random.nextInt(60)) / stepMinutes);
+				applianceWatts = 1000 + random.nextInt(2000);
+			}
+			watts[i] = (int) Math.round(production * cloudFactor - consumption + random.nextGaussian() * 50);
+		}
+		return new SurplusCurve(start, stepMillis, watts);
+	}
+
+}
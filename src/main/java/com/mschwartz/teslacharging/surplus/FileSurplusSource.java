@@ -0,0 +1,51 @@
+package com.mschwartz.teslacharging.surplus;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads the power surplus from a file. The smart home writes the current
+ * surplus in watts into this file whenever it gets a new value from the meter.
+ * Values older than the given maximum age are ignored so that we do not charge
+ * based on outdated data if the smart home stops updating the file.
+ * 
+ * @author Mike
+ *
+ */
+public class FileSurplusSource implements SurplusSource {
+
+	private static final Logger logger = LogManager.getLogger(FileSurplusSource.class);
+
+	private File file;
+
+	private long maxAgeMillis;
+
+	public FileSurplusSource(String fileName, int maxAgeSeconds) {
+		this.file = new File(fileName);
+		this.maxAgeMillis = maxAgeSeconds * 1000L;
+	}
+
+	@Override
+	public Integer getSurplus() throws Exception {
+		if (!file.exists()) {
+			logger.warn("Surplus file " + file + " does not exist");
+			return null;
+		}
+		if (System.currentTimeMillis() - file.lastModified() > maxAgeMillis) {
+			logger.warn("Surplus file " + file + " is outdated");
+			return null;
+		}
+		String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+		try {
+			return (int) Math.round(Double.parseDouble(content));
+		} catch (NumberFormatException e) {
+			logger.warn("Surplus file " + file + " contains no number: " + content);
+			return null;
+		}
+	}
+
+}
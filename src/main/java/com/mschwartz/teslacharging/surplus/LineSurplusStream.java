@@ -0,0 +1,45 @@
+package com.mschwartz.teslacharging.surplus;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads one sample per line from an input stream, usually the standard input
+ * of the daemon fed by the program reading the inverter.
+ *
+ * @author Mike
+ *
+ */
+public class LineSurplusStream extends SurplusStream {
+
+	private static final Logger logger = LogManager.getLogger(LineSurplusStream.class);
+
+	private BufferedReader reader;
+
+	public LineSurplusStream(InputStream is, WindowedSurplusSource target) {
+		super(target);
+		reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+	}
+
+	@Override
+	protected void read() throws Exception {
+		String line;
+		while (running && (line = reader.readLine()) != null)
+			target.add(line);
+		if (running) {
+			logger.warn("End of the surplus stream reached");
+			running = false;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "standard input";
+	}
+
+}
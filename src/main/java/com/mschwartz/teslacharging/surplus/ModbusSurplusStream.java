@@ -0,0 +1,108 @@
+package com.mschwartz.teslacharging.surplus;
+
+import java.io.IOException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.mschwartz.teslacharging.modbus.ModbusTcpClient;
+import com.mschwartz.teslacharging.modbus.RegisterMap;
+
+/**
+ * Polls the power surplus from a meter or inverter via Modbus TCP several times
+ * a second and adds it to the window. No external script is needed.
+ *
+ * @author Mike
+ *
+ */
+public class ModbusSurplusStream extends SurplusStream {
+
+	private static final Logger logger = LogManager.getLogger(ModbusSurplusStream.class);
+
+	static final int DEFAULT_PORT = 502, TIMEOUT_MILLIS = 2000;
+
+	// time between two connection attempts while the device does not respond
+	static final long RETRY_MILLIS = 5000;
+
+	private ModbusTcpClient client;
+
+	private RegisterMap registerMap;
+
+	private int function;
+
+	private long pollMillis;
+
+	// only the first of consecutive failures is logged as warning
+	private boolean failing;
+
+	public ModbusSurplusStream(ModbusTcpClient client, RegisterMap registerMap, int function, long pollMillis,
+			WindowedSurplusSource target) {
+		super(target);
+		this.client = client;
+		this.registerMap = registerMap;
+		this.function = function;
+		this.pollMillis = pollMillis;
+	}
+
+	/**
+	 *
+	 * @param hostAndPort  host[:port] of the meter
+	 * @param registers    the register map, see {@link RegisterMap}
+	 * @param wordsSwapped <code>true</code> if 32 bit values start with the low
+	 *                     word
+	 * @param function     3 for holding registers, 4 for input registers
+	 * @throws IllegalArgumentException if a parameter is invalid
+	 */
+	public static ModbusSurplusStream create(String hostAndPort, String registers, boolean wordsSwapped,
+			int unitId, int function, int pollMillis, WindowedSurplusSource target) {
+		if (registers == null)
+			throw new IllegalArgumentException("No modbus registers given");
+		if (function != ModbusTcpClient.READ_HOLDING_REGISTERS && function != ModbusTcpClient.READ_INPUT_REGISTERS)
+			throw new IllegalArgumentException("Unsupported modbus function " + function);
+		int colon = hostAndPort.lastIndexOf(':');
+		String host = colon < 0 ? hostAndPort : hostAndPort.substring(0, colon);
+		int port;
+		try {
+			port = colon < 0 ? DEFAULT_PORT : Integer.parseInt(hostAndPort.substring(colon + 1));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid modbus address " + hostAndPort, e);
+		}
+		return new ModbusSurplusStream(new ModbusTcpClient(host, port, unitId, TIMEOUT_MILLIS),
+				new RegisterMap(registers, wordsSwapped), function, pollMillis, target);
+	}
+
+	@Override
+	protected void read() throws Exception {
+		while (running) {
+			long start = System.currentTimeMillis();
+			try {
+				target.add((int) Math.round(registerMap.read(client, function)));
+				if (failing)
+					logger.info("Reading " + client + " works again");
+				failing = false;
+			} catch (IOException e) {
+				if (!running)
+					return;
+				if (!failing)
+					logger.warn("Reading " + client + " failed", e);
+				else
+					logger.debug("Reading " + client + " failed", e);
+				failing = true;
+			}
+			long sleep = start + (failing ? RETRY_MILLIS : pollMillis) - System.currentTimeMillis();
+			if (sleep > 0)
+				Thread.sleep(sleep);
+		}
+	}
+
+	@Override
+	protected void close() {
+		client.close();
+	}
+
+	@Override
+	public String toString() {
+		return client.toString();
+	}
+
+}
@@ -0,0 +1,34 @@
+package com.mschwartz.teslacharging.surplus;
+
+/**
+ * Holds the power surplus last pushed by the smart home, e.g. via the http
+ * control api. Values older than the given maximum age are ignored.
+ * 
+ * @author Mike
+ *
+ */
+public class PushSurplusSource implements SurplusSource {
+
+	private long maxAgeMillis;
+
+	private Integer surplus;
+
+	private long timestamp;
+
+	public PushSurplusSource(int maxAgeSeconds) {
+		this.maxAgeMillis = maxAgeSeconds * 1000L;
+	}
+
+	public synchronized void setSurplus(int surplus) {
+		this.surplus = surplus;
+		this.timestamp = System.currentTimeMillis();
+	}
+
+	@Override
+	public synchronized Integer getSurplus() {
+		if (surplus == null || System.currentTimeMillis() - timestamp > maxAgeMillis)
+			return null;
+		return surplus;
+	}
+
+}
@@ -0,0 +1,113 @@
+package com.mschwartz.teslacharging.surplus;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size buffer of the last power samples. Writers never block and never
+ * wait for readers, the oldest samples are overwritten. Readers never block the
+ * writers either: each slot carries the sequence number of the sample it holds
+ * and a reader ignores a slot which changes while it is read.
+ *
+ * @author Mike
+ *
+ */
+public class SampleRingBuffer {
+
+	private final int mask;
+
+	private final long[] timestamps;
+
+	private final int[] values;
+
+	// sequence + 1 of the sample in the slot, -1 while it is written
+	private final AtomicLongArray stamps;
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 *
+	 * @param capacity number of samples kept, must be a power of two
+	 */
+	public SampleRingBuffer(int capacity) {
+		if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+		mask = capacity - 1;
+		timestamps = new long[capacity];
+		values = new int[capacity];
+		stamps = new AtomicLongArray(capacity);
+	}
+
+	/**
+	 * Adds a sample, may be called by several threads concurrently
+	 *
+	 * @param timestamp the time of the sample in millis
+	 * @param value     the power in watts
+	 */
+	public void add(long timestamp, int value) {
+		long seq = sequence.getAndIncrement();
+		int index = (int) (seq & mask);
+		stamps.set(index, -1);
+		VarHandle.storeStoreFence();
+		timestamps[index] = timestamp;
+		values[index] = value;
+		stamps.setRelease(index, seq + 1);
+	}
+
+	/**
+	 *
+	 * @param since the time in millis of the oldest sample to return
+	 * @return the values of the samples taken at or after the given time, newest
+	 *         first
+	 */
+	public int[] valuesSince(long since) {
+		long end = sequence.get();
+		long start = Math.max(0, end - timestamps.length);
+		int[] result = new int[(int) (end - start)];
+		int count = 0;
+		for (long seq = end - 1; seq >= start; --seq) {
+			int index = (int) (seq & mask);
+			long stamp = stamps.getAcquire(index);
+			if (stamp > seq + 1)
+				// overwritten by a newer sample, all older ones are gone too
+				break;
+			if (stamp != seq + 1)
+				// still being written
+				continue;
+			long timestamp = timestamps[index];
+			int value = values[index];
+			VarHandle.acquireFence();
+			if (stamps.get(index) != stamp)
+				break;
+			if (timestamp < since)
+				break;
+			result[count++] = value;
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	/**
+	 *
+	 * @return the time in millis of the newest sample or 0 if there is none
+	 */
+	public long newestTimestamp() {
+		for (int attempt = 0; attempt < 10; ++attempt) {
+			long seq = sequence.get() - 1;
+			if (seq < 0)
+				return 0;
+			int index = (int) (seq & mask);
+			if (stamps.getAcquire(index) != seq + 1) {
+				Thread.onSpinWait();
+				continue;
+			}
+			long timestamp = timestamps[index];
+			VarHandle.acquireFence();
+			if (stamps.get(index) == seq + 1)
+				return timestamp;
+		}
+		return 0;
+	}
+
+}
@@ -0,0 +1,20 @@
+package com.mschwartz.teslacharging.surplus;
+
+/**
+ * Provides the power currently sent to the grid (positive values) or bought
+ * from the grid (negative values). Used by the daemon to feed the charge
+ * calculation periodically.
+ * 
+ * @author Mike
+ *
+ */
+public interface SurplusSource {
+
+	/**
+	 * @return the current power surplus in watts or <code>null</code> if no
+	 *         (recent) value is available
+	 * @throws Exception
+	 */
+	Integer getSurplus() throws Exception;
+
+}
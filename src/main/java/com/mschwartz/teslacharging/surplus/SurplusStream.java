@@ -0,0 +1,121 @@
+package com.mschwartz.teslacharging.surplus;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads a continuous stream of power samples on its own thread and adds them to
+ * a {@link WindowedSurplusSource}.
+ *
+ * <pre>
+ * stdin              one sample per line from the standard input
+ * udp:port           one or more lines per datagram, received on the loopback interface
+ * udp:address:port   the same, received on the given address (e.g. 0.0.0.0 for all interfaces)
+ * tail:file          one sample per line appended to the file
+ * modbus:host[:port] polled from a meter, see {@link ModbusSurplusStream}
+ * </pre>
+ *
+ * @author Mike
+ *
+ */
+public abstract class SurplusStream {
+
+	private static final Logger logger = LogManager.getLogger(SurplusStream.class);
+
+	protected WindowedSurplusSource target;
+
+	protected volatile boolean running;
+
+	private Thread thread;
+
+	protected SurplusStream(WindowedSurplusSource target) {
+		this.target = target;
+	}
+
+	/**
+	 *
+	 * @param spec stdin, udp:[address:]port or tail:file
+	 * @throws IllegalArgumentException if the spec is invalid
+	 */
+	public static SurplusStream create(String spec, WindowedSurplusSource target) {
+		if (spec.equals("stdin"))
+			return new LineSurplusStream(System.in, target);
+		if (spec.startsWith("tail:"))
+			return new TailSurplusStream(new File(spec.substring("tail:".length())), target);
+		if (spec.startsWith("udp:")) {
+			String address = spec.substring("udp:".length());
+			int colon = address.lastIndexOf(':');
+			try {
+				int port = Integer.parseInt(address.substring(colon + 1));
+				InetAddress inetAddress = colon < 0 ? InetAddress.getLoopbackAddress()
+						: InetAddress.getByName(address.substring(0, colon));
+				return new UdpSurplusStream(inetAddress, port, target);
+			} catch (NumberFormatException | UnknownHostException e) {
+				throw new IllegalArgumentException("Invalid surplus stream " + spec, e);
+			}
+		}
+		throw new IllegalArgumentException("Unknown surplus stream " + spec + ", use stdin, udp:port or tail:file");
+	}
+
+	public synchronized void start() throws Exception {
+		if (thread != null)
+			return;
+		open();
+		running = true;
+		thread = new Thread(this::run, "SurplusStream");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		if (thread == null)
+			return;
+		running = false;
+		close();
+		thread.interrupt();
+		thread = null;
+	}
+
+	private void run() {
+		logger.info("Reading the surplus from " + this);
+		while (running) {
+			try {
+				read();
+			} catch (InterruptedException e) {
+				return;
+			} catch (Exception e) {
+				if (!running)
+					return;
+				logger.warn("Reading the surplus from " + this + " failed", e);
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Opens the stream, called before the thread is started so that errors like
+	 * a port in use are reported at startup
+	 */
+	protected void open() throws Exception {
+	}
+
+	/**
+	 * Reads samples until the stream ends or {@link #stop()} is called.
+	 */
+	protected abstract void read() throws Exception;
+
+	/**
+	 * Unblocks a {@link #read()} waiting for data
+	 */
+	protected void close() {
+	}
+
+}
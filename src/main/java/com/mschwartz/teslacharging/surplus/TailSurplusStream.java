@@ -0,0 +1,69 @@
+package com.mschwartz.teslacharging.surplus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Follows a file the inverter output is appended to, like <code>tail -f</code>.
+ * Only lines appended after the start are read. If the file gets shorter (it
+ * has been truncated or rotated) it is read from the beginning again.
+ *
+ * @author Mike
+ *
+ */
+public class TailSurplusStream extends SurplusStream {
+
+	static final long POLL_MILLIS = 200;
+
+	private File file;
+
+	private long position = -1;
+
+	// an incomplete last line
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+	public TailSurplusStream(File file, WindowedSurplusSource target) {
+		super(target);
+		this.file = file;
+	}
+
+	@Override
+	protected void read() throws Exception {
+		byte[] data = new byte[8192];
+		while (running) {
+			long length = file.length();
+			if (position < 0 || length < position) {
+				// start at the end, after a rotation at the beginning
+				position = position < 0 ? length : 0;
+				pending.reset();
+			}
+			if (length == position) {
+				Thread.sleep(POLL_MILLIS);
+				continue;
+			}
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+				raf.seek(position);
+				int n;
+				while ((n = raf.read(data)) > 0) {
+					position += n;
+					for (int i = 0; i < n; ++i) {
+						if (data[i] == '\n') {
+							target.add(new String(pending.toByteArray(), StandardCharsets.UTF_8));
+							pending.reset();
+						} else {
+							pending.write(data[i]);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "file " + file;
+	}
+
+}
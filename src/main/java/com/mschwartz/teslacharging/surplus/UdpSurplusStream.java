@@ -0,0 +1,54 @@
+package com.mschwartz.teslacharging.surplus;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Receives samples as udp datagrams, each datagram contains one or more lines.
+ *
+ * @author Mike
+ *
+ */
+public class UdpSurplusStream extends SurplusStream {
+
+	private InetSocketAddress address;
+
+	private DatagramSocket socket;
+
+	public UdpSurplusStream(InetAddress address, int port, WindowedSurplusSource target) {
+		super(target);
+		this.address = new InetSocketAddress(address, port);
+	}
+
+	@Override
+	protected void open() throws Exception {
+		socket = new DatagramSocket(address);
+	}
+
+	@Override
+	protected void read() throws Exception {
+		byte[] data = new byte[1500];
+		DatagramPacket packet = new DatagramPacket(data, data.length);
+		while (running) {
+			packet.setLength(data.length);
+			socket.receive(packet);
+			String text = new String(data, 0, packet.getLength(), StandardCharsets.UTF_8);
+			for (String line : text.split("\\R"))
+				target.add(line);
+		}
+	}
+
+	@Override
+	protected void close() {
+		socket.close();
+	}
+
+	@Override
+	public String toString() {
+		return "udp " + address;
+	}
+
+}
@@ -0,0 +1,168 @@
+package com.mschwartz.teslacharging.surplus;
+
+import java.util.Arrays;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import lombok.Getter;
+
+/**
+ * Collects a continuous stream of power samples (e.g. one per second from the
+ * inverter) and provides an aggregate over the last window to the charge
+ * calculation. A single sample of one second does not change the charging, a
+ * surplus lasting for the window does.
+ *
+ * The aggregate is one of "avg", "min", "max", "median" or a percentile like
+ * "p25". A low percentile charges a little less than possible but rarely buys
+ * power from the grid.
+ *
+ * @author Mike
+ *
+ */
+public class WindowedSurplusSource implements SurplusSource {
+
+	private static final Logger logger = LogManager.getLogger(WindowedSurplusSource.class);
+
+	// one hour of samples taken every second
+	static final int CAPACITY = 4096;
+
+	private SampleRingBuffer buffer = new SampleRingBuffer(CAPACITY);
+
+	private long windowMillis;
+
+	private String aggregate;
+
+	/**
+	 *
+	 * @param windowSeconds the samples of this many seconds are aggregated
+	 * @param aggregate     avg, min, max, median or pNN
+	 */
+	public WindowedSurplusSource(int windowSeconds, String aggregate) {
+		this.windowMillis = windowSeconds * 1000L;
+		this.aggregate = aggregate.trim().toLowerCase();
+		// fail at startup and not with the first calculation
+		new Statistics(new int[] { 0 }).aggregate(this.aggregate);
+	}
+
+	/**
+	 * Adds a sample taken now
+	 *
+	 * @param watts the power surplus in watts
+	 */
+	public void add(int watts) {
+		buffer.add(System.currentTimeMillis(), watts);
+	}
+
+	/**
+	 * Adds a sample given as text, e.g. a line of the inverter output. The last
+	 * number in the line is taken so that lines like "12:00:01;1234" work as
+	 * well.
+	 *
+	 * @return <code>true</code> if the line contained a number
+	 */
+	public boolean add(String line) {
+		Integer watts = parse(line);
+		if (watts == null)
+			return false;
+		add(watts);
+		return true;
+	}
+
+	static Integer parse(String line) {
+		String[] tokens = line.trim().split("[\\s;,]+");
+		String token = tokens[tokens.length - 1];
+		if (token.isEmpty())
+			return null;
+		try {
+			return (int) Math.round(Double.parseDouble(token));
+		} catch (NumberFormatException e) {
+			logger.debug("Ignoring surplus sample " + line);
+			return null;
+		}
+	}
+
+	/**
+	 *
+	 * @return the statistics over the samples of the last window or
+	 *         <code>null</code> if there are none
+	 */
+	public Statistics getStatistics() {
+		int[] values = buffer.valuesSince(System.currentTimeMillis() - windowMillis);
+		return values.length == 0 ? null : new Statistics(values);
+	}
+
+	@Override
+	public Integer getSurplus() {
+		Statistics statistics = getStatistics();
+		if (statistics == null) {
+			long newest = buffer.newestTimestamp();
+			logger.warn(newest == 0 ? "No surplus received yet"
+					: "No surplus received for " + (System.currentTimeMillis() - newest) / 1000 + " seconds");
+			return null;
+		}
+		int surplus = statistics.aggregate(aggregate);
+		logger.info("Surplus over the last " + windowMillis / 1000 + " seconds: " + statistics + ", using "
+				+ aggregate + " " + surplus);
+		return surplus;
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	public static class Statistics {
+
+		// ascending
+		private int[] sorted;
+
+		@Getter
+		private int count, min, max, avg;
+
+		Statistics(int[] values) {
+			sorted = values.clone();
+			Arrays.sort(sorted);
+			count = sorted.length;
+			min = sorted[0];
+			max = sorted[count - 1];
+			long sum = 0;
+			for (int value : sorted)
+				sum += value;
+			avg = (int) Math.round((double) sum / count);
+		}
+
+		/**
+		 *
+		 * @param percent 0 - 100
+		 * @return the value below which the given percentage of the samples lies
+		 *         (nearest rank)
+		 */
+		public int getPercentile(int percent) {
+			int rank = (int) Math.ceil(percent / 100.0 * count);
+			return sorted[Math.max(0, Math.min(count - 1, rank - 1))];
+		}
+
+		int aggregate(String aggregate) {
+			switch (aggregate) {
+			case "avg":
+				return avg;
+			case "min":
+				return min;
+			case "max":
+				return max;
+			case "median":
+				return getPercentile(50);
+			default:
+				if (aggregate.matches("p\\d{1,2}"))
+					return getPercentile(Integer.parseInt(aggregate.substring(1)));
+				throw new IllegalArgumentException("Unknown surplus aggregate " + aggregate);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Statistics [count=" + count + ", min=" + min + ", avg=" + avg + ", median=" + getPercentile(50)
+					+ ", max=" + max + "]";
+		}
+
+	}
+
+}
@@ -0,0 +1,187 @@
+package com.mschwartz.teslacharging.tesla;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.util.Objects;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.ChargeState;
+import com.mschwartz.teslacharging.web.RestRequest;
+
+/**
+ * Remembers what has been commanded to the car last (charging amps, charging
+ * on/off, charge limit) so that a command which would not change anything is
+ * not sent again. The state is kept in a small json file next to the property
+ * file so that it survives the process.
+ *
+ * The charge state reported by the car wins once it is newer than the last
+ * command plus a settle time. Before that the car may still report the state
+ * from before the command. This way changes made in the tesla app are picked
+ * up as well.
+ *
+ * @author Mike
+ *
+ */
+public class CommandedState {
+
+	static final Logger logger = LogManager.getLogger(CommandedState.class);
+
+	// time the car needs until a command shows up in its charge state
+	static final long SETTLE_MILLIS = 60 * 1000;
+
+	private static final Gson gson = RestRequest.getGson();
+
+	// may be null, then the state is only kept in memory
+	private transient File file;
+
+	private transient Clock clock = Clock.systemUTC();
+
+	private Integer chargingAmps;
+
+	private Boolean charging;
+
+	private Integer chargeLimit;
+
+	// time of the last command in millis
+	private long timestamp;
+
+	private CommandedState() {
+	}
+
+	/**
+	 *
+	 * @param file the file to keep the state in, may be <code>null</code>
+	 * @return the state read from the file or an empty state
+	 */
+	public static CommandedState load(File file) {
+		CommandedState state = null;
+		if (file != null && file.exists()) {
+			try {
+				state = gson.fromJson(Files.readString(file.toPath(), StandardCharsets.UTF_8), CommandedState.class);
+			} catch (IOException | JsonParseException e) {
+				logger.warn("Ignoring invalid commanded state " + file, e);
+			}
+		}
+		if (state == null)
+			state = new CommandedState();
+		state.file = file;
+		return state;
+	}
+
+	/**
+	 * @param clock the source of the time of the commands, e.g. the simulated
+	 *              time
+	 */
+	public synchronized void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * Takes over the charge state reported by the car if it is newer than the
+	 * last command plus the settle time.
+	 *
+	 * @param chargeState may be <code>null</code>
+	 */
+	public synchronized void reconcile(ChargeState chargeState) {
+		if (chargeState == null || chargeState.getCharging_state() == null)
+			return;
+		long reportedAt = chargeState.getTimestamp() > 0 ? chargeState.getTimestamp() : clock.millis();
+		if (reportedAt < timestamp + SETTLE_MILLIS)
+			return;
+		Integer reportedAmps = chargeState.getCharge_current_request() > 0
+				? Integer.valueOf(chargeState.getCharge_current_request())
+				: chargingAmps;
+		Boolean reportedCharging = isCharging(chargeState.getCharging_state());
+		Integer reportedLimit = chargeState.getCharge_limit_soc() > 0 ? Integer.valueOf(chargeState.getCharge_limit_soc())
+				: chargeLimit;
+		if (Objects.equals(reportedAmps, chargingAmps) && Objects.equals(reportedCharging, charging)
+				&& Objects.equals(reportedLimit, chargeLimit))
+			return;
+		logger.debug("Car reports " + reportedAmps + " amps, charging " + reportedCharging + ", limit "
+				+ reportedLimit + "%, commanded were " + this);
+		chargingAmps = reportedAmps;
+		charging = reportedCharging;
+		chargeLimit = reportedLimit;
+		save();
+	}
+
+	/**
+	 *
+	 * @return <code>true</code> if the car is charging according to the charging
+	 *         state e.g. "Charging"
+	 */
+	static boolean isCharging(String chargingState) {
+		return chargingState.equals("Charging") || chargingState.equals("Starting");
+	}
+
+	/**
+	 *
+	 * @return <code>true</code> if these amps have been commanded or reported
+	 *         last
+	 */
+	public synchronized boolean isChargingAmps(int amps) {
+		return chargingAmps != null && chargingAmps == amps;
+	}
+
+	/**
+	 *
+	 * @return the amps commanded or reported last or <code>null</code> if unknown
+	 */
+	public synchronized Integer getChargingAmps() {
+		return chargingAmps;
+	}
+
+	/**
+	 *
+	 * @return <code>true</code> if charging has been started last,
+	 *         <code>false</code> if stopped or <code>null</code> if unknown
+	 */
+	public synchronized Boolean isCharging() {
+		return charging;
+	}
+
+	synchronized void chargingAmpsCommanded(int amps) {
+		chargingAmps = amps;
+		commanded();
+	}
+
+	synchronized void chargingCommanded(boolean charging) {
+		this.charging = charging;
+		commanded();
+	}
+
+	synchronized void chargeLimitCommanded(int percent) {
+		chargeLimit = percent;
+		commanded();
+	}
+
+	private void commanded() {
+		timestamp = clock.millis();
+		save();
+	}
+
+	private void save() {
+		if (file == null)
+			return;
+		try {
+			TeslaConfiguration.replaceFile(file, gson.toJson(this).getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			// only costs a redundant command with the next invocation
+			logger.warn("Cannot save the commanded state to " + file, e);
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "CommandedState [chargingAmps=" + chargingAmps + ", charging=" + charging + ", chargeLimit="
+				+ chargeLimit + ", timestamp=" + timestamp + "]";
+	}
+
+}
@@ -1,9 +1,18 @@
 package com.mschwartz.teslacharging.tesla;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
 import com.mschwartz.teslacharging.web.RestRequest;
+import com.mschwartz.teslacharging.web.SingleFlight;
 
 import lombok.Getter;
 
@@ -11,14 +20,29 @@ public class TeslaAuth {
 
 	private static final Logger logger = LogManager.getLogger(TeslaAuth.class);
 
-	private String accessToken;
+	// refresh the tokens this long before the access token expires
+	static final long REFRESH_MARGIN_MILLIS = 10 * 60 * 1000;
+
+	static final int REFRESH_CHECK_SECONDS = 60;
 
-	private String refreshToken;
+	private volatile String accessToken;
+
+	private volatile String refreshToken;
+
+	// the time the access token expires in millis, 0 if unknown
+	@Getter
+	private volatile long expiresAt;
+
+	// refreshes the tokens before they expire, only used by the daemon
+	private ScheduledExecutorService refresher;
 
 	private RestRequest restRequest;
 
 	private TeslaConfiguration teslaConfiguration;
 
+	// concurrent refreshes with the same refresh token share one request
+	private SingleFlight<String, Void> refreshFlight = new SingleFlight<String, Void>();
+
 	public TeslaAuth(RestRequest restRequest, TeslaConfiguration teslaConfiguration) {
 		this.restRequest = restRequest;
 		this.teslaConfiguration = teslaConfiguration;
@@ -29,6 +53,64 @@ public class TeslaAuth {
 			throw new RuntimeException();
 		}
 		restRequest.setBearer(accessToken);
+		expiresAt = teslaConfiguration.readTokenExpiresAt() * 1000;
+		if (expiresAt == 0)
+			expiresAt = readExpiresAt(accessToken);
+	}
+
+	/**
+	 * 
+	 * @return true if the access token is known to be expired
+	 */
+	public boolean isExpired() {
+		return expiresAt != 0 && System.currentTimeMillis() >= expiresAt;
+	}
+
+	/**
+	 * Refreshes the tokens if the access token is expired. Avoids sending a
+	 * request which is rejected anyway.
+	 * 
+	 * @throws Exception
+	 */
+	public void refreshIfExpired() throws Exception {
+		if (isExpired()) {
+			logger.info("Access token expired, refreshing the tokens");
+			refreshTokens(accessToken);
+		}
+	}
+
+	/**
+	 * Refreshes the tokens periodically shortly before the access token expires so
+	 * that no request has to wait for the refresh.
+	 */
+	public synchronized void startBackgroundRefresh() {
+		if (refresher != null)
+			return;
+		refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "TokenRefresh");
+			thread.setDaemon(true);
+			return thread;
+		});
+		refresher.scheduleWithFixedDelay(this::refreshIfExpiring, 0, REFRESH_CHECK_SECONDS, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stopBackgroundRefresh() {
+		if (refresher == null)
+			return;
+		refresher.shutdown();
+		refresher = null;
+	}
+
+	private void refreshIfExpiring() {
+		if (expiresAt == 0 || System.currentTimeMillis() < expiresAt - REFRESH_MARGIN_MILLIS)
+			return;
+		try {
+			logger.info("Access token expires soon, refreshing the tokens");
+			refreshTokens(accessToken);
+		} catch (Exception e) {
+			// try again with the next check, a request would refresh the tokens anyway
+			logger.warn("Refreshing the tokens failed", e);
+		}
 	}
 
 	/**
@@ -37,8 +119,33 @@ public class TeslaAuth {
 	 * @throws Exception
 	 */
 	public void refreshTokens() throws Exception {
-		assert (refreshToken != null);
-		RefreshTokenRequest refreshTokenRequest = new RefreshTokenRequest(refreshToken);
+		refreshTokens(null);
+	}
+
+	/**
+	 * Refresh the access and refresh tokens after a request has been rejected.
+	 * Nothing happens if the tokens have been refreshed in the meantime by another
+	 * request.
+	 * 
+	 * @param rejectedAccessToken the access token used by the rejected request or
+	 *                            <code>null</code> to refresh in any case
+	 * @throws Exception
+	 */
+	public void refreshTokens(String rejectedAccessToken) throws Exception {
+		if (rejectedAccessToken != null && !rejectedAccessToken.equals(accessToken)) {
+			logger.debug("Tokens have already been refreshed");
+			return;
+		}
+		String token = refreshToken;
+		assert (token != null);
+		refreshFlight.execute(token, () -> {
+			requestTokens(token);
+			return null;
+		});
+	}
+
+	private void requestTokens(String token) throws Exception {
+		RefreshTokenRequest refreshTokenRequest = new RefreshTokenRequest(token);
 
 		RefreshTokenResponse response = restRequest.postJson("https://auth.tesla.com/oauth2/v3/token",
 				refreshTokenRequest, RefreshTokenResponse.class);
@@ -47,17 +154,56 @@ public class TeslaAuth {
 			accessToken = response.getAccess_token();
 			refreshToken = response.getRefresh_token();
 			restRequest.setBearer(accessToken);
+			expiresAt = toExpiresAt(response.getExpires_in());
+			if (expiresAt == 0)
+				expiresAt = readExpiresAt(accessToken);
 
-			teslaConfiguration.updateTokens(accessToken, refreshToken);
+			teslaConfiguration.updateTokens(accessToken, refreshToken, expiresAt / 1000);
 		} else {
 			logger.error("Exception while handling new access token for Tesla Owner API: Null new access token");
 		}
 
 	}
 
+	/**
+	 * 
+	 * @param expiresIn the lifetime of the access token in seconds as returned
+	 *                  by the tesla servers
+	 * @return the time the access token expires in millis or 0 if unknown
+	 */
+	public static long toExpiresAt(String expiresIn) {
+		if (expiresIn == null)
+			return 0;
+		try {
+			return System.currentTimeMillis() + Long.parseLong(expiresIn.trim()) * 1000;
+		} catch (NumberFormatException e) {
+			logger.warn("Invalid expires_in " + expiresIn);
+			return 0;
+		}
+	}
+
+	/**
+	 * Reads the expiry from the access token itself, it is a json web token.
+	 * 
+	 * @return the time the access token expires in millis or 0 if unknown
+	 */
+	static long readExpiresAt(String accessToken) {
+		String[] parts = accessToken.split("\\.");
+		if (parts.length != 3)
+			return 0;
+		try {
+			String payload = new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8);
+			JsonElement exp = JsonParser.parseString(payload).getAsJsonObject().get("exp");
+			return exp == null ? 0 : exp.getAsLong() * 1000;
+		} catch (RuntimeException e) {
+			logger.debug("Cannot read the expiry of the access token", e);
+			return 0;
+		}
+	}
+
 	/////////////////////////////////////////////////////////////////////////
 
-	public class RefreshTokenRequest {
+	public static class RefreshTokenRequest {
 		public String grant_type = "refresh_token";
 
 		public String client_id = "ownerapi";
@@ -74,7 +220,7 @@ public class TeslaAuth {
 	/////////////////////////////////////////////////////////////////////////
 
 	@Getter
-	public class RefreshTokenResponse {
+	public static class RefreshTokenResponse {
 		public String access_token;
 
 		public String refresh_token;
@@ -1,13 +1,19 @@
 package com.mschwartz.teslacharging.tesla;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.mschwartz.teslacharging.history.ChargeRecorder;
 import com.mschwartz.teslacharging.tesla.TeslaVehicle.ChargeState;
 import com.mschwartz.teslacharging.web.AuthRestRequest;
+import com.mschwartz.teslacharging.web.Futures;
 import com.mschwartz.teslacharging.web.SleepingCarException;
 
 import lombok.Getter;
+import lombok.Setter;
 
 public class TeslaCharge {
 
@@ -17,10 +23,31 @@ public class TeslaCharge {
 
 	private TeslaVehicle teslaVehicle;
 
+	@Getter
+	private CommandedState commandedState;
+
+	// counts the commands sent, may be null
+	@Setter
+	private ChargeRecorder recorder;
+
 	public TeslaCharge(AuthRestRequest authRestRequest, TeslaVehicle teslaVehicle,
 			TeslaConfiguration teslaConfiguration) {
 		this.authRestRequest = authRestRequest;
 		this.teslaVehicle = teslaVehicle;
+		commandedState = CommandedState
+				.load(teslaConfiguration == null ? null : teslaConfiguration.getCommandedStateFile());
+	}
+
+	/**
+	 * Takes over the charge state reported by the car into the commanded state
+	 * unless a command has been sent shortly before.
+	 * 
+	 * @param chargeState may be <code>null</code>
+	 * @return the commanded state
+	 */
+	public CommandedState reconcile(ChargeState chargeState) {
+		commandedState.reconcile(chargeState);
+		return commandedState;
 	}
 
 	/**
@@ -43,57 +70,44 @@ public class TeslaCharge {
 	}
 
 	/**
-	 * Send a charge command to the vehicle
+	 * Sends a command to the vehicle
 	 * 
-	 * @param id            ID of the vehicle to use in the charge command request
-	 * @param chargeCommand Command to send (start/stop)
+	 * @param command the name of the command
+	 * @param body    the parameters of the command, may be <code>null</code>
+	 * @param wakeUp  <code>true</code> if the vehicle should be woken up and the
+	 *                command repeated once if the vehicle is sleeping
 	 * @return <code>null</code> if successful or the reason why the command failed.
 	 *         e.g. unknown (no result received), disconnected (cable not connected
 	 *         to the car)
 	 * @throws Exception
 	 */
-	private String sendChargeCommand(String chargeCommand) throws Exception {
-		String apiEndpoint = TeslaConfiguration.apiBase + "/api/1/vehicles/" + teslaVehicle.getId() + "/command/charge_"
-				+ chargeCommand;
+	protected String sendCommand(String command, Object body, boolean wakeUp) throws Exception {
+		String apiEndpoint = TeslaConfiguration.apiBase + "/api/1/vehicles/" + teslaVehicle.getId() + "/command/"
+				+ command;
 		try {
-			SimpleResult simpleResult = authRestRequest.postJson(apiEndpoint, null, SimpleResult.class);
-			if (simpleResult == null || simpleResult.getResponse() == null)
-				return "unknown";
-			if (simpleResult.getResponse().isResult()) {
-				return null;
-			}
-
-			return simpleResult.getResponse().getReason();
+			return toReason(authRestRequest.postJson(apiEndpoint, body, SimpleResult.class));
 		} catch (SleepingCarException e) {
+			if (!wakeUp)
+				throw e;
 			boolean ok = teslaVehicle.wakeUpVehicle();
 			if (!ok) {
 				logger.warn("Waking up the car failed");
 			}
 			// repeat once
-			SimpleResult simpleResult = authRestRequest.postJson(apiEndpoint, null, SimpleResult.class);
-			if (simpleResult == null || simpleResult.getResponse() == null)
-				return "unknown";
-			if (simpleResult.getResponse().isResult()) {
-				return null;
-			}
-
-			return simpleResult.getResponse().getReason();
+			return toReason(authRestRequest.postJson(apiEndpoint, body, SimpleResult.class));
 		}
 	}
 
 	/**
 	 * 
-	 * @param chargePortCommand open/close
-	 * @return
-	 * @throws Exception
+	 * @return <code>null</code> if successful or the reason why the command failed
 	 */
-	private String sendChargePortCommand(String chargePortCommand) throws Exception {
-		String apiEndpoint = TeslaConfiguration.apiBase + "/api/1/vehicles/" + teslaVehicle.getId()
-				+ "/command/charge_port_door_" + chargePortCommand;
-		SimpleResult simpleResult = authRestRequest.postJson(apiEndpoint, null, SimpleResult.class);
+	private String toReason(SimpleResult simpleResult) {
 		if (simpleResult == null || simpleResult.getResponse() == null)
 			return "unknown";
 		if (simpleResult.getResponse().isResult()) {
+			if (recorder != null)
+				recorder.commandSent();
 			return null;
 		}
 
@@ -110,7 +124,10 @@ public class TeslaCharge {
 	 * @throws Exception
 	 */
 	public String startCharging() throws Exception {
-		return sendChargeCommand("start");
+		String reason = sendCommand("charge_start", null, true);
+		if (reason == null)
+			commandedState.chargingCommanded(true);
+		return reason;
 	}
 
 	/**
@@ -123,30 +140,25 @@ public class TeslaCharge {
 	 * @throws Exception
 	 */
 	public String stopCharging() throws Exception {
-		return sendChargeCommand("stop");
+		String reason = sendCommand("charge_stop", null, true);
+		if (reason == null)
+			commandedState.chargingCommanded(false);
+		return reason;
 	}
 
 	public String chargePortOpen() throws Exception {
-		return sendChargePortCommand("open");
+		return sendCommand("charge_port_door_open", null, false);
 	}
 
 	public String chargePortClose() throws Exception {
-		return sendChargePortCommand("close");
+		return sendCommand("charge_port_door_close", null, false);
 	}
 
 	public String setChargeLimit(int percent) throws Exception {
-		String apiEndpoint = TeslaConfiguration.apiBase + "/api/1/vehicles/" + teslaVehicle.getId()
-				+ "/command/set_charge_limit";
-		PercentValue percentValue = new PercentValue(percent);
-		SimpleResult simpleResult = authRestRequest.postJson(apiEndpoint, percentValue, SimpleResult.class);
-		if (simpleResult == null || simpleResult.getResponse() == null)
-			return "unknown";
-		if (simpleResult.getResponse().isResult()) {
-			return null;
-		}
-
-		return simpleResult.getResponse().getReason();
-
+		String reason = sendCommand("set_charge_limit", new PercentValue(percent), false);
+		if (reason == null)
+			commandedState.chargeLimitCommanded(percent);
+		return reason;
 	}
 
 	/**
@@ -157,35 +169,10 @@ public class TeslaCharge {
 	 * @throws Exception
 	 */
 	public String setChargingAmps(int chargingAmps) throws Exception {
-		String apiEndpoint = TeslaConfiguration.apiBase + "/api/1/vehicles/" + teslaVehicle.getId()
-				+ "/command/set_charging_amps";
-		try {
-			ChargingAmpsValue percentValue = new ChargingAmpsValue(chargingAmps);
-			SimpleResult simpleResult = authRestRequest.postJson(apiEndpoint, percentValue, SimpleResult.class);
-			if (simpleResult == null || simpleResult.getResponse() == null)
-				return "unknown";
-			if (simpleResult.getResponse().isResult()) {
-				return null;
-			}
-
-			return simpleResult.getResponse().getReason();
-		} catch (SleepingCarException e) {
-			boolean ok = teslaVehicle.wakeUpVehicle();
-			if (!ok) {
-				logger.warn("Waking up the car failed");
-			}
-			// repeat once
-			ChargingAmpsValue percentValue = new ChargingAmpsValue(chargingAmps);
-			SimpleResult simpleResult = authRestRequest.postJson(apiEndpoint, percentValue, SimpleResult.class);
-			if (simpleResult == null || simpleResult.getResponse() == null)
-				return "unknown";
-			if (simpleResult.getResponse().isResult()) {
-				return null;
-			}
-
-			return simpleResult.getResponse().getReason();
-		}
-
+		String reason = sendCommand("set_charging_amps", new ChargingAmpsValue(chargingAmps), true);
+		if (reason == null)
+			commandedState.chargingAmpsCommanded(chargingAmps);
+		return reason;
 	}
 
 	public ChargeState getChargeState() throws Exception {
@@ -198,10 +185,92 @@ public class TeslaCharge {
 
 	}
 
+	/**
+	 * Start charging the vehicle without blocking the caller
+	 * 
+	 * @see #startCharging()
+	 */
+	public CompletableFuture<String> startChargingAsync() {
+		return sendCommandAsync("charge_start", null, true)
+				.thenApply(reason -> commanded(reason, () -> commandedState.chargingCommanded(true)));
+	}
+
+	/**
+	 * Stop charging the vehicle without blocking the caller
+	 * 
+	 * @see #stopCharging()
+	 */
+	public CompletableFuture<String> stopChargingAsync() {
+		return sendCommandAsync("charge_stop", null, true)
+				.thenApply(reason -> commanded(reason, () -> commandedState.chargingCommanded(false)));
+	}
+
+	public CompletableFuture<String> chargePortOpenAsync() {
+		return sendCommandAsync("charge_port_door_open", null, false);
+	}
+
+	public CompletableFuture<String> chargePortCloseAsync() {
+		return sendCommandAsync("charge_port_door_close", null, false);
+	}
+
+	public CompletableFuture<String> setChargeLimitAsync(int percent) {
+		return sendCommandAsync("set_charge_limit", new PercentValue(percent), false)
+				.thenApply(reason -> commanded(reason, () -> commandedState.chargeLimitCommanded(percent)));
+	}
+
+	public CompletableFuture<String> setChargingAmpsAsync(int chargingAmps) {
+		return sendCommandAsync("set_charging_amps", new ChargingAmpsValue(chargingAmps), true)
+				.thenApply(reason -> commanded(reason, () -> commandedState.chargingAmpsCommanded(chargingAmps)));
+	}
+
+	/**
+	 * Records the command in the commanded state if it was successful
+	 * 
+	 * @param reason the result of the command
+	 * @return the reason
+	 */
+	private String commanded(String reason, Runnable record) {
+		if (reason == null)
+			record.run();
+		return reason;
+	}
+
+	/**
+	 * Sends a command to the vehicle without blocking the caller
+	 * 
+	 * @param command the name of the command
+	 * @param body    the parameters of the command, may be <code>null</code>
+	 * @param wakeUp  <code>true</code> if the vehicle should be woken up and the
+	 *                command repeated once if the vehicle is sleeping
+	 * @return Future with <code>null</code> if successful or the reason why the
+	 *         command failed
+	 */
+	private CompletableFuture<String> sendCommandAsync(String command, Object body, boolean wakeUp) {
+		String apiEndpoint = TeslaConfiguration.apiBase + "/api/1/vehicles/" + teslaVehicle.getId() + "/command/"
+				+ command;
+		return authRestRequest.postJsonAsync(apiEndpoint, body, SimpleResult.class).handle((simpleResult, e) -> {
+			if (e == null)
+				return CompletableFuture.completedFuture(simpleResult);
+			if (wakeUp && Futures.unwrap(e) instanceof SleepingCarException) {
+				return teslaVehicle.wakeUpVehicleAsync().thenCompose(ok -> {
+					if (!ok) {
+						logger.warn("Waking up the car failed");
+					}
+					// repeat once
+					return authRestRequest.postJsonAsync(apiEndpoint, body, SimpleResult.class);
+				});
+			}
+			return CompletableFuture.<SimpleResult>failedFuture(e);
+		})
+				.thenCompose(future -> future)
+				.thenApply(this::toReason)
+				.orTimeout(authRestRequest.getAsyncTimeout().toMillis(), TimeUnit.MILLISECONDS);
+	}
+
 	/////////////////////////////////////////////////////////////////////////
 
 	@Getter
-	class SimpleResult {
+	static class SimpleResult {
 
 		SimpleResponse response;
 	}
@@ -209,7 +278,7 @@ public class TeslaCharge {
 	/////////////////////////////////////////////////////////////////////////
 
 	@Getter
-	class SimpleResponse {
+	static class SimpleResponse {
 
 		String reason;
 
@@ -218,7 +287,8 @@ public class TeslaCharge {
 
 	/////////////////////////////////////////////////////////////////////////
 
-	class PercentValue {
+	@Getter
+	public static class PercentValue {
 
 		int percent;
 
@@ -230,7 +300,8 @@ public class TeslaCharge {
 
 	/////////////////////////////////////////////////////////////////////////
 
-	class ChargingAmpsValue {
+	@Getter
+	public static class ChargingAmpsValue {
 
 		int charging_amps;
 
@@ -243,7 +314,7 @@ public class TeslaCharge {
 	/////////////////////////////////////////////////////////////////////////
 
 	@Getter
-	class ChargeStateData {
+	static class ChargeStateData {
 
 		ChargeState response;
 
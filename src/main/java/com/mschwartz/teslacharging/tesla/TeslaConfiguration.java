@@ -1,20 +1,29 @@
 package com.mschwartz.teslacharging.tesla;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Properties;
 import java.util.Scanner;
+import java.util.Set;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONObject;
 
+import com.mschwartz.teslacharging.web.AuthRestRequest;
+
 public class TeslaConfiguration {
 
 	private static final Logger logger = LogManager.getLogger(TeslaConfiguration.class);
@@ -22,17 +31,62 @@ public class TeslaConfiguration {
 	// Tesla API base URL
 	static final String apiBase = "https://owner-api.teslamotors.com";
 
-	// API call retry settings
-	static final int MAX_RETRIES = 5;
+	// Default API call retry settings
+	static final int DEFAULT_MAX_RETRIES = 5, DEFAULT_COMMAND_MAX_RETRIES = 2;
+
+	static final int DEFAULT_RETRY_INTERVAL_SECONDS = 15;
 
-	static final int RETRY_INTERVAL_SECONDS = 15;
+	// Default number of consecutive failures after which requests fail fast and
+	// for how long
+	static final int DEFAULT_CIRCUIT_FAILURE_THRESHOLD = 5, DEFAULT_CIRCUIT_OPEN_SECONDS = 60;
 
 	// Property file keys
-	static final String ACCESS_TOKEN = "ACCESS_TOKEN", HOME_LATITUDE = "HOME_LATITUDE",
+	static final String ACCESS_TOKEN = "ACCESS_TOKEN", TOKEN_EXPIRES_AT = "TOKEN_EXPIRES_AT", HOME_LATITUDE = "HOME_LATITUDE",
 			HOME_LONGITUDE = "HOME_LONGITUDE", MAX_ELECTRICITY_PRICE = "MAX_ELECTRICITY_PRICE",
 			MINIMUM_DEPARTURE_SOC = "MINIMUM_DEPARTURE_SOC", POLL_INTERVAL_SECONDS = "POLL_INTERVAL_SECONDS",
 			REFRESH_TOKEN = "REFRESH_TOKEN", RESTART_ON_CURRENT_DROP = "RESTART_ON_CURRENT_DROP",
-			SOC_GAIN_PER_HOUR = "SOC_GAIN_PER_HOUR", VIN = "VIN", ID_S = "ID_S", DISPLAY_NAME = "DISPLAY_NAME";
+			SOC_GAIN_PER_HOUR = "SOC_GAIN_PER_HOUR", VIN = "VIN", ID_S = "ID_S", DISPLAY_NAME = "DISPLAY_NAME",
+			SURPLUS_FILE = "SURPLUS_FILE", HTTP_PORT = "HTTP_PORT", HTTP_TOKEN = "HTTP_TOKEN",
+			CHARGE_STATE_TTL_SECONDS = "CHARGE_STATE_TTL_SECONDS",
+			DRIVE_STATE_TTL_SECONDS = "DRIVE_STATE_TTL_SECONDS", MAX_STALENESS_SECONDS = "MAX_STALENESS_SECONDS",
+			ACCOUNT_REQUESTS_PER_MINUTE = "ACCOUNT_REQUESTS_PER_MINUTE",
+			VEHICLE_REQUESTS_PER_MINUTE = "VEHICLE_REQUESTS_PER_MINUTE", MAX_RETRIES = "MAX_RETRIES",
+			COMMAND_MAX_RETRIES = "COMMAND_MAX_RETRIES", RETRY_INTERVAL_SECONDS = "RETRY_INTERVAL_SECONDS",
+			CIRCUIT_FAILURE_THRESHOLD = "CIRCUIT_FAILURE_THRESHOLD", CIRCUIT_OPEN_SECONDS = "CIRCUIT_OPEN_SECONDS",
+			CHARGE_CONTROLLER = "CHARGE_CONTROLLER", SURPLUS_SMOOTHING_SECONDS = "SURPLUS_SMOOTHING_SECONDS",
+			CONTROLLER_GAIN_PERCENT = "CONTROLLER_GAIN_PERCENT", CONTROLLER_INTEGRAL_SECONDS = "CONTROLLER_INTEGRAL_SECONDS",
+			DEAD_BAND_AMPS = "DEAD_BAND_AMPS", MIN_ON_SECONDS = "MIN_ON_SECONDS", MIN_OFF_SECONDS = "MIN_OFF_SECONDS",
+			MAX_GRID_IMPORT_WATTS = "MAX_GRID_IMPORT_WATTS", SURPLUS_STREAM = "SURPLUS_STREAM",
+			SURPLUS_WINDOW_SECONDS = "SURPLUS_WINDOW_SECONDS", SURPLUS_AGGREGATE = "SURPLUS_AGGREGATE",
+			MODBUS_REGISTERS = "MODBUS_REGISTERS", MODBUS_WORDS_SWAPPED = "MODBUS_WORDS_SWAPPED",
+			MODBUS_UNIT_ID = "MODBUS_UNIT_ID", MODBUS_FUNCTION = "MODBUS_FUNCTION", MODBUS_POLL_MILLIS = "MODBUS_POLL_MILLIS",
+			RECORD_HISTORY = "RECORD_HISTORY", ARCHIVE_AFTER_DAYS = "ARCHIVE_AFTER_DAYS";
+
+	// Default interval between two charge calculations in daemon mode
+	static final int DEFAULT_POLL_INTERVAL_SECONDS = 60;
+
+	// Default time the vehicle data is used without asking the tesla servers again.
+	// The position of a parked car rarely changes, the charge state every minute.
+	static final int DEFAULT_CHARGE_STATE_TTL_SECONDS = 10, DEFAULT_DRIVE_STATE_TTL_SECONDS = 300;
+
+	// Default maximum age of vehicle data used while it is refreshed in the background
+	static final int DEFAULT_MAX_STALENESS_SECONDS = 120;
+
+	// Default aggregation of a continuous surplus stream
+	static final int DEFAULT_SURPLUS_WINDOW_SECONDS = 60;
+
+	static final String DEFAULT_SURPLUS_AGGREGATE = "median";
+
+	// Default settings for polling the surplus via modbus
+	static final int DEFAULT_MODBUS_UNIT_ID = 1, DEFAULT_MODBUS_FUNCTION = 3, DEFAULT_MODBUS_POLL_MILLIS = 500;
+
+	// Default age in days after which the recorded charge states are compacted
+	static final int DEFAULT_ARCHIVE_AFTER_DAYS = 30;
+
+	// Default settings of the pi charge controller
+	static final int DEFAULT_SURPLUS_SMOOTHING_SECONDS = 300, DEFAULT_CONTROLLER_GAIN_PERCENT = 50,
+			DEFAULT_CONTROLLER_INTEGRAL_SECONDS = 300, DEFAULT_DEAD_BAND_AMPS = 2, DEFAULT_MIN_ON_SECONDS = 600,
+			DEFAULT_MIN_OFF_SECONDS = 600, DEFAULT_MAX_GRID_IMPORT_WATTS = 500;
 
 	private String propertiesFile = "app.properties";
 
@@ -45,12 +99,15 @@ public class TeslaConfiguration {
 	}
 
 	/**
-	 * Store any updated configuration values in the properties file
+	 * Store any updated configuration values in the properties file. The file is
+	 * written to a temporary file first and then replaces the properties file so
+	 * that concurrent readers never see a partially written file. The tokens stay
+	 * as private as the file was before.
 	 * 
 	 * @param configChanges HashMap of configuration keys and values to update
 	 * @throws IOException
 	 */
-	private void updateConfiguration(HashMap<String, Object> configChanges) throws IOException {
+	private synchronized void updateConfiguration(HashMap<String, Object> configChanges) throws IOException {
 		logger.debug("Update configuration with {}", new JSONObject(configChanges).toString());
 		ArrayList<String> newLines = new ArrayList<String>();
 		Scanner scanner;
@@ -85,21 +142,104 @@ public class TeslaConfiguration {
 		}
 
 		if (newLines.size() > 0) {
-			BufferedWriter writer = new BufferedWriter(new FileWriter(propertiesFile));
+			StringBuilder content = new StringBuilder();
 			for (String line : newLines) {
-				writer.write(line + "\n");
+				content.append(line).append('\n');
 			}
-			writer.close();
+			replaceFile(file, content.toString().getBytes(Charset.defaultCharset()));
 
 			File config = new File(propertiesFile);
 			lastConfigurationModification = config.lastModified();
 		}
 	}
 
+	/**
+	 * Replaces the content of a file atomically. The content is written to a
+	 * temporary file with a unique name in the same directory, so that concurrent
+	 * writers (e.g. cron and the daemon) never share it. The temporary file is
+	 * created with the permissions of the file, or rw------- for a new file,
+	 * before anything is written to it.
+	 * 
+	 * @throws IOException
+	 */
+	public static void replaceFile(File file, byte[] content) throws IOException {
+		Path target = file.getAbsoluteFile().toPath();
+		Path tmpFile;
+		try {
+			Set<PosixFilePermission> permissions = Files.exists(target) ? Files.getPosixFilePermissions(target)
+					: PosixFilePermissions.fromString("rw-------");
+			tmpFile = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp",
+					PosixFilePermissions.asFileAttribute(permissions));
+			// the umask may have removed some of them
+			Files.setPosixFilePermissions(tmpFile, permissions);
+		} catch (UnsupportedOperationException e) {
+			// not a posix filesystem
+			tmpFile = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+		}
+		try {
+			Files.write(tmpFile, content);
+			try {
+				Files.move(tmpFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpFile, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmpFile);
+		}
+	}
+
+	/**
+	 * Creates the file readable and writable by the owner only, an existing file is
+	 * left unchanged.
+	 * 
+	 * @throws IOException
+	 */
+	public static void createPrivateFile(File file) throws IOException {
+		try {
+			Files.createFile(file.toPath(),
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			// not a posix filesystem
+			file.createNewFile();
+		} catch (FileAlreadyExistsException e) {
+			// created before or by another process
+		}
+	}
+
+	/**
+	 * Creates the directory and its missing parents accessible by the owner only,
+	 * an existing directory is left unchanged.
+	 * 
+	 * @throws IOException
+	 */
+	public static void createPrivateDirectories(File directory) throws IOException {
+		if (directory.isDirectory())
+			return;
+		try {
+			Files.createDirectories(directory.toPath(),
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		} catch (UnsupportedOperationException e) {
+			// not a posix filesystem
+			if (!directory.mkdirs() && !directory.isDirectory())
+				throw new IOException("Cannot create " + directory);
+		}
+	}
+
 	public void updateTokens(String accessToken, String refreshToken) throws IOException {
+		updateTokens(accessToken, refreshToken, 0);
+	}
+
+	/**
+	 * 
+	 * @param expiresAt the time the access token expires in seconds since the
+	 *                  epoch, 0 if unknown
+	 * @throws IOException
+	 */
+	public void updateTokens(String accessToken, String refreshToken, long expiresAt) throws IOException {
 		HashMap<String, Object> newTokens = new HashMap<String, Object>();
 		newTokens.put(ACCESS_TOKEN, accessToken);
 		newTokens.put(REFRESH_TOKEN, refreshToken);
+		newTokens.put(TOKEN_EXPIRES_AT, expiresAt == 0 ? "" : expiresAt);
 		updateConfiguration(newTokens);
 	}
 
@@ -151,6 +291,23 @@ public class TeslaConfiguration {
 		return prop.getProperty(ACCESS_TOKEN);
 	}
 
+	/**
+	 * 
+	 * @return the time the access token expires in seconds since the epoch or 0
+	 *         if unknown
+	 */
+	public long readTokenExpiresAt() {
+		String value = readStringProperty(TOKEN_EXPIRES_AT);
+		if (value == null)
+			return 0;
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			logger.warn("Invalid value " + value + " for " + TOKEN_EXPIRES_AT);
+			return 0;
+		}
+	}
+
 	public String readRefreshToken() {
 		openPropertiesFile();
 		return prop.getProperty(REFRESH_TOKEN);
@@ -181,6 +338,277 @@ public class TeslaConfiguration {
 		return Double.parseDouble(prop.getProperty(HOME_LONGITUDE));
 	}
 
+	/**
+	 * @return the interval in seconds between two charge calculations when running
+	 *         as daemon
+	 */
+	public int readPollIntervalSeconds() {
+		return readIntProperty(POLL_INTERVAL_SECONDS, DEFAULT_POLL_INTERVAL_SECONDS);
+	}
+
+	/**
+	 * @return the file where the smart home writes the current power surplus in
+	 *         watts or <code>null</code> if not configured
+	 */
+	public String readSurplusFile() {
+		return readStringProperty(SURPLUS_FILE);
+	}
+
+	/**
+	 * @return the continuous stream of surplus samples (stdin, udp:[address:]port
+	 *         or tail:file) or <code>null</code> if not configured
+	 */
+	public String readSurplusStream() {
+		return readStringProperty(SURPLUS_STREAM);
+	}
+
+	/**
+	 * @return the seconds of surplus samples aggregated for one charge calculation
+	 */
+	public int readSurplusWindowSeconds() {
+		return readIntProperty(SURPLUS_WINDOW_SECONDS, DEFAULT_SURPLUS_WINDOW_SECONDS);
+	}
+
+	/**
+	 * @return avg, min, max, median or pNN
+	 */
+	public String readSurplusAggregate() {
+		String value = readStringProperty(SURPLUS_AGGREGATE);
+		return value == null ? DEFAULT_SURPLUS_AGGREGATE : value;
+	}
+
+	/**
+	 * @return the register map of the meter polled via modbus, e.g.
+	 *         40087:int16*-1
+	 */
+	public String readModbusRegisters() {
+		return readStringProperty(MODBUS_REGISTERS);
+	}
+
+	/**
+	 * @return <code>true</code> if 32 bit modbus values start with the low word
+	 */
+	public boolean readModbusWordsSwapped() {
+		return "Y".equalsIgnoreCase(readStringProperty(MODBUS_WORDS_SWAPPED));
+	}
+
+	public int readModbusUnitId() {
+		return readIntProperty(MODBUS_UNIT_ID, DEFAULT_MODBUS_UNIT_ID);
+	}
+
+	/**
+	 * @return 3 to read holding registers, 4 to read input registers
+	 */
+	public int readModbusFunction() {
+		return readIntProperty(MODBUS_FUNCTION, DEFAULT_MODBUS_FUNCTION);
+	}
+
+	public int readModbusPollMillis() {
+		return readIntProperty(MODBUS_POLL_MILLIS, DEFAULT_MODBUS_POLL_MILLIS);
+	}
+
+	/**
+	 * @return the port of the local http control server or 0 if the server should
+	 *         not be started
+	 */
+	public int readHttpPort() {
+		return readIntProperty(HTTP_PORT, 0);
+	}
+
+	/**
+	 * @return the bearer token required by the http control server or
+	 *         <code>null</code> if none has been created yet
+	 */
+	public String readHttpToken() {
+		return readStringProperty(HTTP_TOKEN);
+	}
+
+	public void updateHttpToken(String token) throws IOException {
+		HashMap<String, Object> newTokens = new HashMap<String, Object>();
+		newTokens.put(HTTP_TOKEN, token);
+		updateConfiguration(newTokens);
+	}
+
+	/**
+	 * @return the seconds the charge state is used without asking the tesla
+	 *         servers again
+	 */
+	public int readChargeStateTtlSeconds() {
+		return readIntProperty(CHARGE_STATE_TTL_SECONDS, DEFAULT_CHARGE_STATE_TTL_SECONDS);
+	}
+
+	/**
+	 * @return the seconds the drive state is used without asking the tesla servers
+	 *         again
+	 */
+	public int readDriveStateTtlSeconds() {
+		return readIntProperty(DRIVE_STATE_TTL_SECONDS, DEFAULT_DRIVE_STATE_TTL_SECONDS);
+	}
+
+	/**
+	 * @return the maximum age in seconds of vehicle data which is used while it is
+	 *         refreshed in the background
+	 */
+	public int readMaxStalenessSeconds() {
+		return readIntProperty(MAX_STALENESS_SECONDS, DEFAULT_MAX_STALENESS_SECONDS);
+	}
+
+	/**
+	 * @return the number of requests per minute sent to the tesla servers for the
+	 *         whole account
+	 */
+	public int readAccountRequestsPerMinute() {
+		return readIntProperty(ACCOUNT_REQUESTS_PER_MINUTE, AuthRestRequest.DEFAULT_ACCOUNT_REQUESTS_PER_MINUTE);
+	}
+
+	/**
+	 * @return the number of requests per minute sent to the tesla servers for one
+	 *         vehicle
+	 */
+	public int readVehicleRequestsPerMinute() {
+		return readIntProperty(VEHICLE_REQUESTS_PER_MINUTE, AuthRestRequest.DEFAULT_VEHICLE_REQUESTS_PER_MINUTE);
+	}
+
+	/**
+	 * @return the number of times a failed GET request is repeated
+	 */
+	public int readMaxRetries() {
+		return readIntProperty(MAX_RETRIES, DEFAULT_MAX_RETRIES);
+	}
+
+	/**
+	 * @return the number of times a command is repeated if it did not reach the
+	 *         car
+	 */
+	public int readCommandMaxRetries() {
+		return readIntProperty(COMMAND_MAX_RETRIES, DEFAULT_COMMAND_MAX_RETRIES);
+	}
+
+	/**
+	 * @return the maximum seconds to wait before a failed request is repeated
+	 */
+	public int readRetryIntervalSeconds() {
+		return readIntProperty(RETRY_INTERVAL_SECONDS, DEFAULT_RETRY_INTERVAL_SECONDS);
+	}
+
+	/**
+	 * @return the number of consecutive failures after which all requests fail
+	 *         immediately
+	 */
+	public int readCircuitFailureThreshold() {
+		return readIntProperty(CIRCUIT_FAILURE_THRESHOLD, DEFAULT_CIRCUIT_FAILURE_THRESHOLD);
+	}
+
+	/**
+	 * @return the seconds requests fail immediately before the tesla servers are
+	 *         tried again
+	 */
+	public int readCircuitOpenSeconds() {
+		return readIntProperty(CIRCUIT_OPEN_SECONDS, DEFAULT_CIRCUIT_OPEN_SECONDS);
+	}
+
+	/**
+	 * @return the file next to the property file which keeps the last vehicle
+	 *         data between two invocations
+	 */
+	public File getCacheFile() {
+		return new File(propertiesFile + ".cache");
+	}
+
+	/**
+	 * @return the controller used to calculate the charging amps, "pi" for the
+	 *         {@link com.mschwartz.teslacharging.PiChargeController} or
+	 *         <code>null</code> for the direct calculation
+	 */
+	public String readChargeController() {
+		return readStringProperty(CHARGE_CONTROLLER);
+	}
+
+	public int readSurplusSmoothingSeconds() {
+		return readIntProperty(SURPLUS_SMOOTHING_SECONDS, DEFAULT_SURPLUS_SMOOTHING_SECONDS);
+	}
+
+	public int readControllerGainPercent() {
+		return readIntProperty(CONTROLLER_GAIN_PERCENT, DEFAULT_CONTROLLER_GAIN_PERCENT);
+	}
+
+	public int readControllerIntegralSeconds() {
+		return readIntProperty(CONTROLLER_INTEGRAL_SECONDS, DEFAULT_CONTROLLER_INTEGRAL_SECONDS);
+	}
+
+	public int readDeadBandAmps() {
+		return readIntProperty(DEAD_BAND_AMPS, DEFAULT_DEAD_BAND_AMPS);
+	}
+
+	public int readMinOnSeconds() {
+		return readIntProperty(MIN_ON_SECONDS, DEFAULT_MIN_ON_SECONDS);
+	}
+
+	public int readMinOffSeconds() {
+		return readIntProperty(MIN_OFF_SECONDS, DEFAULT_MIN_OFF_SECONDS);
+	}
+
+	public int readMaxGridImportWatts() {
+		return readIntProperty(MAX_GRID_IMPORT_WATTS, DEFAULT_MAX_GRID_IMPORT_WATTS);
+	}
+
+	/**
+	 * @return <code>false</code> if the charge states should not be recorded
+	 */
+	public boolean readRecordHistory() {
+		return !"N".equalsIgnoreCase(readStringProperty(RECORD_HISTORY));
+	}
+
+	/**
+	 * @return the age in days after which the recorded charge states are
+	 *         compacted, 0 to never compact them
+	 */
+	public int readArchiveAfterDays() {
+		return readIntProperty(ARCHIVE_AFTER_DAYS, DEFAULT_ARCHIVE_AFTER_DAYS);
+	}
+
+	/**
+	 * @return the directory next to the property file which keeps the recorded
+	 *         charge states
+	 */
+	public File getHistoryDir() {
+		return new File(propertiesFile + ".history");
+	}
+
+	/**
+	 * @return the file next to the property file which keeps the state of the
+	 *         charge controller between two invocations
+	 */
+	public File getControllerStateFile() {
+		return new File(propertiesFile + ".controller");
+	}
+
+	/**
+	 * @return the file next to the property file which keeps the state commanded
+	 *         to the car last
+	 */
+	public File getCommandedStateFile() {
+		return new File(propertiesFile + ".commanded");
+	}
+
+	private String readStringProperty(String key) {
+		openPropertiesFile();
+		String value = prop.getProperty(key);
+		return value == null || value.trim().isEmpty() ? null : value.trim();
+	}
+
+	private int readIntProperty(String key, int defaultValue) {
+		String value = readStringProperty(key);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			logger.warn("Invalid value " + value + " for " + key + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
 	/**
 	 * Load configuration into the variables we use. Also handles reloading
 	 * configuration when the properties file is changed.
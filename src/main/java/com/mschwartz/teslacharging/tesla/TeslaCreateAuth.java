@@ -156,7 +156,7 @@ public class TeslaCreateAuth {
 
 	/////////////////////////////////////////////////////////////////////////
 
-	public class TokenRequest {
+	public static class TokenRequest {
 		public String grant_type = "authorization_code";
 
 		public String client_id = "ownerapi";
@@ -176,7 +176,7 @@ public class TeslaCreateAuth {
 	/////////////////////////////////////////////////////////////////////////
 
 	@Getter
-	public class TokenResponse {
+	public static class TokenResponse {
 		public String access_token;
 
 		public String refresh_token;
@@ -0,0 +1,702 @@
+package com.mschwartz.teslacharging.tesla;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.mschwartz.teslacharging.tesla.TeslaAuth.RefreshTokenResponse;
+import com.mschwartz.teslacharging.tesla.TeslaCharge.SimpleResponse;
+import com.mschwartz.teslacharging.tesla.TeslaCharge.SimpleResult;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.ChargeState;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.DriveState;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.Vehicle;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.VehicleData;
+
+/**
+ * Hand-written adapters for the responses of the tesla api which are read on
+ * every control cycle. Gson would otherwise bind these classes by reflection
+ * and (for classes without a no-arg constructor) instantiate them via Unsafe.
+ * The adapters read the fields by name and ignore unknown fields, null values
+ * keep the default of the field.
+ * 
+ * Keep the adapters in sync with the fields of the model classes.
+ * 
+ * @author Mike
+ *
+ */
+public class TeslaTypeAdapterFactory implements TypeAdapterFactory {
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+		Class<? super T> rawType = type.getRawType();
+		if (rawType == ChargeState.class)
+			return (TypeAdapter<T>) new ChargeStateAdapter().nullSafe();
+		if (rawType == DriveState.class)
+			return (TypeAdapter<T>) new DriveStateAdapter().nullSafe();
+		if (rawType == Vehicle.class)
+			return (TypeAdapter<T>) new VehicleAdapter().nullSafe();
+		if (rawType == VehicleData.class)
+			return (TypeAdapter<T>) new VehicleDataAdapter().nullSafe();
+		if (rawType == SimpleResult.class)
+			return (TypeAdapter<T>) new SimpleResultAdapter().nullSafe();
+		if (rawType == RefreshTokenResponse.class)
+			return (TypeAdapter<T>) new RefreshTokenResponseAdapter().nullSafe();
+		return null;
+	}
+
+	/**
+	 * Reads a string like the reflective binding of Gson does. Numbers and
+	 * booleans are accepted as well, e.g. user_charge_enable_request is sent as
+	 * boolean.
+	 * 
+	 * @return <code>null</code> for a json null
+	 */
+	static String readString(JsonReader reader) throws IOException {
+		JsonToken token = reader.peek();
+		if (token == JsonToken.NULL) {
+			reader.nextNull();
+			return null;
+		}
+		if (token == JsonToken.BOOLEAN)
+			return Boolean.toString(reader.nextBoolean());
+		// numbers are returned as written
+		return reader.nextString();
+	}
+
+	private static List<String> readStringList(JsonReader reader) throws IOException {
+		List<String> list = new ArrayList<String>();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			list.add(readString(reader));
+		}
+		reader.endArray();
+		return list;
+	}
+
+	private static void writeStringList(JsonWriter out, List<String> list) throws IOException {
+		if (list == null) {
+			out.nullValue();
+			return;
+		}
+		out.beginArray();
+		for (String value : list) {
+			out.value(value);
+		}
+		out.endArray();
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	static class ChargeStateAdapter extends TypeAdapter<ChargeState> {
+
+		@Override
+		public void write(JsonWriter out, ChargeState chargeState) throws IOException {
+			out.beginObject();
+			out.name("battery_heater_on").value(chargeState.battery_heater_on);
+			out.name("battery_level").value(chargeState.battery_level);
+			out.name("battery_range").value(chargeState.battery_range);
+			out.name("charge_amps").value(chargeState.charge_amps);
+			out.name("charge_current_request").value(chargeState.charge_current_request);
+			out.name("charge_current_request_max").value(chargeState.charge_current_request_max);
+			out.name("charge_enable_request").value(chargeState.charge_enable_request);
+			out.name("charge_energy_added").value(chargeState.charge_energy_added);
+			out.name("charge_limit_soc").value(chargeState.charge_limit_soc);
+			out.name("charge_limit_soc_max").value(chargeState.charge_limit_soc_max);
+			out.name("charge_limit_soc_min").value(chargeState.charge_limit_soc_min);
+			out.name("charge_limit_soc_std").value(chargeState.charge_limit_soc_std);
+			out.name("charge_miles_added_ideal").value(chargeState.charge_miles_added_ideal);
+			out.name("charge_miles_added_rated").value(chargeState.charge_miles_added_rated);
+			out.name("charge_port_cold_weather_mode").value(chargeState.charge_port_cold_weather_mode);
+			out.name("charge_port_color").value(chargeState.charge_port_color);
+			out.name("charge_port_latch").value(chargeState.charge_port_latch);
+			out.name("charge_rate").value(chargeState.charge_rate);
+			out.name("charge_to_max_range").value(chargeState.charge_to_max_range);
+			out.name("charger_actual_current").value(chargeState.charger_actual_current);
+			out.name("charger_phases").value(chargeState.charger_phases);
+			out.name("charger_pilot_current").value(chargeState.charger_pilot_current);
+			out.name("charger_power").value(chargeState.charger_power);
+			out.name("charger_voltage").value(chargeState.charger_voltage);
+			out.name("charging_state").value(chargeState.charging_state);
+			out.name("conn_charge_cable").value(chargeState.conn_charge_cable);
+			out.name("est_battery_range").value(chargeState.est_battery_range);
+			out.name("fast_charger_brand").value(chargeState.fast_charger_brand);
+			out.name("fast_charger_present").value(chargeState.fast_charger_present);
+			out.name("fast_charger_type").value(chargeState.fast_charger_type);
+			out.name("ideal_battery_range").value(chargeState.ideal_battery_range);
+			out.name("managed_charging_active").value(chargeState.managed_charging_active);
+			out.name("managed_charging_start_time").value(chargeState.managed_charging_start_time);
+			out.name("managed_charging_user_canceled").value(chargeState.managed_charging_user_canceled);
+			out.name("max_range_charge_counter").value(chargeState.max_range_charge_counter);
+			out.name("minutes_to_full_charge").value(chargeState.minutes_to_full_charge);
+			out.name("not_enough_power_to_heat").value(chargeState.not_enough_power_to_heat);
+			out.name("scheduled_charging_pending").value(chargeState.scheduled_charging_pending);
+			out.name("scheduled_charging_start_time").value(chargeState.scheduled_charging_start_time);
+			out.name("time_to_full_charge").value(chargeState.time_to_full_charge);
+			out.name("timestamp").value(chargeState.timestamp);
+			out.name("trip_charging").value(chargeState.trip_charging);
+			out.name("usable_battery_level").value(chargeState.usable_battery_level);
+			out.name("user_charge_enable_request").value(chargeState.user_charge_enable_request);
+			out.name("charge_port_door_open").value(chargeState.charge_port_door_open);
+			out.name("off_peak_charging_enabled").value(chargeState.off_peak_charging_enabled);
+			out.name("off_peak_charging_times").value(chargeState.off_peak_charging_times);
+			out.name("off_peak_hours_end_time").value(chargeState.off_peak_hours_end_time);
+			out.name("preconditioning_enabled").value(chargeState.preconditioning_enabled);
+			out.name("preconditioning_times").value(chargeState.preconditioning_times);
+			out.name("scheduling_charging_mode").value(chargeState.scheduling_charging_mode);
+			out.name("scheduling_charging_pending").value(chargeState.scheduling_charging_pending);
+			out.name("scheduling_charging_start_time").value(chargeState.scheduling_charging_start_time);
+			out.name("scheduling_charging_start_time_app").value(chargeState.scheduling_charging_start_time_app);
+			out.name("scheduled_departure_time").value(chargeState.scheduled_departure_time);
+			out.name("scheduled_departure_time_minutes").value(chargeState.scheduled_departure_time_minutes);
+			out.name("supercharger_session_trip_planner").value(chargeState.supercharger_session_trip_planner);
+			out.endObject();
+		}
+
+		@Override
+		public ChargeState read(JsonReader reader) throws IOException {
+			ChargeState chargeState = new ChargeState();
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (reader.peek() == JsonToken.NULL) {
+					reader.nextNull();
+					continue;
+				}
+				switch (name) {
+				case "battery_heater_on":
+					chargeState.battery_heater_on = reader.nextBoolean();
+					break;
+				case "battery_level":
+					chargeState.battery_level = reader.nextInt();
+					break;
+				case "battery_range":
+					chargeState.battery_range = reader.nextDouble();
+					break;
+				case "charge_amps":
+					chargeState.charge_amps = reader.nextInt();
+					break;
+				case "charge_current_request":
+					chargeState.charge_current_request = reader.nextInt();
+					break;
+				case "charge_current_request_max":
+					chargeState.charge_current_request_max = reader.nextInt();
+					break;
+				case "charge_enable_request":
+					chargeState.charge_enable_request = reader.nextBoolean();
+					break;
+				case "charge_energy_added":
+					chargeState.charge_energy_added = reader.nextDouble();
+					break;
+				case "charge_limit_soc":
+					chargeState.charge_limit_soc = reader.nextInt();
+					break;
+				case "charge_limit_soc_max":
+					chargeState.charge_limit_soc_max = reader.nextInt();
+					break;
+				case "charge_limit_soc_min":
+					chargeState.charge_limit_soc_min = reader.nextInt();
+					break;
+				case "charge_limit_soc_std":
+					chargeState.charge_limit_soc_std = reader.nextInt();
+					break;
+				case "charge_miles_added_ideal":
+					chargeState.charge_miles_added_ideal = reader.nextDouble();
+					break;
+				case "charge_miles_added_rated":
+					chargeState.charge_miles_added_rated = reader.nextDouble();
+					break;
+				case "charge_port_cold_weather_mode":
+					chargeState.charge_port_cold_weather_mode = reader.nextBoolean();
+					break;
+				case "charge_port_color":
+					chargeState.charge_port_color = readString(reader);
+					break;
+				case "charge_port_latch":
+					chargeState.charge_port_latch = readString(reader);
+					break;
+				case "charge_rate":
+					chargeState.charge_rate = reader.nextDouble();
+					break;
+				case "charge_to_max_range":
+					chargeState.charge_to_max_range = reader.nextBoolean();
+					break;
+				case "charger_actual_current":
+					chargeState.charger_actual_current = reader.nextInt();
+					break;
+				case "charger_phases":
+					chargeState.charger_phases = reader.nextInt();
+					break;
+				case "charger_pilot_current":
+					chargeState.charger_pilot_current = reader.nextInt();
+					break;
+				case "charger_power":
+					chargeState.charger_power = reader.nextInt();
+					break;
+				case "charger_voltage":
+					chargeState.charger_voltage = reader.nextInt();
+					break;
+				case "charging_state":
+					chargeState.charging_state = readString(reader);
+					break;
+				case "conn_charge_cable":
+					chargeState.conn_charge_cable = readString(reader);
+					break;
+				case "est_battery_range":
+					chargeState.est_battery_range = reader.nextDouble();
+					break;
+				case "fast_charger_brand":
+					chargeState.fast_charger_brand = readString(reader);
+					break;
+				case "fast_charger_present":
+					chargeState.fast_charger_present = reader.nextBoolean();
+					break;
+				case "fast_charger_type":
+					chargeState.fast_charger_type = readString(reader);
+					break;
+				case "ideal_battery_range":
+					chargeState.ideal_battery_range = reader.nextDouble();
+					break;
+				case "managed_charging_active":
+					chargeState.managed_charging_active = reader.nextBoolean();
+					break;
+				case "managed_charging_start_time":
+					chargeState.managed_charging_start_time = reader.nextLong();
+					break;
+				case "managed_charging_user_canceled":
+					chargeState.managed_charging_user_canceled = reader.nextBoolean();
+					break;
+				case "max_range_charge_counter":
+					chargeState.max_range_charge_counter = reader.nextInt();
+					break;
+				case "minutes_to_full_charge":
+					chargeState.minutes_to_full_charge = reader.nextInt();
+					break;
+				case "not_enough_power_to_heat":
+					chargeState.not_enough_power_to_heat = reader.nextBoolean();
+					break;
+				case "scheduled_charging_pending":
+					chargeState.scheduled_charging_pending = reader.nextBoolean();
+					break;
+				case "scheduled_charging_start_time":
+					chargeState.scheduled_charging_start_time = reader.nextLong();
+					break;
+				case "time_to_full_charge":
+					chargeState.time_to_full_charge = reader.nextDouble();
+					break;
+				case "timestamp":
+					chargeState.timestamp = reader.nextLong();
+					break;
+				case "trip_charging":
+					chargeState.trip_charging = reader.nextBoolean();
+					break;
+				case "usable_battery_level":
+					chargeState.usable_battery_level = reader.nextInt();
+					break;
+				case "user_charge_enable_request":
+					chargeState.user_charge_enable_request = readString(reader);
+					break;
+				case "charge_port_door_open":
+					chargeState.charge_port_door_open = reader.nextBoolean();
+					break;
+				case "off_peak_charging_enabled":
+					chargeState.off_peak_charging_enabled = reader.nextBoolean();
+					break;
+				case "off_peak_charging_times":
+					chargeState.off_peak_charging_times = readString(reader);
+					break;
+				case "off_peak_hours_end_time":
+					chargeState.off_peak_hours_end_time = reader.nextInt();
+					break;
+				case "preconditioning_enabled":
+					chargeState.preconditioning_enabled = reader.nextBoolean();
+					break;
+				case "preconditioning_times":
+					chargeState.preconditioning_times = readString(reader);
+					break;
+				case "scheduling_charging_mode":
+					chargeState.scheduling_charging_mode = readString(reader);
+					break;
+				case "scheduling_charging_pending":
+					chargeState.scheduling_charging_pending = reader.nextBoolean();
+					break;
+				case "scheduling_charging_start_time":
+					chargeState.scheduling_charging_start_time = readString(reader);
+					break;
+				case "scheduling_charging_start_time_app":
+					chargeState.scheduling_charging_start_time_app = reader.nextInt();
+					break;
+				case "scheduled_departure_time":
+					chargeState.scheduled_departure_time = reader.nextLong();
+					break;
+				case "scheduled_departure_time_minutes":
+					chargeState.scheduled_departure_time_minutes = reader.nextInt();
+					break;
+				case "supercharger_session_trip_planner":
+					chargeState.supercharger_session_trip_planner = reader.nextBoolean();
+					break;
+				default:
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			return chargeState;
+		}
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	static class DriveStateAdapter extends TypeAdapter<DriveState> {
+
+		@Override
+		public void write(JsonWriter out, DriveState driveState) throws IOException {
+			out.beginObject();
+			out.name("gps_as_of").value(driveState.gps_as_of);
+			out.name("heading").value(driveState.heading);
+			out.name("latitude").value(driveState.latitude);
+			out.name("longitude").value(driveState.longitude);
+			out.name("native_latitude").value(driveState.native_latitude);
+			out.name("native_longitude").value(driveState.native_longitude);
+			out.name("native_location_supported").value(driveState.native_location_supported);
+			out.name("native_type").value(driveState.native_type);
+			out.name("power").value(driveState.power);
+			out.name("shift_state").value(driveState.shift_state);
+			out.name("speed").value(driveState.speed);
+			out.name("timestamp").value(driveState.timestamp);
+			out.name("active_route_latitude").value(driveState.active_route_latitude);
+			out.name("active_route_longitude").value(driveState.active_route_longitude);
+			out.name("active_route_traffic_minutes_delay").value(driveState.active_route_traffic_minutes_delay);
+			out.endObject();
+		}
+
+		@Override
+		public DriveState read(JsonReader reader) throws IOException {
+			DriveState driveState = new DriveState();
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (reader.peek() == JsonToken.NULL) {
+					reader.nextNull();
+					continue;
+				}
+				switch (name) {
+				case "gps_as_of":
+					driveState.gps_as_of = reader.nextInt();
+					break;
+				case "heading":
+					driveState.heading = reader.nextInt();
+					break;
+				case "latitude":
+					driveState.latitude = reader.nextDouble();
+					break;
+				case "longitude":
+					driveState.longitude = reader.nextDouble();
+					break;
+				case "native_latitude":
+					driveState.native_latitude = reader.nextDouble();
+					break;
+				case "native_longitude":
+					driveState.native_longitude = reader.nextDouble();
+					break;
+				case "native_location_supported":
+					driveState.native_location_supported = reader.nextInt();
+					break;
+				case "native_type":
+					driveState.native_type = readString(reader);
+					break;
+				case "power":
+					driveState.power = reader.nextInt();
+					break;
+				case "shift_state":
+					driveState.shift_state = readString(reader);
+					break;
+				case "speed":
+					driveState.speed = reader.nextDouble();
+					break;
+				case "timestamp":
+					driveState.timestamp = reader.nextLong();
+					break;
+				case "active_route_latitude":
+					driveState.active_route_latitude = reader.nextDouble();
+					break;
+				case "active_route_longitude":
+					driveState.active_route_longitude = reader.nextDouble();
+					break;
+				case "active_route_traffic_minutes_delay":
+					driveState.active_route_traffic_minutes_delay = reader.nextDouble();
+					break;
+				default:
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			return driveState;
+		}
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	static class VehicleAdapter extends TypeAdapter<Vehicle> {
+
+		private TypeAdapter<ChargeState> chargeStateAdapter = new ChargeStateAdapter();
+
+		private TypeAdapter<DriveState> driveStateAdapter = new DriveStateAdapter();
+
+
+		@Override
+		public void write(JsonWriter out, Vehicle vehicle) throws IOException {
+			out.beginObject();
+			out.name("id").value(vehicle.id);
+			out.name("user_id").value(vehicle.user_id);
+			out.name("vehicle_id").value(vehicle.vehicle_id);
+			out.name("vin").value(vehicle.vin);
+			out.name("display_name").value(vehicle.display_name);
+			out.name("color").value(vehicle.color);
+			out.name("access_type").value(vehicle.access_type);
+			writeStringList(out.name("tokens"), vehicle.tokens);
+			out.name("state").value(vehicle.state);
+			out.name("in_service").value(vehicle.in_service);
+			out.name("id_s").value(vehicle.id_s);
+			out.name("calendar_enabled").value(vehicle.calendar_enabled);
+			out.name("api_version").value(vehicle.api_version);
+			out.name("backseat_token").value(vehicle.backseat_token);
+			out.name("backset_token_updated_at").value(vehicle.backset_token_updated_at);
+			if (vehicle.drive_state != null) {
+				driveStateAdapter.write(out.name("drive_state"), vehicle.drive_state);
+			}
+			if (vehicle.charge_state != null) {
+				chargeStateAdapter.write(out.name("charge_state"), vehicle.charge_state);
+			}
+			out.name("option_codes").value(vehicle.option_codes);
+			out.name("ble_autopair_enrolled").value(vehicle.ble_autopair_enrolled);
+			out.endObject();
+		}
+
+		@Override
+		public Vehicle read(JsonReader reader) throws IOException {
+			Vehicle vehicle = new Vehicle();
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (reader.peek() == JsonToken.NULL) {
+					reader.nextNull();
+					continue;
+				}
+				switch (name) {
+				case "id":
+					vehicle.id = readString(reader);
+					break;
+				case "user_id":
+					vehicle.user_id = readString(reader);
+					break;
+				case "vehicle_id":
+					vehicle.vehicle_id = readString(reader);
+					break;
+				case "vin":
+					vehicle.vin = readString(reader);
+					break;
+				case "display_name":
+					vehicle.display_name = readString(reader);
+					break;
+				case "color":
+					vehicle.color = readString(reader);
+					break;
+				case "access_type":
+					vehicle.access_type = readString(reader);
+					break;
+				case "tokens":
+					vehicle.tokens = readStringList(reader);
+					break;
+				case "state":
+					vehicle.state = readString(reader);
+					break;
+				case "in_service":
+					vehicle.in_service = reader.nextBoolean();
+					break;
+				case "id_s":
+					vehicle.id_s = readString(reader);
+					break;
+				case "calendar_enabled":
+					vehicle.calendar_enabled = reader.nextBoolean();
+					break;
+				case "api_version":
+					vehicle.api_version = reader.nextInt();
+					break;
+				case "backseat_token":
+					vehicle.backseat_token = readString(reader);
+					break;
+				case "backset_token_updated_at":
+					vehicle.backset_token_updated_at = readString(reader);
+					break;
+				case "drive_state":
+					vehicle.drive_state = driveStateAdapter.read(reader);
+					break;
+				case "charge_state":
+					vehicle.charge_state = chargeStateAdapter.read(reader);
+					break;
+				case "option_codes":
+					vehicle.option_codes = readString(reader);
+					break;
+				case "ble_autopair_enrolled":
+					vehicle.ble_autopair_enrolled = reader.nextBoolean();
+					break;
+				default:
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			return vehicle;
+		}
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	static class VehicleDataAdapter extends TypeAdapter<VehicleData> {
+
+		private TypeAdapter<Vehicle> vehicleAdapter = new VehicleAdapter();
+
+		@Override
+		public void write(JsonWriter out, VehicleData vehicleData) throws IOException {
+			out.beginObject();
+			if (vehicleData.response != null) {
+				vehicleAdapter.write(out.name("response"), vehicleData.response);
+			}
+			out.endObject();
+		}
+
+		@Override
+		public VehicleData read(JsonReader reader) throws IOException {
+			VehicleData vehicleData = new VehicleData();
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (name.equals("response") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+					vehicleData.response = vehicleAdapter.read(reader);
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			return vehicleData;
+		}
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	static class SimpleResultAdapter extends TypeAdapter<SimpleResult> {
+
+		@Override
+		public void write(JsonWriter out, SimpleResult simpleResult) throws IOException {
+			out.beginObject();
+			if (simpleResult.response != null) {
+				out.name("response").beginObject();
+				out.name("reason").value(simpleResult.response.reason);
+				out.name("result").value(simpleResult.response.result);
+				out.endObject();
+			}
+			out.endObject();
+		}
+
+		@Override
+		public SimpleResult read(JsonReader reader) throws IOException {
+			SimpleResult simpleResult = new SimpleResult();
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (name.equals("response") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+					simpleResult.response = readResponse(reader);
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			return simpleResult;
+		}
+
+		private SimpleResponse readResponse(JsonReader reader) throws IOException {
+			SimpleResponse response = new SimpleResponse();
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (reader.peek() == JsonToken.NULL) {
+					reader.nextNull();
+					continue;
+				}
+				switch (name) {
+				case "reason":
+					response.reason = readString(reader);
+					break;
+				case "result":
+					response.result = reader.nextBoolean();
+					break;
+				default:
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			return response;
+		}
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	static class RefreshTokenResponseAdapter extends TypeAdapter<RefreshTokenResponse> {
+
+		@Override
+		public void write(JsonWriter out, RefreshTokenResponse response) throws IOException {
+			out.beginObject();
+			out.name("access_token").value(response.access_token);
+			out.name("refresh_token").value(response.refresh_token);
+			out.name("expires_in").value(response.expires_in);
+			out.name("state").value(response.state);
+			out.name("token_type").value(response.token_type);
+			out.name("id_token").value(response.id_token);
+			out.endObject();
+		}
+
+		@Override
+		public RefreshTokenResponse read(JsonReader reader) throws IOException {
+			RefreshTokenResponse response = new RefreshTokenResponse();
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (reader.peek() == JsonToken.NULL) {
+					reader.nextNull();
+					continue;
+				}
+				switch (name) {
+				case "access_token":
+					response.access_token = readString(reader);
+					break;
+				case "refresh_token":
+					response.refresh_token = readString(reader);
+					break;
+				case "expires_in":
+					response.expires_in = readString(reader);
+					break;
+				case "state":
+					response.state = readString(reader);
+					break;
+				case "token_type":
+					response.token_type = readString(reader);
+					break;
+				case "id_token":
+					response.id_token = readString(reader);
+					break;
+				default:
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			return response;
+		}
+	}
+
+}
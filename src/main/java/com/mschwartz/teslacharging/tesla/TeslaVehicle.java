@@ -1,20 +1,40 @@
 package com.mschwartz.teslacharging.tesla;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.collections4.queue.CircularFifoQueue;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.mschwartz.teslacharging.history.ChargeRecorder;
+import com.mschwartz.teslacharging.tesla.VehicleDataCache.Snapshot;
 import com.mschwartz.teslacharging.web.AuthRestRequest;
+import com.mschwartz.teslacharging.web.Futures;
+import com.mschwartz.teslacharging.web.SingleFlight;
 import com.mschwartz.teslacharging.web.SleepingCarException;
 
 import lombok.Getter;
+import lombok.Setter;
 
 public class TeslaVehicle {
 
 	static final Logger logger = LogManager.getLogger(TeslaVehicle.class);
 
+	// not a section of the response, contains the position in the drive state
+	private static final String LOCATION_DATA = "location_data";
+
+	// wake up: maximum duration and the delays between polling the state
+	static final long WAKE_UP_TIMEOUT_MILLIS = 30000, WAKE_UP_INITIAL_POLL_MILLIS = 500,
+			WAKE_UP_MAX_POLL_MILLIS = 4000;
+
 	private AuthRestRequest authRestRequest;
 
 	@Getter
@@ -30,9 +50,32 @@ public class TeslaVehicle {
 
 	private VehicleLocation lastHome;
 
-	private VehicleData lastCache;
+	private Snapshot lastCache;
+
+	// shares the vehicle data with other processes, may be null
+	private VehicleDataCache vehicleDataCache;
+
+	// section -> time the section is used without asking the tesla servers
+	private Map<String, Long> sectionTtlMillis = new HashMap<String, Long>();
+
+	// maximum age of data served while it is refreshed in the background, 0 to
+	// always wait for the refresh
+	@Setter
+	private long maxStalenessMillis;
 
-	private long timestampCache;
+	// wake-ups caused by this program
+	@Getter
+	private WakeStatistics wakeStatistics = new WakeStatistics();
+
+	// cleared if the tesla servers do not support requesting single sections
+	private volatile boolean endpointFilter = true;
+
+	private SingleFlight<String, Vehicle> vehicleDataFlight = new SingleFlight<String, Vehicle>();
+
+	// records each retrieved charge state, may be null
+	@Getter
+	@Setter
+	private ChargeRecorder recorder;
 
 	// Vehicle location history
 	private CircularFifoQueue<VehicleLocation> vehicleLocationHistory = new CircularFifoQueue<VehicleLocation>(250);
@@ -42,6 +85,14 @@ public class TeslaVehicle {
 		vin = teslaConfiguration.readVin();
 		id = teslaConfiguration.readID_S();
 		displayName = teslaConfiguration.readDisplayName();
+		sectionTtlMillis.put(VehicleDataDecoder.CHARGE_STATE, teslaConfiguration.readChargeStateTtlSeconds() * 1000L);
+		sectionTtlMillis.put(VehicleDataDecoder.DRIVE_STATE, teslaConfiguration.readDriveStateTtlSeconds() * 1000L);
+		maxStalenessMillis = teslaConfiguration.readMaxStalenessSeconds() * 1000L;
+		try {
+			vehicleDataCache = new VehicleDataCache(teslaConfiguration.getCacheFile());
+		} catch (IOException e) {
+			logger.warn("Cannot open the vehicle data cache " + teslaConfiguration.getCacheFile(), e);
+		}
 		try {
 			homeLatitude = teslaConfiguration.readHomeLatitude();
 			homeLongitude = teslaConfiguration.readHomeLongitude();
@@ -111,88 +162,445 @@ public class TeslaVehicle {
 		return vehicleMatch;
 	}
 
+	/**
+	 * 
+	 * @return the number of requests for this vehicle which can be sent to the
+	 *         tesla servers immediately
+	 */
+	public int getRemainingRequestBudget() {
+		return authRestRequest.getRemainingBudget(id);
+	}
+
 	public VehicleLocation getHomePosition() {
 		return new VehicleLocation(homeLatitude, homeLongitude);
 	}
 
 	/**
-	 * Get the full vehicle data set
+	 * Get the charge and drive state of the vehicle. Concurrent callers share one
+	 * request to the tesla servers. A sleeping car is not woken up, the last known
+	 * data is returned instead.
 	 * 
-	 * @param id ID of the vehicle to use when requesting vehicle data
 	 * @return Vehicle data response JSON object
 	 * @throws Exception
 	 */
 	public Vehicle getVehicleData() throws Exception {
-		if (timestampCache != 0 && System.currentTimeMillis() - timestampCache < 10000) {
-			return lastCache.getResponse();
+		return getVehicleData(VehicleDataDecoder.CHARGE_STATE, VehicleDataDecoder.DRIVE_STATE);
+	}
+
+	/**
+	 * Get the vehicle data with the given sections. Only these sections are
+	 * requested from the tesla servers, they are merged into the cached vehicle
+	 * data. The other sections of the returned vehicle may be outdated or
+	 * <code>null</code>.
+	 * 
+	 * Polling the data keeps the car awake (and consumes power) so the state of
+	 * the car is checked first. If the car is not online the last known data is
+	 * returned. The car is only woken up if nothing is known about it yet.
+	 * 
+	 * Each section is cached for its own ttl. Sections older than their ttl but
+	 * younger than the maximum staleness are returned immediately while they are
+	 * refreshed in the background. Use {@link #getDataAgeMillis(String)} to find
+	 * out how old the returned data is.
+	 * 
+	 * @param sections the sections needed by the caller, e.g.
+	 *                 {@link VehicleDataDecoder#CHARGE_STATE}
+	 * @return Vehicle data response JSON object
+	 * @throws Exception
+	 */
+	public Vehicle getVehicleData(String... sections) throws Exception {
+		Vehicle cached = getCachedVehicleData(sections);
+		if (cached != null) {
+			return cached;
 		}
-		try {
-			VehicleData vehicleDataResponse = authRestRequest
-					.getJSON(TeslaConfiguration.apiBase + "/api/1/vehicles/" + id + "/vehicle_data", VehicleData.class);
+		return vehicleDataFlight.execute(flightKey(sections), () -> requestVehicleData(sections));
+	}
 
-			if (vehicleDataResponse != null && vehicleDataResponse.getResponse() != null) {
-				lastCache = vehicleDataResponse;
-				timestampCache = System.currentTimeMillis();
-				return vehicleDataResponse.getResponse();
+	/**
+	 * 
+	 * @param section e.g. {@link VehicleDataDecoder#CHARGE_STATE}
+	 * @return the age of the cached section in milliseconds or -1 if the section
+	 *         has not been retrieved yet
+	 */
+	public synchronized long getDataAgeMillis(String section) {
+		if (lastCache == null || lastCache.getTimestamp(section) == 0)
+			return -1;
+		return System.currentTimeMillis() - lastCache.getTimestamp(section);
+	}
+
+	private Vehicle requestVehicleData(String[] sections) throws Exception {
+		String state = getVehicleState();
+		if (state.equals("online")) {
+			try {
+				return requestVehicleDataSections(sections);
+			} catch (SleepingCarException e) {
+				// fell asleep in the meantime
+				state = "asleep";
 			}
-		} catch (SleepingCarException e) {
-			boolean ok = wakeUpVehicle();
+		}
+		Vehicle lastKnown = getLastKnownVehicleData(state);
+		if (lastKnown != null) {
+			return lastKnown;
+		}
+		boolean ok = wakeUpVehicle();
+		if (!ok) {
+			logger.warn("Waking up the car failed");
+		}
+		return requestVehicleDataSections(sections);
+	}
+
+	private Vehicle requestVehicleDataSections(String[] sections) throws Exception {
+		// the requested sections are read, everything else is skipped
+		VehicleDataDecoder decoder = new VehicleDataDecoder(sections);
+		Vehicle vehicle = null;
+		if (endpointFilter) {
+			vehicle = authRestRequest.getJSONStream(vehicleDataUrl(sections), decoder);
+			checkSections(vehicle, sections);
+		}
+		if (!endpointFilter) {
+			vehicle = authRestRequest.getJSONStream(vehicleDataUrl(), decoder);
+		}
+		if (vehicle != null) {
+			return updateCache(vehicle);
+		}
+		return null;
+	}
+
+	/**
+	 * Get the charge and drive state of the vehicle without blocking the caller. If
+	 * the car is sleeping the last known data is returned.
+	 * 
+	 * @return Future with the vehicle data or <code>null</code> if the data could
+	 *         not be retrieved
+	 */
+	public CompletableFuture<Vehicle> getVehicleDataAsync() {
+		return getVehicleDataAsync(VehicleDataDecoder.CHARGE_STATE, VehicleDataDecoder.DRIVE_STATE);
+	}
+
+	/**
+	 * Get the vehicle data with the given sections without blocking the caller.
+	 * Shares the request with concurrent callers of
+	 * {@link #getVehicleData(String...)}.
+	 * 
+	 * @see #getVehicleData(String...)
+	 */
+	public CompletableFuture<Vehicle> getVehicleDataAsync(String... sections) {
+		Vehicle cached = getCachedVehicleData(sections);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		return vehicleDataFlight.executeAsync(flightKey(sections), () -> requestVehicleDataAsync(sections));
+	}
+
+	private CompletableFuture<Vehicle> requestVehicleDataAsync(String[] sections) {
+		return getVehicleStateAsync().thenCompose(state -> {
+			if (!state.equals("online"))
+				return lastKnownOrWakeUpAsync(state, sections);
+			return requestVehicleDataSectionsAsync(sections).handle((vehicle, e) -> {
+				if (e == null)
+					return CompletableFuture.completedFuture(vehicle);
+				if (Futures.unwrap(e) instanceof SleepingCarException) {
+					// fell asleep in the meantime
+					return lastKnownOrWakeUpAsync("asleep", sections);
+				}
+				return CompletableFuture.<Vehicle>failedFuture(e);
+			}).thenCompose(future -> future);
+		}).orTimeout(authRestRequest.getAsyncTimeout().toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	private CompletableFuture<Vehicle> lastKnownOrWakeUpAsync(String state, String[] sections) {
+		Vehicle lastKnown = getLastKnownVehicleData(state);
+		if (lastKnown != null)
+			return CompletableFuture.completedFuture(lastKnown);
+		return wakeUpVehicleAsync().thenCompose(ok -> {
 			if (!ok) {
 				logger.warn("Waking up the car failed");
 			}
-			// repeat once
-			VehicleData vehicleDataResponse = authRestRequest
-					.getJSON(TeslaConfiguration.apiBase + "/api/1/vehicles/" + id + "/vehicle_data", VehicleData.class);
+			return requestVehicleDataSectionsAsync(sections);
+		});
+	}
 
+	private CompletableFuture<Vehicle> requestVehicleDataSectionsAsync(String[] sections) {
+		CompletableFuture<VehicleData> response;
+		if (endpointFilter) {
+			response = authRestRequest.getJSONAsync(vehicleDataUrl(sections), VehicleData.class)
+					.thenCompose(vehicleDataResponse -> {
+						checkSections(vehicleDataResponse != null ? vehicleDataResponse.getResponse() : null, sections);
+						if (endpointFilter)
+							return CompletableFuture.completedFuture(vehicleDataResponse);
+						return authRestRequest.getJSONAsync(vehicleDataUrl(), VehicleData.class);
+					});
+		} else {
+			response = authRestRequest.getJSONAsync(vehicleDataUrl(), VehicleData.class);
+		}
+		return response.thenApply(vehicleDataResponse -> {
 			if (vehicleDataResponse != null && vehicleDataResponse.getResponse() != null) {
-				lastCache = vehicleDataResponse;
-				timestampCache = System.currentTimeMillis();
-				return vehicleDataResponse.getResponse();
+				return updateCache(vehicleDataResponse.getResponse());
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * 
+	 * @param sections the sections to request, all sections if empty
+	 * @return the url of the vehicle_data endpoint
+	 */
+	private String vehicleDataUrl(String... sections) {
+		String url = TeslaConfiguration.apiBase + "/api/1/vehicles/" + id + "/vehicle_data";
+		if (sections.length == 0)
+			return url;
+		List<String> endpoints = new ArrayList<String>(Arrays.asList(sections));
+		// newer firmware only reports the position of the car if requested explicitly
+		if (endpoints.contains(VehicleDataDecoder.DRIVE_STATE))
+			endpoints.add(LOCATION_DATA);
+		return url + "?endpoints=" + String.join("%3B", endpoints);
+	}
+
+	/**
+	 * Disables the filtering of the sections if the response does not contain all
+	 * requested sections. All following requests fetch the full vehicle data.
+	 */
+	private void checkSections(Vehicle vehicle, String[] sections) {
+		if (vehicle == null)
+			return;
+		for (String section : sections) {
+			if (!vehicle.hasSection(section)) {
+				logger.info("Response does not contain the requested section {}, requesting the full vehicle data",
+						section);
+				endpointFilter = false;
+				return;
 			}
 		}
+	}
 
+	private String flightKey(String[] sections) {
+		String[] sorted = sections.clone();
+		Arrays.sort(sorted);
+		return id + ":" + String.join(";", sorted);
+	}
+
+	/**
+	 * Starts a refresh in the background if the data is stale.
+	 * 
+	 * @return the vehicle data if all given sections are younger than their ttl or
+	 *         the maximum staleness, otherwise <code>null</code>
+	 */
+	private Vehicle getCachedVehicleData(String[] sections) {
+		Snapshot snapshot;
+		synchronized (this) {
+			if (!isYoungerThan(lastCache, sections, false)) {
+				// another process may have retrieved the data in the meantime
+				readCacheFile();
+			}
+			snapshot = lastCache;
+		}
+		if (isYoungerThan(snapshot, sections, false))
+			return snapshot.getVehicle();
+		if (isYoungerThan(snapshot, sections, true)) {
+			refreshInBackground(sections);
+			return snapshot.getVehicle();
+		}
 		return null;
 	}
 
 	/**
-	 * Wake up the vehicle so we know future commands will work.
 	 * 
-	 * @param id ID of the vehicle to use in the wake_up request
+	 * @param stale <code>false</code> to check the ttl of the sections,
+	 *              <code>true</code> to check the maximum staleness
+	 */
+	private boolean isYoungerThan(Snapshot snapshot, String[] sections, boolean stale) {
+		if (snapshot == null)
+			return false;
+		long now = System.currentTimeMillis();
+		for (String section : sections) {
+			Long ttl = sectionTtlMillis.get(section);
+			long maxAge = ttl == null ? 0 : ttl;
+			if (stale)
+				maxAge = Math.max(maxAge, maxStalenessMillis);
+			if (now - snapshot.getTimestamp(section) >= maxAge)
+				return false;
+		}
+		return true;
+	}
+
+	private void refreshInBackground(String[] sections) {
+		logger.debug("Refreshing {} in the background", (Object) sections);
+		vehicleDataFlight.executeAsync(flightKey(sections), () -> requestVehicleDataAsync(sections))
+				.whenComplete((vehicle, e) -> {
+					if (e != null)
+						logger.warn("Refreshing the vehicle data failed", Futures.unwrap(e));
+				});
+	}
+
+	/**
+	 * 
+	 * @return the cached vehicle data regardless of its age or <code>null</code>
+	 */
+	private synchronized Vehicle getLastKnownVehicleData(String state) {
+		if (lastCache == null)
+			readCacheFile();
+		if (lastCache == null) {
+			logger.info("Tesla is {} and nothing is known about it yet, waking it up", state);
+			return null;
+		}
+		logger.info("Tesla is {}, using the last known vehicle data", state);
+		return lastCache.getVehicle();
+	}
+
+	/**
+	 * Merges the newly retrieved vehicle into the cache. Sections missing in the
+	 * new vehicle are taken from the cache.
+	 * 
+	 * @return the merged vehicle
+	 */
+	private synchronized Vehicle updateCache(Vehicle vehicle) {
+		lastCache = Snapshot.merge(lastCache, new Snapshot(vehicle, System.currentTimeMillis()));
+		if (vehicleDataCache != null) {
+			try {
+				lastCache = Snapshot.merge(lastCache, vehicleDataCache.merge(lastCache));
+			} catch (IOException e) {
+				logger.warn("Writing the vehicle data cache failed", e);
+			}
+		}
+		Vehicle merged = lastCache.getVehicle();
+		if (recorder != null && vehicle.getCharge_state() != null && merged != null)
+			recorder.record(merged.getCharge_state(), merged.getDrive_state());
+		return merged;
+	}
+
+	private void readCacheFile() {
+		if (vehicleDataCache == null)
+			return;
+		Snapshot snapshot = vehicleDataCache.read();
+		// the property file may have been changed to a different car
+		if (snapshot != null && snapshot.getVehicle() != null && id != null
+				&& id.equals(snapshot.getVehicle().getId_s()))
+			lastCache = Snapshot.merge(lastCache, snapshot);
+	}
+
+	/**
+	 * Wake up the vehicle so we know future commands will work. Sends one wake up
+	 * request and then polls the state of the vehicle until it is online. The
+	 * delay between two polls starts small and doubles up to a maximum because most
+	 * cars are online within a few seconds. Interrupt the calling thread to cancel
+	 * the wake up.
+	 * 
+	 * @return <code>true</code> as soon as the vehicle is online,
+	 *         <code>false</code> if it did not wake up in time
 	 * @throws Exception
 	 */
 	public boolean wakeUpVehicle() throws Exception {
-		for (int i = 0; i < 10; ++i) {
-			logger.debug("Wake up, Tesla {}!", id);
-			VehicleData wakeResponse = authRestRequest.postJson(
-					TeslaConfiguration.apiBase + "/api/1/vehicles/" + id + "/wake_up", null, VehicleData.class);
-			if (wakeResponse != null) {
-				if (wakeResponse.getResponse() != null) {
-					Vehicle response = wakeResponse.getResponse();
-					if (response.getState() != null && response.getState().equals("online")) {
-						return true;
-					}
-				}
+		long deadline = System.currentTimeMillis() + WAKE_UP_TIMEOUT_MILLIS;
+		logger.debug("Wake up, Tesla {}!", id);
+		VehicleData wakeResponse = authRestRequest.postJson(
+				TeslaConfiguration.apiBase + "/api/1/vehicles/" + id + "/wake_up", null, VehicleData.class);
+		if (isOnline(wakeResponse)) {
+			return true;
+		}
+		wakeStatistics.wokeUp();
+		long delay = WAKE_UP_INITIAL_POLL_MILLIS;
+		while (System.currentTimeMillis() + delay < deadline) {
+			Thread.sleep(delay);
+			String state = getVehicleState();
+			logger.debug("Tesla {} is {}", id, state);
+			if (state.equals("online")) {
+				return true;
 			}
-			Thread.sleep(2000);
+			delay = Math.min(delay * 2, WAKE_UP_MAX_POLL_MILLIS);
 		}
 		return false;
 	}
 
+	/**
+	 * Wake up the vehicle without blocking the caller. Instead of sleeping between
+	 * the polls the next poll is scheduled. Cancelling the returned future stops
+	 * the polling.
+	 * 
+	 * @return Future which completes with <code>true</code> as soon as the vehicle
+	 *         is online or with <code>false</code> if it did not wake up in time
+	 * @see #wakeUpVehicle()
+	 */
+	public CompletableFuture<Boolean> wakeUpVehicleAsync() {
+		CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+		long deadline = System.currentTimeMillis() + WAKE_UP_TIMEOUT_MILLIS;
+		logger.debug("Wake up, Tesla {}!", id);
+		authRestRequest.postJsonAsync(TeslaConfiguration.apiBase + "/api/1/vehicles/" + id + "/wake_up", null,
+				VehicleData.class).whenComplete((wakeResponse, e) -> {
+					if (e != null)
+						result.completeExceptionally(e);
+					else if (isOnline(wakeResponse))
+						result.complete(true);
+					else {
+						wakeStatistics.wokeUp();
+						pollVehicleStateAsync(result, deadline, WAKE_UP_INITIAL_POLL_MILLIS);
+					}
+				});
+		return result.orTimeout(authRestRequest.getAsyncTimeout().toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	private void pollVehicleStateAsync(CompletableFuture<Boolean> result, long deadline, long delay) {
+		if (result.isDone()) {
+			// cancelled or timed out
+			return;
+		}
+		if (System.currentTimeMillis() + delay >= deadline) {
+			result.complete(false);
+			return;
+		}
+		Executor delayed = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS,
+				authRestRequest.getAsyncExecutor());
+		CompletableFuture.runAsync(() -> {
+			if (result.isDone())
+				return;
+			getVehicleStateAsync().whenComplete((state, e) -> {
+				if (e != null) {
+					result.completeExceptionally(e);
+				} else {
+					logger.debug("Tesla {} is {}", id, state);
+					if (state.equals("online"))
+						result.complete(true);
+					else
+						pollVehicleStateAsync(result, deadline, Math.min(delay * 2, WAKE_UP_MAX_POLL_MILLIS));
+				}
+			});
+		}, delayed);
+	}
+
+	private boolean isOnline(VehicleData vehicleData) {
+		return vehicleData != null && vehicleData.getResponse() != null
+				&& "online".equals(vehicleData.getResponse().getState());
+	}
+
 	/**
 	 * Get the current state of the vehicle with the provided ID. NOTE! This call
 	 * won't wake a sleeping Tesla!
 	 * 
-	 * @param id ID of the vehicle to use when requesting the current state
 	 * @return String representing vehicle state (online, asleep, offline, waking,
 	 *         unknown)
 	 * @throws Exception
 	 */
-	private String getVehicleState() throws Exception {
-		VehicleData vehicleResponse = authRestRequest.getJSON("api/1/vehicles/" + id, VehicleData.class);
+	public String getVehicleState() throws Exception {
+		VehicleData vehicleResponse = authRestRequest.getJSON(TeslaConfiguration.apiBase + "/api/1/vehicles/" + id,
+				VehicleData.class);
+		return toState(vehicleResponse);
+	}
 
-		if (vehicleResponse != null) {
+	/**
+	 * Get the current state of the vehicle without blocking the caller
+	 * 
+	 * @see #getVehicleState()
+	 */
+	public CompletableFuture<String> getVehicleStateAsync() {
+		return authRestRequest
+				.getJSONAsync(TeslaConfiguration.apiBase + "/api/1/vehicles/" + id, VehicleData.class)
+				.thenApply(this::toState);
+	}
+
+	private String toState(VehicleData vehicleResponse) {
+		if (vehicleResponse != null && vehicleResponse.getResponse() != null) {
 			Vehicle data = vehicleResponse.getResponse();
 			if (data.getState() != null) {
+				wakeStatistics.observedState(data.getState());
 				return data.getState();
 			}
 		}
@@ -208,7 +616,7 @@ public class TeslaVehicle {
 	 * @throws Exception
 	 */
 	public DriveState getVehicleDriveState() throws Exception {
-		Vehicle vehicleDataResponse = getVehicleData();
+		Vehicle vehicleDataResponse = getVehicleData(VehicleDataDecoder.DRIVE_STATE);
 		if (vehicleDataResponse != null && vehicleDataResponse.getDrive_state() != null) {
 			DriveState data = vehicleDataResponse.getDrive_state();
 			return data;
@@ -216,6 +624,26 @@ public class TeslaVehicle {
 		return null;
 	}
 
+	/**
+	 * Get the drive state of the vehicle without blocking the caller
+	 * 
+	 * @see #getVehicleDriveState()
+	 */
+	public CompletableFuture<DriveState> getVehicleDriveStateAsync() {
+		return getVehicleDataAsync(VehicleDataDecoder.DRIVE_STATE)
+				.thenApply(vehicle -> vehicle != null ? vehicle.getDrive_state() : null);
+	}
+
+	/**
+	 * Get the charge state of the vehicle without blocking the caller
+	 * 
+	 * @see #getVehicleChargeState()
+	 */
+	public CompletableFuture<ChargeState> getVehicleChargeStateAsync() {
+		return getVehicleDataAsync(VehicleDataDecoder.CHARGE_STATE)
+				.thenApply(vehicle -> vehicle != null ? vehicle.getCharge_state() : null);
+	}
+
 	/**
 	 * Get the charge state of the vehicle
 	 * 
@@ -224,7 +652,7 @@ public class TeslaVehicle {
 	 * @throws Exception
 	 */
 	public ChargeState getVehicleChargeState() throws Exception {
-		Vehicle vehicleDataResponse = getVehicleData();
+		Vehicle vehicleDataResponse = getVehicleData(VehicleDataDecoder.CHARGE_STATE);
 		if (vehicleDataResponse != null && vehicleDataResponse.getCharge_state() != null) {
 			return vehicleDataResponse.getCharge_state();
 		}
@@ -314,7 +742,7 @@ public class TeslaVehicle {
 	/////////////////////////////////////////////////////////////////////////
 
 	@Getter
-	public class Vehicle {
+	public static class Vehicle {
 
 		String id;
 
@@ -359,12 +787,57 @@ public class TeslaVehicle {
 
 		boolean ble_autopair_enrolled;
 
+		/**
+		 * 
+		 * @return a shallow copy of this vehicle
+		 */
+		Vehicle copy() {
+			Vehicle vehicle = new Vehicle();
+			vehicle.id = id;
+			vehicle.user_id = user_id;
+			vehicle.vehicle_id = vehicle_id;
+			vehicle.vin = vin;
+			vehicle.display_name = display_name;
+			vehicle.color = color;
+			vehicle.access_type = access_type;
+			vehicle.tokens = tokens;
+			vehicle.state = state;
+			vehicle.in_service = in_service;
+			vehicle.id_s = id_s;
+			vehicle.calendar_enabled = calendar_enabled;
+			vehicle.api_version = api_version;
+			vehicle.backseat_token = backseat_token;
+			vehicle.backset_token_updated_at = backset_token_updated_at;
+			vehicle.drive_state = drive_state;
+			vehicle.charge_state = charge_state;
+			vehicle.option_codes = option_codes;
+			vehicle.ble_autopair_enrolled = ble_autopair_enrolled;
+			return vehicle;
+		}
+
+		/**
+		 * 
+		 * @param section e.g. {@link VehicleDataDecoder#CHARGE_STATE}
+		 * @return true if this vehicle contains the given section
+		 */
+		boolean hasSection(String section) {
+			switch (section) {
+			case VehicleDataDecoder.CHARGE_STATE:
+				return charge_state != null;
+			case VehicleDataDecoder.DRIVE_STATE:
+				return drive_state != null;
+			default:
+				return false;
+			}
+		}
+
 	}
 
 	/////////////////////////////////////////////////////////////////////////
 
 	@Getter
-	public class ChargeState {
+	@Setter
+	public static class ChargeState {
 
 		boolean battery_heater_on;
 
@@ -551,7 +1024,7 @@ public class TeslaVehicle {
 	/////////////////////////////////////////////////////////////////////////
 
 	@Getter
-	public class DriveState {
+	public static class DriveState {
 
 		int gps_as_of;
 
@@ -588,7 +1061,7 @@ public class TeslaVehicle {
 
 	/////////////////////////////////////////////////////////////////////////
 
-	class VehicleList {
+	static class VehicleList {
 
 		List<Vehicle> response;
 
@@ -599,9 +1072,16 @@ public class TeslaVehicle {
 	/////////////////////////////////////////////////////////////////////////
 
 	@Getter
-	public class VehicleData {
+	public static class VehicleData {
 
 		Vehicle response;
 
+		VehicleData() {
+		}
+
+		VehicleData(Vehicle response) {
+			this.response = response;
+		}
+
 	}
 }
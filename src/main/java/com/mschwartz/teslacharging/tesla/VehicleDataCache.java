@@ -0,0 +1,228 @@
+package com.mschwartz.teslacharging.tesla;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.Vehicle;
+import com.mschwartz.teslacharging.web.RestRequest;
+
+import lombok.Getter;
+
+/**
+ * Keeps the last vehicle data in a small memory-mapped file next to the
+ * property file so that it survives the process. Each invocation from the
+ * commandline (e.g. by cron) can use the data retrieved by the previous one.
+ *
+ * The file starts with a header followed by the snapshot as json:
+ *
+ * <pre>
+ * 0  magic    int
+ * 4  length   int, length of the json in bytes
+ * 8  sequence long, odd while a writer changes the file
+ * 16 json
+ * </pre>
+ *
+ * Readers never lock the file. They read the sequence before and after copying
+ * the json and try again if it has changed in the meantime (seqlock). Writers
+ * lock the file so that only one process changes it at a time.
+ *
+ * @author Mike
+ *
+ */
+public class VehicleDataCache {
+
+	static final Logger logger = LogManager.getLogger(VehicleDataCache.class);
+
+	private static final int MAGIC = 0x54435631;
+
+	private static final int SIZE = 64 * 1024;
+
+	private static final int MAGIC_OFFSET = 0, LENGTH_OFFSET = 4, SEQUENCE_OFFSET = 8, HEADER_SIZE = 16;
+
+	private static final int MAX_READ_ATTEMPTS = 100;
+
+	private static final VarHandle SEQUENCE = MethodHandles.byteBufferViewVarHandle(long[].class,
+			ByteOrder.BIG_ENDIAN);
+
+	private Gson gson = RestRequest.getGson();
+
+	private FileChannel channel;
+
+	private MappedByteBuffer buffer;
+
+	public VehicleDataCache(File file) throws IOException {
+		// contains the location of the car
+		TeslaConfiguration.createPrivateFile(file);
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		buffer = channel.map(MapMode.READ_WRITE, 0, SIZE);
+	}
+
+	/**
+	 *
+	 * @return the snapshot stored in the file or <code>null</code> if the file is
+	 *         empty or currently being written
+	 */
+	public Snapshot read() {
+		for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; ++attempt) {
+			long sequence = (long) SEQUENCE.getAcquire(buffer, SEQUENCE_OFFSET);
+			if ((sequence & 1) != 0) {
+				Thread.onSpinWait();
+				continue;
+			}
+			int magic = buffer.getInt(MAGIC_OFFSET);
+			int length = buffer.getInt(LENGTH_OFFSET);
+			byte[] data = null;
+			if (magic == MAGIC && length > 0 && length <= SIZE - HEADER_SIZE) {
+				data = new byte[length];
+				ByteBuffer copy = buffer.duplicate();
+				copy.position(HEADER_SIZE);
+				copy.get(data);
+			}
+			VarHandle.acquireFence();
+			if ((long) SEQUENCE.getVolatile(buffer, SEQUENCE_OFFSET) != sequence)
+				continue;
+			if (data == null)
+				return null;
+			try {
+				return gson.fromJson(new String(data, StandardCharsets.UTF_8), Snapshot.class);
+			} catch (JsonParseException e) {
+				logger.warn("Ignoring invalid vehicle data cache", e);
+				return null;
+			}
+		}
+		logger.debug("Vehicle data cache is busy");
+		return null;
+	}
+
+	/**
+	 * Merges the given snapshot with the one in the file and stores the result.
+	 * Sections retrieved by another process in the meantime are kept.
+	 *
+	 * @return the merged snapshot
+	 * @throws IOException
+	 */
+	public synchronized Snapshot merge(Snapshot snapshot) throws IOException {
+		FileLock lock = channel.lock();
+		try {
+			Snapshot merged = Snapshot.merge(read(), snapshot);
+			byte[] data = gson.toJson(merged).getBytes(StandardCharsets.UTF_8);
+			if (data.length > SIZE - HEADER_SIZE) {
+				logger.warn("Vehicle data too large for the cache: " + data.length + " bytes");
+				return merged;
+			}
+			// odd while writing, a writer which died while writing left it odd already
+			long sequence = (long) SEQUENCE.getVolatile(buffer, SEQUENCE_OFFSET) | 1;
+			SEQUENCE.setVolatile(buffer, SEQUENCE_OFFSET, sequence);
+			// the odd sequence must be visible before any of the data changes
+			VarHandle.storeStoreFence();
+			buffer.putInt(MAGIC_OFFSET, MAGIC);
+			buffer.putInt(LENGTH_OFFSET, data.length);
+			ByteBuffer copy = buffer.duplicate();
+			copy.position(HEADER_SIZE);
+			copy.put(data);
+			SEQUENCE.setRelease(buffer, SEQUENCE_OFFSET, sequence + 1);
+			return merged;
+		} finally {
+			lock.release();
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		channel.close();
+	}
+
+	/////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * The vehicle data together with the time each section has been retrieved
+	 */
+	@Getter
+	public static class Snapshot {
+
+		Vehicle vehicle;
+
+		// section -> time in millis
+		Map<String, Long> timestamps = new HashMap<String, Long>();
+
+		Snapshot() {
+		}
+
+		/**
+		 *
+		 * @param vehicle   the newly retrieved vehicle
+		 * @param timestamp the time the vehicle has been retrieved. All sections
+		 *                  contained in the vehicle get this timestamp.
+		 */
+		Snapshot(Vehicle vehicle, long timestamp) {
+			this.vehicle = vehicle;
+			for (String section : new String[] { VehicleDataDecoder.CHARGE_STATE, VehicleDataDecoder.DRIVE_STATE }) {
+				if (vehicle.hasSection(section))
+					timestamps.put(section, timestamp);
+			}
+		}
+
+		/**
+		 *
+		 * @return the time the section has been retrieved or 0 if the section is
+		 *         unknown
+		 */
+		public long getTimestamp(String section) {
+			Long timestamp = timestamps.get(section);
+			return timestamp == null ? 0 : timestamp;
+		}
+
+		private long getNewestTimestamp() {
+			long newest = 0;
+			for (Long timestamp : timestamps.values())
+				newest = Math.max(newest, timestamp);
+			return newest;
+		}
+
+		/**
+		 * Merges two snapshots. The basic attributes of the vehicle are taken from
+		 * the newer snapshot, each section from the snapshot where it is newer.
+		 *
+		 * @param a may be <code>null</code>
+		 * @param b may be <code>null</code>
+		 */
+		static Snapshot merge(Snapshot a, Snapshot b) {
+			if (a == null || a.vehicle == null)
+				return b;
+			if (b == null || b.vehicle == null)
+				return a;
+			Snapshot newer = a.getNewestTimestamp() > b.getNewestTimestamp() ? a : b;
+			Snapshot result = new Snapshot();
+			result.vehicle = newer.vehicle.copy();
+			Snapshot charge = a.getTimestamp(VehicleDataDecoder.CHARGE_STATE) > b
+					.getTimestamp(VehicleDataDecoder.CHARGE_STATE) ? a : b;
+			result.vehicle.charge_state = charge.vehicle.charge_state;
+			if (charge.timestamps.containsKey(VehicleDataDecoder.CHARGE_STATE))
+				result.timestamps.put(VehicleDataDecoder.CHARGE_STATE, charge.getTimestamp(VehicleDataDecoder.CHARGE_STATE));
+			Snapshot drive = a.getTimestamp(VehicleDataDecoder.DRIVE_STATE) > b
+					.getTimestamp(VehicleDataDecoder.DRIVE_STATE) ? a : b;
+			result.vehicle.drive_state = drive.vehicle.drive_state;
+			if (drive.timestamps.containsKey(VehicleDataDecoder.DRIVE_STATE))
+				result.timestamps.put(VehicleDataDecoder.DRIVE_STATE, drive.getTimestamp(VehicleDataDecoder.DRIVE_STATE));
+			return result;
+		}
+
+	}
+
+}
@@ -0,0 +1,134 @@
+package com.mschwartz.teslacharging.tesla;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.ChargeState;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.DriveState;
+import com.mschwartz.teslacharging.tesla.TeslaVehicle.Vehicle;
+import com.mschwartz.teslacharging.web.JsonDecoder;
+import com.mschwartz.teslacharging.web.RestRequest;
+
+/**
+ * Decodes the response of the vehicle_data endpoint while it is read from the
+ * connection. Only the basic attributes of the vehicle and the requested
+ * sections are converted, all other sections (climate_state, gui_settings,
+ * vehicle_config, ...) are skipped without creating any objects.
+ * 
+ * @author Mike
+ *
+ */
+public class VehicleDataDecoder implements JsonDecoder<Vehicle> {
+
+	public static final String CHARGE_STATE = "charge_state", DRIVE_STATE = "drive_state";
+
+	private static final TypeAdapter<ChargeState> chargeStateAdapter = RestRequest.getGson()
+			.getAdapter(ChargeState.class);
+
+	private static final TypeAdapter<DriveState> driveStateAdapter = RestRequest.getGson()
+			.getAdapter(DriveState.class);
+
+	private Set<String> sections;
+
+	/**
+	 * 
+	 * @param sections the sections to decode, e.g. {@link #CHARGE_STATE}
+	 */
+	public VehicleDataDecoder(String... sections) {
+		this.sections = new HashSet<String>(Arrays.asList(sections));
+	}
+
+	/**
+	 * @return the vehicle or <code>null</code> if the response does not contain a
+	 *         vehicle
+	 */
+	@Override
+	public Vehicle decode(JsonReader reader) throws IOException {
+		Vehicle vehicle = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (reader.nextName().equals("response") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+				vehicle = decodeVehicle(reader);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return vehicle;
+	}
+
+	private Vehicle decodeVehicle(JsonReader reader) throws IOException {
+		Vehicle vehicle = new Vehicle();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (reader.peek() == JsonToken.NULL) {
+				reader.nextNull();
+				continue;
+			}
+			switch (name) {
+			case "id":
+				vehicle.id = TeslaTypeAdapterFactory.readString(reader);
+				break;
+			case "user_id":
+				vehicle.user_id = TeslaTypeAdapterFactory.readString(reader);
+				break;
+			case "vehicle_id":
+				vehicle.vehicle_id = TeslaTypeAdapterFactory.readString(reader);
+				break;
+			case "vin":
+				vehicle.vin = TeslaTypeAdapterFactory.readString(reader);
+				break;
+			case "display_name":
+				vehicle.display_name = TeslaTypeAdapterFactory.readString(reader);
+				break;
+			case "color":
+				vehicle.color = TeslaTypeAdapterFactory.readString(reader);
+				break;
+			case "access_type":
+				vehicle.access_type = TeslaTypeAdapterFactory.readString(reader);
+				break;
+			case "state":
+				vehicle.state = TeslaTypeAdapterFactory.readString(reader);
+				break;
+			case "in_service":
+				vehicle.in_service = reader.nextBoolean();
+				break;
+			case "id_s":
+				vehicle.id_s = TeslaTypeAdapterFactory.readString(reader);
+				break;
+			case "calendar_enabled":
+				vehicle.calendar_enabled = reader.nextBoolean();
+				break;
+			case "api_version":
+				vehicle.api_version = reader.nextInt();
+				break;
+			case "option_codes":
+				vehicle.option_codes = TeslaTypeAdapterFactory.readString(reader);
+				break;
+			case CHARGE_STATE:
+				if (sections.contains(CHARGE_STATE))
+					vehicle.charge_state = chargeStateAdapter.read(reader);
+				else
+					reader.skipValue();
+				break;
+			case DRIVE_STATE:
+				if (sections.contains(DRIVE_STATE))
+					vehicle.drive_state = driveStateAdapter.read(reader);
+				else
+					reader.skipValue();
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return vehicle;
+	}
+
+}
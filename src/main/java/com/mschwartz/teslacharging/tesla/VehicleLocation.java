@@ -18,7 +18,7 @@ public class VehicleLocation {
 		goingAwayFromHome = false
 	;
 	
-	VehicleLocation(double lat, double lon) {
+	public VehicleLocation(double lat, double lon) {
 		latitude = lat;
 		longitude = lon;
 		timestamp = (int) Math.floor(Instant.now().toEpochMilli() / 1000);
@@ -0,0 +1,78 @@
+package com.mschwartz.teslacharging.tesla;
+
+/**
+ * Counts the wake-ups caused by this program and the time the car stayed awake
+ * afterwards. The car is considered awake from the wake-up until it is seen
+ * sleeping (or offline) again. Since the state is only observed from time to
+ * time the awake time is an upper bound.
+ *
+ * @author Mike
+ *
+ */
+public class WakeStatistics {
+
+	private long startTime = System.currentTimeMillis();
+
+	private int wakeUps;
+
+	private long awakeMillis;
+
+	// time of the last wake-up if the car has not been seen sleeping since then
+	private long awakeSince;
+
+	/**
+	 * Called whenever this program woke up the car
+	 */
+	public synchronized void wokeUp() {
+		long now = System.currentTimeMillis();
+		if (awakeSince != 0) {
+			// the car fell asleep again without us noticing
+			awakeMillis += now - awakeSince;
+		}
+		++wakeUps;
+		awakeSince = now;
+	}
+
+	/**
+	 * Called whenever the state of the car has been retrieved
+	 *
+	 * @param state online, asleep, offline, ...
+	 */
+	public synchronized void observedState(String state) {
+		if (awakeSince != 0 && (state.equals("asleep") || state.equals("offline"))) {
+			awakeMillis += System.currentTimeMillis() - awakeSince;
+			awakeSince = 0;
+		}
+	}
+
+	public synchronized int getWakeUps() {
+		return wakeUps;
+	}
+
+	/**
+	 *
+	 * @return the minutes the car stayed awake after being woken up by this
+	 *         program, including the current wake-up
+	 */
+	public synchronized long getAwakeMinutes() {
+		long millis = awakeMillis;
+		if (awakeSince != 0)
+			millis += System.currentTimeMillis() - awakeSince;
+		return millis / 60000;
+	}
+
+	/**
+	 *
+	 * @return the minutes since the statistics have been started
+	 */
+	public synchronized long getObservedMinutes() {
+		return (System.currentTimeMillis() - startTime) / 60000;
+	}
+
+	@Override
+	public String toString() {
+		return "WakeStatistics [wakeUps=" + getWakeUps() + ", awakeMinutes=" + getAwakeMinutes()
+				+ ", observedMinutes=" + getObservedMinutes() + "]";
+	}
+
+}
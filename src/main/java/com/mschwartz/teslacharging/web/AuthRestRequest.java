@@ -1,31 +1,121 @@
 package com.mschwartz.teslacharging.web;
 
+import java.time.Duration;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.mschwartz.teslacharging.tesla.TeslaAuth;
+import com.mschwartz.teslacharging.web.RateLimiter.Priority;
+
+import lombok.Getter;
+import lombok.Setter;
 
 public class AuthRestRequest {
 
 	static final Logger logger = LogManager.getLogger(AuthRestRequest.class);
 
+	// requests sent to the tesla servers per minute unless configured otherwise
+	public static final int DEFAULT_ACCOUNT_REQUESTS_PER_MINUTE = 30, DEFAULT_VEHICLE_REQUESTS_PER_MINUTE = 15;
+
+	private static final Pattern VEHICLE_URL = Pattern.compile("/api/1/vehicles/([^/?]+)");
+
 	private RestRequest restRequest;
 
 	private TeslaAuth teslaAuth;
 
+	/**
+	 * Executes the blocking parts (e.g. refreshing the tokens) and the follow-up
+	 * steps of the asynchronous api
+	 */
+	@Getter
+	@Setter
+	private Executor asyncExecutor = ForkJoinPool.commonPool();
+
+	/**
+	 * Maximum duration of an asynchronous operation including all retries and
+	 * wake-ups
+	 */
+	@Getter
+	@Setter
+	private Duration asyncTimeout = Duration.ofSeconds(60);
+
+	/**
+	 * Limits all requests of the account
+	 */
+	private volatile RateLimiter accountLimiter = new RateLimiter("account", DEFAULT_ACCOUNT_REQUESTS_PER_MINUTE);
+
+	/**
+	 * Limits the requests for each vehicle, the key is the id of the vehicle
+	 */
+	private Map<String, RateLimiter> vehicleLimiters = new ConcurrentHashMap<String, RateLimiter>();
+
+	private int vehicleRequestsPerMinute = DEFAULT_VEHICLE_REQUESTS_PER_MINUTE;
+
+	/**
+	 * Repeats failed GET requests, they can be repeated without side effects
+	 */
+	@Setter
+	private RetryPolicy readRetryPolicy = new RetryPolicy(5, 500, 15000, true);
+
+	/**
+	 * Repeats failed commands if they did not reach the car
+	 */
+	@Setter
+	private RetryPolicy commandRetryPolicy = new RetryPolicy(2, 500, 15000, false);
+
+	/**
+	 * Fails fast while the tesla servers are not available
+	 */
+	@Getter
+	@Setter
+	private CircuitBreaker circuitBreaker = new CircuitBreaker("owner-api", 5, 60000);
+
 	public AuthRestRequest(RestRequest restRequest, TeslaAuth teslaAuth) {
 		this.restRequest = restRequest;
 		this.teslaAuth = teslaAuth;
 	}
 
+	/**
+	 * Sets the number of requests allowed per minute
+	 * 
+	 * @param accountRequestsPerMinute for all requests of the account
+	 * @param vehicleRequestsPerMinute for the requests of each vehicle
+	 */
+	public void setRateLimits(int accountRequestsPerMinute, int vehicleRequestsPerMinute) {
+		accountLimiter = new RateLimiter("account", accountRequestsPerMinute);
+		this.vehicleRequestsPerMinute = vehicleRequestsPerMinute;
+		vehicleLimiters.clear();
+	}
+
+	/**
+	 * 
+	 * @param vehicleId the id of the vehicle
+	 * @return the number of requests for the vehicle which can be sent
+	 *         immediately
+	 */
+	public int getRemainingBudget(String vehicleId) {
+		return Math.min(accountLimiter.getAvailableTokens(), vehicleLimiter(vehicleId).getAvailableTokens());
+	}
+
 	public String get(String getURL, Map<String, String> headers) throws Exception {
-		return restRequest.get(getURL, headers);
+		return limited(getURL, Priority.LOW, () -> restRequest.get(getURL, headers));
 	}
 
 	public String post(String postURL, String body, Map<String, String> headers) throws Exception {
-		return restRequest.post(postURL, body, headers);
+		return limited(postURL, Priority.HIGH, () -> restRequest.post(postURL, body, headers));
 	}
 
 	public void setBearer(String b) {
@@ -33,21 +123,193 @@ public class AuthRestRequest {
 	}
 
 	public <T extends Object> T getJSON(String getURL, Class<T> clazz) throws Exception {
+		return withTokenRefresh(getURL, Priority.LOW, () -> restRequest.getJSON(getURL, clazz));
+	}
+
+	public <T extends Object> T getJSONStream(String getURL, JsonDecoder<T> decoder) throws Exception {
+		return withTokenRefresh(getURL, Priority.LOW, () -> restRequest.getJSONStream(getURL, decoder));
+	}
+
+	public <T extends Object> T postJson(String postURL, Object body, Class<T> clazz) throws Exception {
+		return withTokenRefresh(postURL, Priority.HIGH, () -> restRequest.postJson(postURL, body, clazz));
+	}
+
+	public <T extends Object> CompletableFuture<T> getJSONAsync(String getURL, Class<T> clazz) {
+		return withTokenRefreshAsync(getURL, Priority.LOW, () -> restRequest.getJSONAsync(getURL, clazz));
+	}
+
+	public <T extends Object> CompletableFuture<T> postJsonAsync(String postURL, Object body, Class<T> clazz) {
+		return withTokenRefreshAsync(postURL, Priority.HIGH, () -> restRequest.postJsonAsync(postURL, body, clazz));
+	}
+
+	/**
+	 * Refreshes the tokens first if the access token is known to be expired.
+	 * Repeats the request once with new tokens if the request failed because of
+	 * an expired access token. Concurrent failures share one refresh.
+	 */
+	private <T extends Object> T withTokenRefresh(String url, Priority priority, Callable<T> request)
+			throws Exception {
+		teslaAuth.refreshIfExpired();
+		String bearer = restRequest.getBearer();
 		try {
-			return restRequest.getJSON(getURL, clazz);
+			return retried(url, priority, request);
 		} catch (AuthenticationException e) {
-			teslaAuth.refreshTokens();
-			return restRequest.getJSON(getURL, clazz);
+			teslaAuth.refreshTokens(bearer);
+			return retried(url, priority, request);
 		}
 	}
 
-	public <T extends Object> T postJson(String postURL, Object body, Class<T> clazz) throws Exception {
+	/**
+	 * @see #withTokenRefresh(String, Priority, Callable)
+	 */
+	private <T extends Object> CompletableFuture<T> withTokenRefreshAsync(String url, Priority priority,
+			Supplier<CompletableFuture<T>> request) {
+		if (teslaAuth.isExpired()) {
+			return CompletableFuture.runAsync(() -> {
+				try {
+					teslaAuth.refreshIfExpired();
+				} catch (Exception ex) {
+					throw new CompletionException(ex);
+				}
+			}, asyncExecutor).thenCompose(v -> sendWithTokenRefreshAsync(url, priority, request));
+		}
+		return sendWithTokenRefreshAsync(url, priority, request);
+	}
+
+	private <T extends Object> CompletableFuture<T> sendWithTokenRefreshAsync(String url, Priority priority,
+			Supplier<CompletableFuture<T>> request) {
+		String bearer = restRequest.getBearer();
+		return retriedAsync(url, priority, request, 0).handle((result, e) -> {
+			if (e == null)
+				return CompletableFuture.completedFuture(result);
+			if (Futures.unwrap(e) instanceof AuthenticationException) {
+				return CompletableFuture.runAsync(() -> {
+					try {
+						teslaAuth.refreshTokens(bearer);
+					} catch (Exception ex) {
+						throw new CompletionException(ex);
+					}
+				}, asyncExecutor).thenCompose(v -> retriedAsync(url, priority, request, 0));
+			}
+			return CompletableFuture.<T>failedFuture(e);
+		}).thenCompose(future -> future);
+	}
+
+	/**
+	 * Sends the request and repeats it according to the retry policy of the
+	 * priority (reads or commands). Fails immediately while the circuit breaker
+	 * is open.
+	 */
+	private <T extends Object> T retried(String url, Priority priority, Callable<T> request) throws Exception {
+		RetryPolicy retryPolicy = priority == Priority.HIGH ? commandRetryPolicy : readRetryPolicy;
+		for (int retry = 0;; ++retry) {
+			circuitBreaker.allow();
+			try {
+				T result = limited(url, priority, request);
+				circuitBreaker.success();
+				return result;
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Exception e) {
+				if (RetryPolicy.isServerFailure(e))
+					circuitBreaker.failure();
+				else
+					// the server answered
+					circuitBreaker.success();
+				if (retry >= retryPolicy.getMaxRetries() || !retryPolicy.isRetryable(e))
+					throw e;
+				long delay = retryPolicy.delayMillis(retry);
+				logger.info("Request to " + url + " failed (" + e + "), retrying in " + delay + " ms");
+				Thread.sleep(delay);
+			}
+		}
+	}
+
+	/**
+	 * @see #retried(String, Priority, Callable)
+	 */
+	private <T extends Object> CompletableFuture<T> retriedAsync(String url, Priority priority,
+			Supplier<CompletableFuture<T>> request, int retry) {
+		RetryPolicy retryPolicy = priority == Priority.HIGH ? commandRetryPolicy : readRetryPolicy;
 		try {
-			return restRequest.postJson(postURL, body, clazz);
-		} catch (AuthenticationException e) {
-			teslaAuth.refreshTokens();
-			return restRequest.postJson(postURL, body, clazz);
+			circuitBreaker.allow();
+		} catch (CircuitOpenException e) {
+			return CompletableFuture.failedFuture(e);
 		}
+		return limitedAsync(url, priority, request).handle((result, e) -> {
+			if (e == null) {
+				circuitBreaker.success();
+				return CompletableFuture.completedFuture(result);
+			}
+			Throwable cause = Futures.unwrap(e);
+			if (RetryPolicy.isServerFailure(cause))
+				circuitBreaker.failure();
+			else
+				// the server answered
+				circuitBreaker.success();
+			if (retry >= retryPolicy.getMaxRetries() || !retryPolicy.isRetryable(cause))
+				return CompletableFuture.<T>failedFuture(e);
+			long delay = retryPolicy.delayMillis(retry);
+			logger.info("Request to " + url + " failed (" + cause + "), retrying in " + delay + " ms");
+			Executor delayed = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, asyncExecutor);
+			return CompletableFuture.runAsync(() -> {
+			}, delayed).thenCompose(v -> retriedAsync(url, priority, request, retry + 1));
+		}).thenCompose(future -> future);
+	}
+
+	/**
+	 * Waits until the rate limiters allow the request and sends it
+	 */
+	private <T extends Object> T limited(String url, Priority priority, Callable<T> request) throws Exception {
+		List<RateLimiter> limiters = limiters(url);
+		for (RateLimiter limiter : limiters) {
+			limiter.acquire(priority);
+		}
+		try {
+			T result = request.call();
+			limiters.forEach(RateLimiter::succeeded);
+			return result;
+		} catch (TooManyRequestsException e) {
+			limiters.forEach(limiter -> limiter.throttled(e.getRetryAfter()));
+			throw e;
+		}
+	}
+
+	/**
+	 * @see #limited(String, Priority, Callable)
+	 */
+	private <T extends Object> CompletableFuture<T> limitedAsync(String url, Priority priority,
+			Supplier<CompletableFuture<T>> request) {
+		List<RateLimiter> limiters = limiters(url);
+		CompletableFuture<Void> acquired = CompletableFuture.completedFuture(null);
+		for (RateLimiter limiter : limiters) {
+			acquired = acquired.thenCompose(v -> limiter.acquireAsync(priority, asyncExecutor));
+		}
+		return acquired.thenCompose(v -> request.get()).whenComplete((result, e) -> {
+			if (e == null) {
+				limiters.forEach(RateLimiter::succeeded);
+			} else if (Futures.unwrap(e) instanceof TooManyRequestsException) {
+				Duration retryAfter = ((TooManyRequestsException) Futures.unwrap(e)).getRetryAfter();
+				limiters.forEach(limiter -> limiter.throttled(retryAfter));
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * @return the account limiter and the limiter of the vehicle addressed by the
+	 *         url
+	 */
+	private List<RateLimiter> limiters(String url) {
+		Matcher matcher = VEHICLE_URL.matcher(url);
+		if (matcher.find())
+			return List.of(accountLimiter, vehicleLimiter(matcher.group(1)));
+		return List.of(accountLimiter);
+	}
+
+	private RateLimiter vehicleLimiter(String vehicleId) {
+		return vehicleLimiters.computeIfAbsent(vehicleId,
+				id -> new RateLimiter("vehicle " + id, vehicleRequestsPerMinute));
 	}
 
 }
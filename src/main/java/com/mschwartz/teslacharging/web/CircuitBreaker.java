@@ -0,0 +1,88 @@
+package com.mschwartz.teslacharging.web;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Stops sending requests if the server seems to be down. After a number of
+ * consecutive failures the circuit opens and all requests fail immediately. After
+ * a while one request is let through to test the server (half open). If it
+ * succeeds the circuit closes again, otherwise it stays open.
+ * 
+ * @author Mike
+ *
+ */
+public class CircuitBreaker {
+
+	static final Logger logger = LogManager.getLogger(CircuitBreaker.class);
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private String name;
+
+	private int failureThreshold;
+
+	private long openMillis;
+
+	private State state = State.CLOSED;
+
+	private int failures;
+
+	private long openedAt;
+
+	/**
+	 * 
+	 * @param name             used for logging
+	 * @param failureThreshold the number of consecutive failures which open the
+	 *                         circuit
+	 * @param openMillis       the time the circuit stays open before a request is
+	 *                         let through again
+	 */
+	public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+		this.name = name;
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * Called before a request is sent
+	 * 
+	 * @throws CircuitOpenException if the request must not be sent
+	 */
+	public synchronized void allow() throws CircuitOpenException {
+		if (state == State.CLOSED)
+			return;
+		long now = System.currentTimeMillis();
+		if (state == State.OPEN && now - openedAt >= openMillis) {
+			logger.info("Testing if the " + name + " is available again");
+			state = State.HALF_OPEN;
+			return;
+		}
+		throw new CircuitOpenException(name + " is not available, retrying in "
+				+ Math.max(0, (openedAt + openMillis - now) / 1000) + " seconds");
+	}
+
+	public synchronized void success() {
+		if (state != State.CLOSED)
+			logger.info(name + " is available again");
+		state = State.CLOSED;
+		failures = 0;
+	}
+
+	public synchronized void failure() {
+		++failures;
+		if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+			logger.warn(name + " is not available after " + failures + " failures, failing fast for "
+					+ openMillis / 1000 + " seconds");
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+}
@@ -0,0 +1,16 @@
+package com.mschwartz.teslacharging.web;
+
+import java.io.IOException;
+
+public class CircuitOpenException extends IOException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 8719436120652466983L;
+
+	CircuitOpenException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,32 @@
+package com.mschwartz.teslacharging.web;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Helper methods for the asynchronous api.
+ * 
+ * @author Mike
+ *
+ */
+public class Futures {
+
+	private Futures() {
+	}
+
+	/**
+	 * Returns the exception which caused a future to fail. Futures wrap the
+	 * original exception in {@link CompletionException} or
+	 * {@link ExecutionException} depending on how the result was retrieved.
+	 * 
+	 * @param e the exception thrown by the future
+	 * @return the original exception
+	 */
+	public static Throwable unwrap(Throwable e) {
+		while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+			e = e.getCause();
+		}
+		return e;
+	}
+
+}
@@ -0,0 +1,22 @@
+package com.mschwartz.teslacharging.web;
+
+import java.io.IOException;
+
+import lombok.Getter;
+
+public class HttpStatusException extends IOException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -2618730495143290466L;
+
+	@Getter
+	private int status;
+
+	HttpStatusException(String message, int status) {
+		super(message);
+		this.status = status;
+	}
+
+}
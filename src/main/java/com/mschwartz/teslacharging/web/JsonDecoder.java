@@ -0,0 +1,19 @@
+package com.mschwartz.teslacharging.web;
+
+import java.io.IOException;
+
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Decodes a json response while it is read from the connection. Only the parts
+ * needed are converted to objects, everything else can be skipped.
+ * 
+ * @author Mike
+ *
+ * @param <T> the type of the decoded response
+ */
+public interface JsonDecoder<T> {
+
+	T decode(JsonReader reader) throws IOException;
+
+}
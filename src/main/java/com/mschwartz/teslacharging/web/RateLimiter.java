@@ -0,0 +1,160 @@
+package com.mschwartz.teslacharging.web;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Token bucket limiting the requests sent to the tesla servers. The bucket
+ * holds the requests allowed per minute and is refilled continuously.
+ * 
+ * Requests with a low priority (reading data) leave a quarter of the bucket for
+ * requests with a high priority (commands) so that e.g. stopping the charging
+ * is still possible when the reads used up most of the budget.
+ * 
+ * If the server responds with 429 (too many requests) all requests are paused
+ * for the time given in the Retry-After header. Without this header the pause
+ * doubles with each 429 until a request succeeds again.
+ * 
+ * @author Mike
+ *
+ */
+public class RateLimiter {
+
+	static final Logger logger = LogManager.getLogger(RateLimiter.class);
+
+	static final long INITIAL_BACKOFF_MILLIS = 15000, MAX_BACKOFF_MILLIS = 600000;
+
+	public enum Priority {
+		HIGH, LOW
+	}
+
+	private String name;
+
+	private int capacity;
+
+	private double tokensPerMilli;
+
+	// tokens which can only be used by high priority requests
+	private double reserve;
+
+	private double tokens;
+
+	private long lastRefill;
+
+	private long pausedUntil;
+
+	private long backoffMillis;
+
+	/**
+	 * 
+	 * @param name              used for logging
+	 * @param requestsPerMinute the requests allowed per minute, also the number of
+	 *                          requests allowed in a burst
+	 */
+	public RateLimiter(String name, int requestsPerMinute) {
+		this.name = name;
+		capacity = Math.max(1, requestsPerMinute);
+		tokensPerMilli = capacity / 60000.0;
+		reserve = Math.min(capacity / 4.0, capacity - 1);
+		tokens = capacity;
+		lastRefill = System.currentTimeMillis();
+	}
+
+	/**
+	 * Takes a token from the bucket if possible
+	 * 
+	 * @return 0 if the request may be sent or the milliseconds to wait before
+	 *         trying again
+	 */
+	public synchronized long tryAcquire(Priority priority) {
+		long now = System.currentTimeMillis();
+		refill(now);
+		if (now < pausedUntil)
+			return pausedUntil - now;
+		double needed = priority == Priority.HIGH ? 1 : 1 + reserve;
+		if (tokens >= needed) {
+			tokens -= 1;
+			return 0;
+		}
+		return Math.max(1, (long) Math.ceil((needed - tokens) / tokensPerMilli));
+	}
+
+	/**
+	 * Blocks until the request may be sent
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void acquire(Priority priority) throws InterruptedException {
+		long wait;
+		while ((wait = tryAcquire(priority)) > 0) {
+			logger.debug("{} request limit reached, waiting {} ms", name, wait);
+			Thread.sleep(wait);
+		}
+	}
+
+	/**
+	 * 
+	 * @return Future which completes as soon as the request may be sent
+	 */
+	public CompletableFuture<Void> acquireAsync(Priority priority, Executor executor) {
+		long wait = tryAcquire(priority);
+		if (wait == 0)
+			return CompletableFuture.completedFuture(null);
+		logger.debug("{} request limit reached, waiting {} ms", name, wait);
+		Executor delayed = CompletableFuture.delayedExecutor(wait, TimeUnit.MILLISECONDS, executor);
+		return CompletableFuture.runAsync(() -> {
+		}, delayed).thenCompose(v -> acquireAsync(priority, executor));
+	}
+
+	/**
+	 * Called if the server responded with 429 (too many requests)
+	 * 
+	 * @param retryAfter the time requested by the server, may be <code>null</code>
+	 */
+	public synchronized void throttled(Duration retryAfter) {
+		long now = System.currentTimeMillis();
+		long pause;
+		if (retryAfter != null) {
+			pause = retryAfter.toMillis();
+		} else {
+			backoffMillis = backoffMillis == 0 ? INITIAL_BACKOFF_MILLIS
+					: Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+			pause = backoffMillis;
+		}
+		pausedUntil = Math.max(pausedUntil, now + pause);
+		// the server does not agree with our budget, start with an empty bucket
+		refill(now);
+		tokens = 0;
+		logger.warn(name + " requests throttled by the tesla servers, pausing for " + pause / 1000 + " seconds");
+	}
+
+	/**
+	 * Called if a request has been answered without throttling
+	 */
+	public synchronized void succeeded() {
+		backoffMillis = 0;
+	}
+
+	/**
+	 * 
+	 * @return the number of requests which can be sent immediately
+	 */
+	public synchronized int getAvailableTokens() {
+		long now = System.currentTimeMillis();
+		refill(now);
+		if (now < pausedUntil)
+			return 0;
+		return (int) tokens;
+	}
+
+	private void refill(long now) {
+		tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerMilli);
+		lastRefill = now;
+	}
+
+}
@@ -1,7 +1,9 @@
 package com.mschwartz.teslacharging.web;
 
-import java.util.HashMap;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -9,11 +11,27 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.mschwartz.teslacharging.tesla.TeslaTypeAdapterFactory;
+
+import lombok.Getter;
 
 public class RestRequest {
 
 	private static final Logger logger = LogManager.getLogger(RestRequest.class);
 
+	/**
+	 * Shared by all requests. The responses of the tesla api are converted by
+	 * hand-written adapters instead of reflection.
+	 */
+	@Getter
+	private static final Gson gson = new GsonBuilder().registerTypeAdapterFactory(new TeslaTypeAdapterFactory())
+			.create();
+
+	private static final Map<String, String> jsonHeaders = Map.of("Accept", "application/json, text/plain, */*",
+			"Content-Type", "application/json");
+
 	private WebRequest webRequest = new WebRequest();
 
 	public String get(String getURL, Map<String, String> headers) throws Exception {
@@ -28,6 +46,10 @@ public class RestRequest {
 		webRequest.setBearer(b);
 	}
 
+	public String getBearer() {
+		return webRequest.getBearer();
+	}
+
 	/**
 	 * Get a JSONObject representing the content retrieved from the REST endpoint
 	 * 
@@ -37,14 +59,34 @@ public class RestRequest {
 	 *         retrieved, a JSONObject of the format {d: content} will be returned.
 	 */
 	public <T extends Object> T getJSON(String getURL, Class<T> clazz) throws Exception {
-		Map<String, String> headers = new HashMap<String, String>();
-		headers.put("Accept", "application/json, text/plain, */*");
-		headers.put("Content-Type", "application/json");
-		Gson gson = new Gson();
 		String jsonString = webRequest.get(getURL, null);
 		return gson.fromJson(jsonString, clazz);
 	}
 
+	/**
+	 * Decode the content retrieved from the REST endpoint while it is read
+	 * 
+	 * @param decoder picks the needed parts of the content
+	 * @return the decoded content
+	 */
+	public <T extends Object> T getJSONStream(String getURL, JsonDecoder<T> decoder) throws Exception {
+		return webRequest.get(getURL, null, is -> {
+			try (JsonReader reader = new JsonReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+				return decoder.decode(reader);
+			}
+		});
+	}
+
+	/**
+	 * Get the object representing the content retrieved from the REST endpoint
+	 * without blocking the caller
+	 * 
+	 * @see #getJSON(String, Class)
+	 */
+	public <T extends Object> CompletableFuture<T> getJSONAsync(String getURL, Class<T> clazz) {
+		return webRequest.getAsync(getURL, null).thenApply(jsonString -> gson.fromJson(jsonString, clazz));
+	}
+
 	/**
 	 * Convenience method to return JSONObject from GET request.
 	 * 
@@ -83,11 +125,12 @@ public class RestRequest {
 	}
 
 	public <T extends Object> T postJson(String postURL, Object body, Class<T> clazz) throws Exception {
-		Map<String, String> headers = new HashMap<String, String>();
-		headers.put("Accept", "application/json, text/plain, */*");
-		headers.put("Content-Type", "application/json");
-		Gson gson = new Gson();
-		String jsonString = webRequest.post(postURL, gson.toJson(body), headers);
+		String jsonString = webRequest.post(postURL, gson.toJson(body), jsonHeaders);
 		return gson.fromJson(jsonString, clazz);
 	}
+
+	public <T extends Object> CompletableFuture<T> postJsonAsync(String postURL, Object body, Class<T> clazz) {
+		return webRequest.postAsync(postURL, gson.toJson(body), jsonHeaders)
+				.thenApply(jsonString -> gson.fromJson(jsonString, clazz));
+	}
 }
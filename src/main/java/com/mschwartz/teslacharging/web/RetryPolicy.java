@@ -0,0 +1,90 @@
+package com.mschwartz.teslacharging.web;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpConnectTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import lombok.Getter;
+
+/**
+ * Decides if and when a failed request is repeated. The delay grows
+ * exponentially with each attempt up to a maximum. A random part of the delay
+ * (full jitter) avoids that several clients repeat their requests at the same
+ * time.
+ * 
+ * @author Mike
+ *
+ */
+public class RetryPolicy {
+
+	@Getter
+	private int maxRetries;
+
+	private long initialDelayMillis;
+
+	private long maxDelayMillis;
+
+	// if false only requests which certainly did not reach the server are repeated
+	private boolean idempotent;
+
+	/**
+	 * 
+	 * @param maxRetries         the number of times a request is repeated
+	 * @param initialDelayMillis the maximum delay before the first repetition
+	 * @param maxDelayMillis     the maximum delay before any repetition
+	 * @param idempotent         <code>true</code> if the request can be repeated
+	 *                           without side effects (e.g. reading data)
+	 */
+	public RetryPolicy(int maxRetries, long initialDelayMillis, long maxDelayMillis, boolean idempotent) {
+		this.maxRetries = maxRetries;
+		this.initialDelayMillis = initialDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.idempotent = idempotent;
+	}
+
+	/**
+	 * 
+	 * @param retry the number of the repetition starting with 0
+	 * @return the delay in milliseconds before repeating the request
+	 */
+	public long delayMillis(int retry) {
+		long delay = initialDelayMillis << Math.min(retry, 20);
+		delay = Math.min(delay, maxDelayMillis);
+		return ThreadLocalRandom.current().nextLong(delay + 1);
+	}
+
+	/**
+	 * 
+	 * @return true if the request failed because of a problem of the connection or
+	 *         of the server and may therefore succeed if repeated
+	 */
+	public boolean isRetryable(Throwable e) {
+		if (e instanceof CircuitOpenException)
+			return false;
+		if (e instanceof ConnectException || e instanceof HttpConnectTimeoutException)
+			// the request did not reach the server
+			return true;
+		if (e instanceof HttpStatusException) {
+			int status = ((HttpStatusException) e).getStatus();
+			if (status == 502 || status == 503 || status == 504)
+				// the gateway did not pass the request to the server
+				return true;
+			return idempotent && status >= 500;
+		}
+		return idempotent && e instanceof IOException;
+	}
+
+	/**
+	 * 
+	 * @return true if the failure indicates that the server is not available
+	 */
+	public static boolean isServerFailure(Throwable e) {
+		if (e instanceof CircuitOpenException)
+			return false;
+		if (e instanceof HttpStatusException)
+			return ((HttpStatusException) e).getStatus() >= 500;
+		return e instanceof IOException;
+	}
+
+}
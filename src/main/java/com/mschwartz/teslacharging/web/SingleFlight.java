@@ -0,0 +1,102 @@
+package com.mschwartz.teslacharging.web;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Coalesces concurrent calls for the same key. The first caller executes the
+ * call, all callers arriving while the call is in flight wait for it and
+ * receive the same result (or the same exception). As soon as the call is
+ * finished the next caller starts a new one, nothing is cached here.
+ * 
+ * Blocking and asynchronous callers may share the same key.
+ * 
+ * @author Mike
+ *
+ * @param <K> the type of the key
+ * @param <V> the type of the result
+ */
+public class SingleFlight<K, V> {
+
+	private static final Logger logger = LogManager.getLogger(SingleFlight.class);
+
+	private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<K, CompletableFuture<V>>();
+
+	/**
+	 * Executes the call or waits for the call already in flight for the same key
+	 * 
+	 * @param key  identifies the call
+	 * @param call executed if no call is in flight for the key
+	 * @return the result of the call
+	 * @throws Exception the exception thrown by the call
+	 */
+	public V execute(K key, Callable<V> call) throws Exception {
+		CompletableFuture<V> future = new CompletableFuture<V>();
+		CompletableFuture<V> running = inFlight.putIfAbsent(key, future);
+		if (running != null) {
+			logger.debug("Waiting for call in flight for {}", key);
+			return await(running);
+		}
+		try {
+			V result = call.call();
+			future.complete(result);
+			return result;
+		} catch (Exception | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, future);
+		}
+	}
+
+	/**
+	 * Starts the call or joins the call already in flight for the same key without
+	 * blocking the caller
+	 * 
+	 * @param key  identifies the call
+	 * @param call started if no call is in flight for the key
+	 * @return Future with the result of the call. Cancelling or completing it does
+	 *         not affect the other callers.
+	 */
+	public CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> call) {
+		CompletableFuture<V> future = new CompletableFuture<V>();
+		CompletableFuture<V> running = inFlight.putIfAbsent(key, future);
+		if (running != null) {
+			logger.debug("Joining call in flight for {}", key);
+			return running.copy();
+		}
+		try {
+			call.get().whenComplete((result, e) -> {
+				if (e != null)
+					future.completeExceptionally(e);
+				else
+					future.complete(result);
+				inFlight.remove(key, future);
+			});
+		} catch (RuntimeException e) {
+			future.completeExceptionally(e);
+			inFlight.remove(key, future);
+		}
+		return future.copy();
+	}
+
+	private V await(CompletableFuture<V> running) throws Exception {
+		try {
+			return running.get();
+		} catch (ExecutionException e) {
+			Throwable cause = Futures.unwrap(e);
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw e;
+		}
+	}
+
+}
@@ -0,0 +1,26 @@
+package com.mschwartz.teslacharging.web;
+
+import java.time.Duration;
+
+import lombok.Getter;
+
+public class TooManyRequestsException extends RuntimeException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 5307128937436526146L;
+
+	/**
+	 * The time to wait as requested by the server or <code>null</code> if the
+	 * server did not say
+	 */
+	@Getter
+	private Duration retryAfter;
+
+	TooManyRequestsException(Exception cause, Duration retryAfter) {
+		super(cause);
+		this.retryAfter = retryAfter;
+	}
+
+}
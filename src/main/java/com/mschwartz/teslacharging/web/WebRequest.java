@@ -1,17 +1,22 @@
 package com.mschwartz.teslacharging.web;
 
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.StringWriter;
+import java.io.InputStream;
 import java.net.CookieHandler;
 import java.net.CookieManager;
 import java.net.CookiePolicy;
-import java.net.HttpCookie;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.List;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -20,159 +25,116 @@ public class WebRequest {
 
 	protected static CookieManager cookieManager = new CookieManager();
 
-	protected String bearer;
-
-	private static final Logger logger = LogManager.getLogger(WebRequest.class);
+	/**
+	 * One client for all requests. It keeps the connections (and the tls sessions)
+	 * to the tesla servers open so that subsequent requests do not need a new
+	 * handshake. Redirects are never followed, we are interested in the redirect
+	 * itself during authentication.
+	 */
+	private static final HttpClient httpClient;
 
-	public WebRequest() {
+	static {
 		cookieManager.setCookiePolicy(CookiePolicy.ACCEPT_ALL);
 		CookieHandler.setDefault(cookieManager);
+		httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2)
+				.followRedirects(HttpClient.Redirect.NEVER).connectTimeout(Duration.ofSeconds(15))
+				.cookieHandler(cookieManager).build();
 	}
 
-	/**
-	 * Set the cookies to be used for requests
-	 * 
-	 * @param cookies list of Cookies
-	 */
-//	public void setCookies(ArrayList<Cookie> cookies) {
-//		this.cookies = cookies;
-//	}
+	protected volatile String bearer;
+
+	private Duration requestTimeout = Duration.ofSeconds(30);
+
+	private static final Logger logger = LogManager.getLogger(WebRequest.class);
 
 	/**
 	 * Set the bearer token to be used for requests
-	 * 
+	 *
 	 * @param b Bearer token string
 	 */
 	public void setBearer(String b) {
 		this.bearer = b;
 	}
 
-	private void enrichConnection(HttpURLConnection conn, Map<String, String> headers) {
-		conn.setReadTimeout(30000);
-		conn.setConnectTimeout(15000);
+	public String getBearer() {
+		return bearer;
+	}
+
+	/**
+	 * Set the maximum time to wait for the response of a request
+	 *
+	 * @param requestTimeout
+	 */
+	public void setRequestTimeout(Duration requestTimeout) {
+		this.requestTimeout = requestTimeout;
+	}
+
+	private HttpRequest.Builder createRequest(String url, Map<String, String> headers) {
+		HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url)).timeout(requestTimeout);
+		builder.setHeader("Accept", "*/*");
+		builder.setHeader("User-Agent", "TeslaCharging");
 		if (headers != null) {
 			for (Map.Entry<String, String> entry : headers.entrySet()) {
-				conn.setRequestProperty(entry.getKey(), entry.getValue());
+				builder.setHeader(entry.getKey(), entry.getValue());
 			}
 		}
 		if (bearer != null) {
-			conn.setRequestProperty("Authorization", "Bearer " + bearer);
-		}
-		if (cookieManager.getCookieStore().getCookies().size() > 0) {
-			conn.setRequestProperty("Cookie", join("; ", cookieManager.getCookieStore().getCookies()));
+			builder.setHeader("Authorization", "Bearer " + bearer);
 		}
-
-//		Map<String, List<String>> headerFields = conn.getRequestProperties();
-//		for (Map.Entry<String, List<String>> entry : headerFields.entrySet()) {
-//			for (String value : entry.getValue()) {
-//				logger.info("--> " + entry.getKey() + ": " + value);
-//			}
-//		}
-
-	}
-
-	private static String join(String separator, List<HttpCookie> input) {
-
-		if (input == null || input.size() <= 0)
-			return "";
-
-		StringBuilder sb = new StringBuilder();
-
-		for (int i = 0; i < input.size(); i++) {
-
-			sb.append(input.get(i));
-
-			// if not the last item
-			if (i != input.size() - 1) {
-				sb.append(separator);
-			}
-
-		}
-
-		return sb.toString();
-
+		return builder;
 	}
 
 	/**
 	 * Perform a GET request on a provided URL
-	 * 
+	 *
 	 * @param getURL URL to request
 	 * @return String of content retrieved from the URL
 	 */
 	public String get(String getURL, Map<String, String> headers) throws Exception {
-		URL url;
-
-		StringWriter returnData = new StringWriter();
-
-		HttpURLConnection conn = null;
-		InputStreamReader ir = null;
-
 		logger.debug("GET request to: {}", getURL);
 
-		try {
-			url = new URL(getURL);
-			conn = (HttpURLConnection) url.openConnection();
-			conn.setRequestProperty("Accept", "*/*");
-			conn.setRequestProperty("User-Agent", "TeslaCharging");
-//			conn.setRequestProperty("Accept", "application/json, text/plain, */*");
-//			conn.setRequestProperty("x-tesla-user-agent", "");
-//			conn.setRequestProperty("X-Requested-With", "com.teslamotors.tesla");
-			enrichConnection(conn, headers);
-
-			conn.connect();
-
-//			Map<String, List<String>> headerFields = conn.getHeaderFields();
-//			for (Map.Entry<String, List<String>> entry : headerFields.entrySet()) {
-//				for (String value : entry.getValue()) {
-//					logger.info("<-- " + entry.getKey() + ": " + value);
-//				}
-//			}
-
-			try {
-				ir = new InputStreamReader(conn.getInputStream(), "UTF-8");
-			} catch (IOException e) {
-				if (e.getMessage().contains("401"))
-					throw new AuthenticationException(e);
-				else if (e.getMessage().contains("408"))
-					// seems the tesla is sleeping
-					throw new SleepingCarException(e);
-				throw e;
-			}
-
-			if (ir != null) {
-				char[] buffer = new char[1024 * 4];
-				int len = 0;
-				while ((len = ir.read(buffer)) != -1) {
-					returnData.write(buffer, 0, len);
-				}
-			}
+		HttpRequest request = createRequest(getURL, headers).GET().build();
+		HttpResponse<String> response = httpClient.send(request,
+				HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+		return handleResponse(getURL, response);
+	}
 
-			processHeaderCookies(conn);
+	/**
+	 * Perform a GET request on a provided URL and decode the response while it is
+	 * read. The response is never copied into a string.
+	 *
+	 * @param getURL  URL to request
+	 * @param decoder converts the content of the response
+	 * @return the decoded content
+	 */
+	public <T> T get(String getURL, Map<String, String> headers, ResponseDecoder<T> decoder) throws Exception {
+		logger.debug("GET request to: {}", getURL);
 
-		} finally {
-			if (ir != null) {
-				try {
-					ir.close();
-				} catch (IOException e) {
-				}
-			}
-			if (conn != null) {
-				conn.disconnect();
-			}
+		HttpRequest request = createRequest(getURL, headers).GET().build();
+		HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+		try (InputStream is = response.body()) {
+			checkStatus(getURL, response);
+			return decoder.decode(is);
 		}
+	}
 
-		returnData.flush();
-		String returnText = returnData.toString();
-
-		returnData.close();
-		logger.debug(returnText);
+	/**
+	 * Perform a GET request on a provided URL without blocking the caller
+	 *
+	 * @param getURL URL to request
+	 * @return Future with the content retrieved from the URL
+	 */
+	public CompletableFuture<String> getAsync(String getURL, Map<String, String> headers) {
+		logger.debug("GET request to: {}", getURL);
 
-		return returnText;
+		HttpRequest request = createRequest(getURL, headers).GET().build();
+		return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))
+				.thenApply(response -> handleAsyncResponse(getURL, response));
 	}
 
 	/**
 	 * Convenience method to perform a POST that does not require a body.
-	 * 
+	 *
 	 * @see post(String, String)
 	 * @param postURL URL for POST
 	 * @return Result of POST
@@ -184,118 +146,122 @@ public class WebRequest {
 
 	/**
 	 * Perform a POST with a body
-	 * 
+	 *
 	 * @param postURL URL for POST
 	 * @param body    String for POST body
 	 * @return Result of POST
 	 * @throws Exception When things go wrong
 	 */
 	public String post(String postURL, String body, Map<String, String> headers) throws Exception {
-		URL url;
-
-		StringWriter returnData = new StringWriter();
+		HttpRequest request = createPostRequest(postURL, body, headers);
+		HttpResponse<String> response = httpClient.send(request,
+				HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+		return handleResponse(postURL, response);
+	}
 
-		HttpURLConnection conn = null;
-		InputStreamReader ir = null;
+	/**
+	 * Perform a POST with a body without blocking the caller
+	 *
+	 * @param postURL URL for POST
+	 * @param body    String for POST body
+	 * @return Future with the result of POST
+	 */
+	public CompletableFuture<String> postAsync(String postURL, String body, Map<String, String> headers) {
+		HttpRequest request = createPostRequest(postURL, body, headers);
+		return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))
+				.thenApply(response -> handleAsyncResponse(postURL, response));
+	}
 
+	private HttpRequest createPostRequest(String postURL, String body, Map<String, String> headers) {
 		logger.debug("POST request to: {}", postURL);
 		if (body != null) {
 			logger.debug("POST body: {}", body);
 		}
 
-		try {
-			url = new URL(postURL);
-			conn = (HttpURLConnection) url.openConnection();
-			conn.setRequestMethod("POST");
-			conn.setDoOutput(true);
-			HttpURLConnection.setFollowRedirects(false);
-//			conn.setRequestProperty("Accept", "application/json, text/plain, */*");
-			conn.setRequestProperty("Accept", "*/*");
-//			conn.setRequestProperty("Content-Type", "application/json");
-			conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-			if (body != null && body.length() > 0) {
-				conn.setRequestProperty("Content-Length", String.valueOf(body.length()));
-			}
-			conn.setRequestProperty("User-Agent", "TeslaCharging");
-//			conn.setRequestProperty("x-tesla-user-agent", "");
-//			conn.setRequestProperty("X-Requested-With", "com.teslamotors.tesla");
-
-			enrichConnection(conn, headers);
-
-			conn.connect();
-
-			if (body != null && body.length() > 0) {
-				OutputStreamWriter out = null;
-				try {
-					out = new OutputStreamWriter(conn.getOutputStream(), "UTF-8");
-					out.write(body);
-					out.flush();
-				} finally {
-					if (out != null) {
-						out.close();
-					}
-				}
+		HttpRequest.Builder builder = createRequest(postURL, null);
+		builder.setHeader("Content-Type", "application/x-www-form-urlencoded");
+		if (headers != null) {
+			for (Map.Entry<String, String> entry : headers.entrySet()) {
+				builder.setHeader(entry.getKey(), entry.getValue());
 			}
+		}
+		if (body != null && body.length() > 0) {
+			builder.POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8));
+		} else {
+			builder.POST(HttpRequest.BodyPublishers.noBody());
+		}
+		return builder.build();
+	}
 
-//			Map<String, List<String>> headerFields = conn.getHeaderFields();
-//			for (Map.Entry<String, List<String>> entry : headerFields.entrySet()) {
-//				for (String value : entry.getValue()) {
-//					logger.info("<-- " + entry.getKey() + ": " + value);
-//				}
-//			}
-
-			try {
-				ir = new InputStreamReader(conn.getInputStream(), "UTF-8");
-			} catch (IOException e) {
-				if (e.getMessage().contains("401"))
-					throw new AuthenticationException(e);
-				else if (e.getMessage().contains("408"))
-					// seems the tesla is sleeping
-					throw new SleepingCarException(e);
-				throw e;
-			}
+	private String handleAsyncResponse(String url, HttpResponse<String> response) {
+		try {
+			return handleResponse(url, response);
+		} catch (IOException e) {
+			throw new CompletionException(e);
+		}
+	}
 
-			if (ir != null) {
-				char[] buffer = new char[1024 * 4];
-				int len = 0;
-				while ((len = ir.read(buffer)) != -1) {
-					returnData.write(buffer, 0, len);
-				}
-			}
+	/**
+	 * Checks the status code of the response.
+	 *
+	 * @throws AuthenticationException if the access token is invalid (401)
+	 * @throws SleepingCarException    if the car is sleeping (408)
+	 * @throws TooManyRequestsException if the server throttles the requests (429)
+	 * @throws HttpStatusException     for all other error codes
+	 * @throws IOException             for all other errors
+	 */
+	private String handleResponse(String url, HttpResponse<String> response) throws IOException {
+		checkStatus(url, response);
+		String returnText = response.body();
+		logger.debug(returnText);
+		return returnText;
+	}
 
-			processHeaderCookies(conn);
+	private void checkStatus(String url, HttpResponse<?> response) throws IOException {
+		int status = response.statusCode();
+		if (status >= 400) {
+			HttpStatusException e = new HttpStatusException(
+					"Server returned HTTP response code: " + status + " for URL: " + url, status);
+			if (status == 401)
+				throw new AuthenticationException(e);
+			else if (status == 408)
+				// seems the tesla is sleeping
+				throw new SleepingCarException(e);
+			else if (status == 429)
+				throw new TooManyRequestsException(e,
+						parseRetryAfter(response.headers().firstValue("Retry-After").orElse(null)));
+			throw e;
+		}
+	}
 
-		} finally {
-			if (ir != null) {
-				ir.close();
-			}
-			if (conn != null) {
-				conn.disconnect();
-			}
+	/**
+	 * 
+	 * @param retryAfter seconds or a http date
+	 * @return the time to wait or <code>null</code> if unknown
+	 */
+	static Duration parseRetryAfter(String retryAfter) {
+		if (retryAfter == null)
+			return null;
+		try {
+			return Duration.ofSeconds(Math.max(0, Long.parseLong(retryAfter.trim())));
+		} catch (NumberFormatException e) {
+			// not a number, should be a date
 		}
+		try {
+			ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+			Duration duration = Duration.between(ZonedDateTime.now(), date);
+			return duration.isNegative() ? Duration.ZERO : duration;
+		} catch (DateTimeParseException e) {
+			logger.warn("Invalid Retry-After header: " + retryAfter);
+			return null;
+		}
+	}
 
-		returnData.flush();
-		String returnText = returnData.toString();
+	/////////////////////////////////////////////////////////////////////////
 
-		returnData.close();
-		logger.debug(returnText);
+	public interface ResponseDecoder<T> {
 
-		return returnText;
-	}
+		T decode(InputStream is) throws IOException;
 
-	private void processHeaderCookies(HttpURLConnection conn) {
-//		Map<String, List<String>> headerFields = conn.getHeaderFields();
-//		List<String> headerCookies = headerFields.get("Set-Cookie");
-//		if (headerCookies != null) {
-//			for (String cookie : headerCookies) {
-//				if (cookie.length() == 0)
-//					continue;
-//				List<HttpCookie> cookies = HttpCookie.parse(cookie);
-//				for (HttpCookie c : cookies) {
-//					cookieManager.getCookieStore().add(null, c);
-//					logger.info("Adding cookie " + c);
-//				}
-//			}
-//		}
 	}
 }